@@ -0,0 +1,60 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa;
+
+import com.intrbiz.balsa.http.HTTP.HTTPStatus;
+
+/**
+ * A request which the web server sent us is malformed or exceeds our limits, 
+ * the request is rejected with the given status without being processed
+ */
+public class SCGIBadRequestException extends SCGIException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final HTTPStatus status;
+
+    public SCGIBadRequestException(HTTPStatus status, String message)
+    {
+        super(message);
+        this.status = status;
+    }
+
+    public SCGIBadRequestException(String message)
+    {
+        this(HTTPStatus.BadRequest, message);
+    }
+
+    /**
+     * The status to reject the request with
+     */
+    public HTTPStatus getStatus()
+    {
+        return this.status;
+    }
+}
@@ -1,6 +1,7 @@
 package com.intrbiz.balsa.http;
 
 import java.nio.charset.Charset;
+import java.nio.file.Path;
 
 import com.intrbiz.balsa.scgi.SCGIClient;
 
@@ -175,5 +176,13 @@ public class HTTP
         {
             return new SCGIClient(host, port);
         }
+
+        /**
+         * Syntactic sugar to create a SCGI client connecting to a UNIX domain socket
+         */
+        public static final SCGIClient client(Path socketPath)
+        {
+            return new SCGIClient(socketPath);
+        }
     }
 }
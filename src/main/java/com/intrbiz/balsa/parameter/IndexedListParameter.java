@@ -0,0 +1,153 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.parameter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of parameters which are indexed, IE: name[index]
+ * 
+ * Values are appended as they are added and sorting is deferred until the 
+ * list is read, at which point it is sorted once, or not at all should the 
+ * values have been added in order.  Values can be looked up by index 
+ * without searching, dense indexes are held in an array keyed by index, 
+ * sparse indexes in a map.
+ * 
+ * The list returned by getListValue() must not be modified directly.
+ */
+public class IndexedListParameter extends ListParameter
+{
+    /**
+     * Indexes below this, or below four times the length of the list, are held in the array
+     */
+    private static final int MIN_DENSE_INDEX = 64;
+
+    private Parameter[] byIndex = new Parameter[16];
+
+    private Map<Integer, Parameter> sparse;
+
+    /**
+     * The length of the list which is to be sorted when it is next read
+     */
+    private int sortLength = 0;
+
+    /**
+     * Have the values been added in index order
+     */
+    private boolean ordered = true;
+
+    private int lastIndex = Integer.MIN_VALUE;
+
+    public IndexedListParameter(String name)
+    {
+        super(name);
+    }
+
+    public IndexedListParameter(String name, Parameter... values)
+    {
+        super(name);
+        if (values != null)
+        {
+            for (Parameter val : values)
+            {
+                this.addValue(val);
+            }
+        }
+    }
+
+    @Override
+    public void addValue(Parameter parameter)
+    {
+        super.addValue(parameter);
+        int index = parameter.getIndex();
+        if (index < this.lastIndex) this.ordered = false;
+        else this.lastIndex = index;
+        // the first value of an index is the one found by index
+        if (index >= 0 && index < this.byIndex.length && this.byIndex[index] != null) return;
+        if (this.sparse != null && this.sparse.containsKey(index)) return;
+        if (index >= 0 && index < Math.max(MIN_DENSE_INDEX, super.getListValue().size() * 4))
+        {
+            if (index >= this.byIndex.length) this.byIndex = Arrays.copyOf(this.byIndex, Math.max(index + 1, this.byIndex.length * 2));
+            this.byIndex[index] = parameter;
+        }
+        else
+        {
+            if (this.sparse == null) this.sparse = new HashMap<Integer, Parameter>();
+            this.sparse.put(index, parameter);
+        }
+    }
+
+    /**
+     * Sort the values by index, the sort is deferred until the list is next read
+     */
+    @Override
+    public void sort()
+    {
+        this.checkNotFrozen();
+        this.sortLength = super.getListValue().size();
+    }
+
+    @Override
+    public List<Parameter> getListValue()
+    {
+        List<Parameter> values = super.getListValue();
+        if (this.sortLength > 0)
+        {
+            // values added in order are already sorted
+            if (! this.ordered)
+            {
+                Collections.sort(values.subList(0, this.sortLength));
+                if (this.sortLength == values.size())
+                {
+                    this.ordered = true;
+                    this.lastIndex = values.get(values.size() - 1).getIndex();
+                }
+            }
+            this.sortLength = 0;
+        }
+        return values;
+    }
+
+    @Override
+    public ListParameter copy()
+    {
+        List<Parameter> values = this.getListValue();
+        return new IndexedListParameter(this.getName(), values.toArray(new Parameter[values.size()]));
+    }
+
+    @Override
+    public Parameter getListValue(int index)
+    {
+        if (index >= 0 && index < this.byIndex.length && this.byIndex[index] != null) return this.byIndex[index];
+        return this.sparse == null ? null : this.sparse.get(index);
+    }
+}
@@ -34,9 +34,14 @@ import java.util.List;
 /**
  * A list of parameters
  */
-public final class ListParameter extends AbstractParameter
+public class ListParameter extends AbstractParameter
 {
     private final ArrayList<Parameter> value = new ArrayList<Parameter>();
+    
+    /**
+     * An unmodifiable view of the values, once this list is frozen
+     */
+    private List<Parameter> frozen;
 
     public ListParameter(String name)
     {
@@ -62,7 +67,7 @@ public final class ListParameter extends AbstractParameter
 
     public List<Parameter> getListValue()
     {
-        return this.value;
+        return this.frozen != null ? this.frozen : this.value;
     }
     
     public Parameter getListValue(int index)
@@ -78,7 +83,7 @@ public final class ListParameter extends AbstractParameter
     public List<String> getStringListValue()
     {
         ArrayList<String> ret = new ArrayList<String>();
-        for (Parameter param : this.value)
+        for (Parameter param : this.getListValue())
         {
             if (param instanceof StringParameter)
             {
@@ -105,16 +110,50 @@ public final class ListParameter extends AbstractParameter
 
     public Object getValue()
     {
-        return this.value;
+        return this.getListValue();
     }
     
     public void addValue(Parameter parameter)
     {
+        this.checkNotFrozen();
         this.value.add(parameter);
     }
     
     public void sort()
     {
+        this.checkNotFrozen();
         Collections.sort(this.value);
     }
+    
+    /**
+     * Make this list immutable, so that it can be shared between requests
+     */
+    public void freeze()
+    {
+        if (this.frozen == null)
+        {
+            // settle any pending changes first
+            List<Parameter> values = this.getListValue();
+            this.frozen = Collections.unmodifiableList(values);
+        }
+    }
+    
+    public boolean isFrozen()
+    {
+        return this.frozen != null;
+    }
+    
+    protected final void checkNotFrozen()
+    {
+        if (this.frozen != null) throw new UnsupportedOperationException("The list parameter " + this.getName() + " is frozen");
+    }
+    
+    /**
+     * A modifiable copy of this list
+     */
+    public ListParameter copy()
+    {
+        List<Parameter> values = this.getListValue();
+        return new ListParameter(this.getName(), values.toArray(new Parameter[values.size()]));
+    }
 }
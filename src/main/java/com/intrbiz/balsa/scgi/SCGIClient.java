@@ -10,6 +10,9 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -20,6 +23,7 @@ import java.util.regex.Pattern;
 import com.intrbiz.balsa.http.HTTP;
 import com.intrbiz.balsa.http.HTTP.HTTPStatus;
 import com.intrbiz.balsa.http.HTTP.SCGI;
+import com.intrbiz.balsa.util.Platform;
 import com.intrbiz.balsa.util.Util;
 
 /**
@@ -47,6 +51,8 @@ public class SCGIClient
 
     private int port;
 
+    private Path socketPath;
+
     private List<SCGIVar> vars = new LinkedList<SCGIVar>();
 
     private ContentEntity content = null;
@@ -59,6 +65,16 @@ public class SCGIClient
         this.reset();
     }
 
+    /**
+     * Connect to a server listening on the given UNIX domain socket, requires Java 16 or later
+     */
+    public SCGIClient(Path socketPath)
+    {
+        super();
+        this.socketPath = socketPath;
+        this.reset();
+    }
+
     public SCGIClient reset()
     {
         this.vars.clear();
@@ -194,8 +210,30 @@ public class SCGIClient
     public SCGIClientResponse executeRequest() throws IOException
     {
         this.finaliseHeaders();
+        if (this.socketPath != null)
+        {
+            SocketChannel channel = Platform.openUnixDomainSocketChannel();
+            try
+            {
+                channel.connect(Platform.unixDomainSocketAddress(this.socketPath.toString()));
+                this.sendRequest(Channels.newOutputStream(channel));
+                return new SCGIClientResponse(channel);
+            }
+            catch (IOException e)
+            {
+                channel.close();
+                throw e;
+            }
+        }
         Socket sock = new Socket(this.host, this.port);
-        OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+        this.sendRequest(sock.getOutputStream());
+        // return the response
+        return new SCGIClientResponse(sock);
+    }
+
+    private void sendRequest(OutputStream stream) throws IOException
+    {
+        OutputStream out = new BufferedOutputStream(stream);
         // send the vars
         this.writeNetString(this.assembleHeaders(), out);
         out.flush();
@@ -205,8 +243,6 @@ public class SCGIClient
             this.content.writeTo(out);
         }
         out.flush();
-        // return the response
-        return new SCGIClientResponse(sock);
     }
 
     private void finaliseHeaders()
@@ -352,7 +388,7 @@ public class SCGIClient
     {
         private static final Pattern STATUS_LINE = Pattern.compile("\\AStatus: ([0-9]+) (.+)\\z");
         
-        private final Socket socket;
+        private final Closeable socket;
 
         private HTTPStatus status;
 
@@ -366,7 +402,15 @@ public class SCGIClient
         {
             super();
             this.socket = socket;
-            this.inputStream = new BufferedInputStream(this.socket.getInputStream());
+            this.inputStream = new BufferedInputStream(socket.getInputStream());
+            this.parse();
+        }
+
+        public SCGIClientResponse(SocketChannel channel) throws IOException
+        {
+            super();
+            this.socket = channel;
+            this.inputStream = new BufferedInputStream(Channels.newInputStream(channel));
             this.parse();
         }
         
@@ -0,0 +1,268 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.intrbiz.balsa.scgi;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection from the web server which is waiting to be processed by a worker.
+ *
+ * The connection is either a plain blocking socket, or a channel which has been
+ * placed back into blocking mode once the request has been framed.
+ *
+ */
+public class SCGIConnection implements Closeable
+{
+    private final Closeable resource;
+
+    private InputStream input;
+
+    private final OutputStream output;
+
+    private final long queued = System.nanoTime();
+
+    private volatile long headerDeadline;
+
+    private volatile long bodyDeadline;
+
+    private volatile long requestDeadline;
+
+    private volatile boolean reading = false;
+
+    private volatile String expired;
+
+    public SCGIConnection(Socket socket) throws IOException
+    {
+        super();
+        this.resource = socket;
+        this.input = socket.getInputStream();
+        this.output = socket.getOutputStream();
+    }
+
+    public SCGIConnection(SocketChannel channel) throws IOException
+    {
+        this(channel, Channels.newInputStream(channel));
+    }
+
+    /**
+     * A channel where some, or all, of the request has already been read
+     * @param channel the blocking channel
+     * @param input the stream to read the request from
+     */
+    public SCGIConnection(SocketChannel channel, InputStream input) throws IOException
+    {
+        super();
+        this.resource = channel;
+        this.input = input;
+        this.output = Channels.newOutputStream(channel);
+    }
+
+    public InputStream getInput()
+    {
+        return this.input;
+    }
+
+    public OutputStream getOutput()
+    {
+        return this.output;
+    }
+
+    /**
+     * When was this connection handed to the workers, as given by System.nanoTime()
+     */
+    public long getQueued()
+    {
+        return this.queued;
+    }
+
+    /**
+     * Start enforcing timeouts on this connection, from now
+     * @param headerTimeout the time allowed to read the headers in milliseconds, 0 for no limit
+     * @param requestTimeout the time allowed to process the whole request in milliseconds, 0 for no limit
+     * returns void
+     */
+    public void startTimeouts(long headerTimeout, long requestTimeout)
+    {
+        long now = System.nanoTime();
+        this.headerDeadline = headerTimeout > 0 ? now + TimeUnit.MILLISECONDS.toNanos(headerTimeout) : 0;
+        this.requestDeadline = requestTimeout > 0 ? now + TimeUnit.MILLISECONDS.toNanos(requestTimeout) : 0;
+        // track when we are blocked reading
+        this.input = new TimedInputStream(this.input);
+    }
+
+    /**
+     * The headers have been read, start enforcing the body timeout
+     * @param bodyTimeout the time allowed to read the body in milliseconds, 0 for no limit
+     * returns void
+     */
+    public void startBodyTimeout(long bodyTimeout)
+    {
+        this.headerDeadline = 0;
+        this.bodyDeadline = bodyTimeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(bodyTimeout) : 0;
+    }
+
+    /**
+     * Close this connection if it has exceeded any of its timeouts
+     * @param now the current System.nanoTime()
+     * @return true if the connection was closed
+     */
+    public boolean expire(long now)
+    {
+        if (this.expired != null) return false;
+        long headerDeadline = this.headerDeadline;
+        long bodyDeadline = this.bodyDeadline;
+        long requestDeadline = this.requestDeadline;
+        if (headerDeadline != 0 && now - headerDeadline > 0)
+        {
+            this.expired = "reading headers";
+        }
+        else if (bodyDeadline != 0 && this.reading && now - bodyDeadline > 0)
+        {
+            // the body timeout only applies whilst waiting for the body
+            this.expired = "reading body";
+        }
+        else if (requestDeadline != 0 && now - requestDeadline > 0)
+        {
+            this.expired = "processing request";
+        }
+        else
+        {
+            return false;
+        }
+        try
+        {
+            this.close();
+        }
+        catch (IOException e)
+        {
+        }
+        return true;
+    }
+
+    /**
+     * Has this connection been closed due to a timeout
+     */
+    public boolean isExpired()
+    {
+        return this.expired != null;
+    }
+
+    /**
+     * What this connection was doing when it timed out
+     */
+    public String getExpired()
+    {
+        return this.expired;
+    }
+
+    /**
+     * Write the given canned response and close this connection, without processing the request
+     * @param response the encoded response
+     * returns void
+     */
+    public void abort(byte[] response)
+    {
+        try
+        {
+            this.output.write(response);
+            this.output.flush();
+            // discard any of the request which has arrived, so that the close does
+            // not reset the connection before the web server has read the response
+            int available;
+            while ((available = this.input.available()) > 0)
+            {
+                this.input.skip(available);
+            }
+        }
+        catch (IOException e)
+        {
+        }
+        finally
+        {
+            try
+            {
+                this.close();
+            }
+            catch (IOException e)
+            {
+            }
+        }
+    }
+
+    public void close() throws IOException
+    {
+        this.resource.close();
+    }
+
+    /**
+     * Tracks when a read is blocked
+     */
+    private final class TimedInputStream extends FilterInputStream
+    {
+        public TimedInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            reading = true;
+            try
+            {
+                return super.read();
+            }
+            finally
+            {
+                reading = false;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            reading = true;
+            try
+            {
+                return super.read(b, off, len);
+            }
+            finally
+            {
+                reading = false;
+            }
+        }
+    }
+}
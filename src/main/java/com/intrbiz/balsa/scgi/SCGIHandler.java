@@ -0,0 +1,328 @@
+/*
+ * Balsa SCGI Copyright (c) 2012, Chris Ellis All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer. 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.intrbiz.balsa.scgi;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import com.codahale.metrics.Timer;
+import com.intrbiz.balsa.SCGIBadRequestException;
+import com.intrbiz.balsa.util.NetstringInputStream;
+import com.intrbiz.balsa.util.PooledOutputStream;
+import com.intrbiz.balsa.util.RequestArena;
+
+/**
+ * Handles requests for the SCGI Listener.
+ * 
+ * The SCGI handler will parse the socket, populating a SCGIRequest.
+ * 
+ * The request is then passed to a SCGIProcessor for processing.
+ * 
+ * A handler owns the request and response which are recycled between 
+ * requests, as such a handler must only process one request at a time.  
+ * When a request is processed asynchronously the handler is only 
+ * released once the request completes.
+ * 
+ */
+public class SCGIHandler
+{
+    /**
+     * States of an asynchronous request, see Completion
+     */
+    private static final Object PENDING = new Object();
+
+    private static final Object DETACHED = new Object();
+
+    private static final Object COMPLETED = new Object();
+
+    private final SCGIListener listener;
+
+    private final SCGIRequest request = new SCGIRequest();
+
+    private final SCGIResponse response = new SCGIResponse();
+
+    private final NetstringInputStream input = new NetstringInputStream();
+
+    private final PooledOutputStream output = new PooledOutputStream();
+
+    private RequestArena arena;
+
+    private Logger logger = Logger.getLogger(this.getClass());
+
+    private final Timer requestDuration;
+
+    private final Timer requestHeaderParseDuration;
+    
+    private final Timer requestProcessDuration;
+
+    private SCGIConnection client;
+
+    private Timer.Context requestCtx;
+
+    private Timer.Context processCtx;
+
+    public SCGIHandler(SCGIListener listener, Timer requestDuration, Timer requestHeaderParseDuration, Timer requestProcessDuration)
+    {
+        super();
+        this.listener = listener;
+        this.requestDuration = requestDuration;
+        this.requestHeaderParseDuration = requestHeaderParseDuration;
+        this.requestProcessDuration = requestProcessDuration;
+    }
+
+    protected SCGIProcessor getProcessor()
+    {
+        return this.listener.getProcessor();
+    }
+
+    protected SCGIAsyncProcessor getAsyncProcessor()
+    {
+        return this.listener.getAsyncProcessor();
+    }
+
+    /**
+     * Process the request of the given connection, closing the connection once done
+     * @param client the connection
+     * @return false if the request is still being processed asynchronously, in 
+     * which case this handler is released to the listener once the request completes
+     */
+    public boolean handle(SCGIConnection client)
+    {
+        SCGIRequest request = this.request;
+        SCGIResponse response = this.response;
+        this.client = client;
+        this.requestCtx = this.requestDuration.time();
+        this.listener.startTimeouts(client);
+        try
+        {
+            request.activate();
+            response.activate();
+            final Timer.Context hpCtx = this.requestHeaderParseDuration.time();
+            try
+            {
+                // read the headers netstring in place
+                NetstringInputStream input = this.input;
+                input.open(client.getInput());
+                int headerLength = input.readNetstring(this.listener.getMaxHeaderBytes());
+                this.parseHeaders(input.getBuffer(), input.getStart(), headerLength, request);
+                client.startBodyTimeout(this.listener.getBodyTimeout());
+                // set the streams, the body is only read into the arena on demand
+                request.stream(input);
+                request.arena(this.arena());
+                this.output.open(client.getOutput());
+                response.stream(this.output);
+            }
+            finally
+            {
+                hpCtx.stop();
+            }
+            // process
+            this.processCtx = this.requestProcessDuration.time();
+            SCGIAsyncProcessor asyncProcessor = this.getAsyncProcessor();
+            if (asyncProcessor != null)
+            {
+                Completion completion = new Completion();
+                try
+                {
+                    asyncProcessor.process(request, response, completion);
+                }
+                catch (Throwable t)
+                {
+                    completion.fail(t);
+                }
+                // hand the request over to whichever thread completes it
+                if (completion.detach()) return false;
+                // completed before the processor returned
+                Throwable error = completion.error();
+                if (error != null) this.failed(error);
+            }
+            else
+            {
+                this.getProcessor().process(request, response);
+            }
+        }
+        catch (SCGIBadRequestException e)
+        {
+            this.listener.rejectBadRequest(client, e);
+        }
+        catch (Throwable t)
+        {
+            this.failed(t);
+        }
+        this.finish();
+        return true;
+    }
+
+    /**
+     * Processing the request failed, should the failure be due to parameters 
+     * which were parsed lazily and rejected, however the processor wrapped 
+     * it, the request is rejected provided nothing has been sent yet
+     */
+    private void failed(Throwable t)
+    {
+        Exception parameterFailure = this.request.getParameterFailure();
+        if (parameterFailure instanceof SCGIBadRequestException && ! this.response.isHeadersSent())
+        {
+            this.listener.rejectBadRequest(this.client, (SCGIBadRequestException) parameterFailure);
+        }
+        else
+        {
+            this.fatal(t);
+        }
+    }
+
+    private void fatal(Throwable t)
+    {
+        if (this.client != null && this.client.isExpired())
+        {
+            logger.warn("Request timed out while " + this.client.getExpired() + ", connection closed");
+            return;
+        }
+        // A throwable should not reach here - Fatal!
+        if (t instanceof OutOfMemoryError) logger.fatal("OUT OF MEMORY ERROR!");
+        logger.fatal("Terminated request due to uncaught throwable while processing request!", t);
+    }
+
+    /**
+     * Close the connection and recycle the request and response
+     */
+    private void finish()
+    {
+        try
+        {
+            if (this.processCtx != null) this.processCtx.stop();
+            // close
+            this.request.deactivate();
+            this.response.deactivate();
+            this.client.close();
+            this.input.release();
+            this.output.release();
+            if (this.arena != null) this.arena.reset();
+        }
+        catch (Throwable t)
+        {
+            this.fatal(t);
+        }
+        finally
+        {
+            this.requestCtx.stop();
+            this.listener.stopTimeouts(this.client);
+            this.client = null;
+            this.processCtx = null;
+            this.requestCtx = null;
+        }
+    }
+
+    /**
+     * Complete a request which was processed asynchronously
+     */
+    private void finishAsync(Throwable error)
+    {
+        if (error != null) this.failed(error);
+        this.finish();
+        this.listener.asyncComplete(this);
+    }
+
+    /**
+     * Tracks who is responsible for finishing an asynchronous request: the 
+     * worker, should the request complete before the processor returns, 
+     * otherwise the thread which completes the request.
+     */
+    private final class Completion implements SCGICompletion
+    {
+        /**
+         * PENDING, DETACHED, COMPLETED or the error the request completed 
+         * with, such that the error is published by the same CAS which 
+         * completes the request
+         */
+        private final AtomicReference<Object> state = new AtomicReference<Object>(PENDING);
+
+        public void complete()
+        {
+            this.done(null);
+        }
+
+        public void fail(Throwable t)
+        {
+            this.done(t);
+        }
+
+        private void done(Throwable t)
+        {
+            Object completed = t == null ? COMPLETED : t;
+            for (;;)
+            {
+                Object current = this.state.get();
+                if (current == PENDING)
+                {
+                    if (this.state.compareAndSet(PENDING, completed)) return;
+                }
+                else if (current == DETACHED)
+                {
+                    if (this.state.compareAndSet(DETACHED, completed))
+                    {
+                        finishAsync(t);
+                        return;
+                    }
+                }
+                else
+                {
+                    if (t != null) logger.error("Error after request was completed", t);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * The error the request completed with, if any
+         */
+        Throwable error()
+        {
+            Object current = this.state.get();
+            return current instanceof Throwable ? (Throwable) current : null;
+        }
+
+        /**
+         * Release the request from the worker
+         * @return false if the request has already completed
+         */
+        boolean detach()
+        {
+            listener.asyncStarted();
+            if (this.state.compareAndSet(PENDING, DETACHED)) return true;
+            listener.asyncComplete(null);
+            return false;
+        }
+    }
+
+    /**
+     * The arena of this handler, should the listener use arenas
+     */
+    private RequestArena arena()
+    {
+        int size = this.listener.getArenaSize();
+        if (size <= 0) return null;
+        if (this.arena == null || this.arena.getCapacity() != size) this.arena = new RequestArena(size);
+        return this.arena;
+    }
+
+    /**
+     * Parse the header block, a sequence of NUL terminated names and values, 
+     * the names and values are decoded by the request as they are accessed
+     * @throws SCGIBadRequestException should the block be malformed or exceed the limits of the listener
+     */
+    protected void parseHeaders(byte[] headers, int offset, int length, SCGIRequest request) throws SCGIBadRequestException
+    {
+        SCGIListener listener = this.listener;
+        request.variables(headers, offset, length, listener.getMaxVariables(), listener.getMaxNameLength(), listener.getMaxValueLength());
+    }
+}
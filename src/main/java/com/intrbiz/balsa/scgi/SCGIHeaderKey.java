@@ -0,0 +1,197 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.scgi;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A precomputed HTTP header name, used to look up request headers without
+ * converting the name for every lookup.
+ *
+ * A header is sent by the web server as an SCGI variable with a CGI style
+ * name, IE: the header "Accept-Encoding" is sent as the variable
+ * "HTTP_ACCEPT_ENCODING".  A key holds both forms of the name, as well as
+ * the raw bytes of the variable name so that it can be matched directly
+ * against the header block.
+ *
+ * Keys for the commonly used headers are available as constants, keys for
+ * other headers are obtained using of(), which caches them.
+ */
+public final class SCGIHeaderKey
+{
+    private static final Charset SCGI_CHARSET = Charset.forName("ISO-8859-1");
+
+    /**
+     * The most keys we will cache
+     */
+    private static final int MAX_CACHED_KEYS = 512;
+
+    private static final ConcurrentMap<String, SCGIHeaderKey> CACHE = new ConcurrentHashMap<String, SCGIHeaderKey>();
+
+    public static final SCGIHeaderKey ACCEPT = cached("Accept");
+
+    public static final SCGIHeaderKey ACCEPT_CHARSET = cached("Accept-Charset");
+
+    public static final SCGIHeaderKey ACCEPT_ENCODING = cached("Accept-Encoding");
+
+    public static final SCGIHeaderKey ACCEPT_LANGUAGE = cached("Accept-Language");
+
+    public static final SCGIHeaderKey AUTHORIZATION = cached("Authorization");
+
+    public static final SCGIHeaderKey CACHE_CONTROL = cached("Cache-Control");
+
+    public static final SCGIHeaderKey CONNECTION = cached("Connection");
+
+    public static final SCGIHeaderKey COOKIE = cached("Cookie");
+
+    public static final SCGIHeaderKey HOST = cached("Host");
+
+    public static final SCGIHeaderKey IF_MATCH = cached("If-Match");
+
+    public static final SCGIHeaderKey IF_MODIFIED_SINCE = cached("If-Modified-Since");
+
+    public static final SCGIHeaderKey IF_NONE_MATCH = cached("If-None-Match");
+
+    public static final SCGIHeaderKey ORIGIN = cached("Origin");
+
+    public static final SCGIHeaderKey RANGE = cached("Range");
+
+    public static final SCGIHeaderKey REFERER = cached("Referer");
+
+    public static final SCGIHeaderKey USER_AGENT = cached("User-Agent");
+
+    public static final SCGIHeaderKey X_FORWARDED_FOR = cached("X-Forwarded-For");
+
+    public static final SCGIHeaderKey X_FORWARDED_PROTO = cached("X-Forwarded-Proto");
+
+    public static final SCGIHeaderKey X_REAL_IP = cached("X-Real-IP");
+
+    public static final SCGIHeaderKey X_REQUESTED_WITH = cached("X-Requested-With");
+
+    private final String name;
+
+    private final String cgiName;
+
+    private final byte[] variable;
+
+    private SCGIHeaderKey(String name)
+    {
+        super();
+        this.name = name;
+        this.cgiName = cgify(name);
+        this.variable = ("HTTP_" + this.cgiName).getBytes(SCGI_CHARSET);
+    }
+
+    private static SCGIHeaderKey cached(String name)
+    {
+        SCGIHeaderKey key = new SCGIHeaderKey(name);
+        CACHE.put(name, key);
+        CACHE.put(key.cgiName, key);
+        return key;
+    }
+
+    /**
+     * Get the key for the given header name
+     * @param name the header name, either the HTTP name (IE: "Accept-Encoding") or the CGI name (IE: "ACCEPT_ENCODING")
+     * @return the key
+     */
+    public static SCGIHeaderKey of(String name)
+    {
+        SCGIHeaderKey key = CACHE.get(name);
+        if (key == null)
+        {
+            key = new SCGIHeaderKey(name);
+            if (CACHE.size() < MAX_CACHED_KEYS)
+            {
+                SCGIHeaderKey existing = CACHE.putIfAbsent(name, key);
+                if (existing != null) key = existing;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Convert a HTTP header name to the CGI form used in the SCGI variables,
+     * upper case with '-' replaced by '_'
+     */
+    public static String cgify(String name)
+    {
+        return name.toUpperCase().replace('-', '_');
+    }
+
+    /**
+     * The name this key was created from
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * The CGI form of the header name, IE: "ACCEPT_ENCODING"
+     */
+    public String getCgiName()
+    {
+        return this.cgiName;
+    }
+
+    /**
+     * Does the given region of the header block match the variable name of this header
+     */
+    boolean matches(byte[] block, int start, int end)
+    {
+        byte[] variable = this.variable;
+        if (end - start != variable.length) return false;
+        // compare from the end, header names mostly share prefixes
+        for (int i = variable.length - 1; i >= 0; i--)
+        {
+            if (block[start + i] != variable[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return this.cgiName.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return this == o || (o instanceof SCGIHeaderKey && this.cgiName.equals(((SCGIHeaderKey) o).cgiName));
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.name;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.intrbiz.balsa.scgi;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A leader / follower SCGI server
+ * 
+ * Rather than a listener thread accepting connections and handing them to the 
+ * workers via the run queue, the workers take turns to accept connections.  The 
+ * leader blocks in accept(), once it has accepted a connection it hands leadership 
+ * to the next follower and processes the connection itself.
+ * 
+ * This removes the hand off between threads from the processing of every request, 
+ * at the cost of there being no run queue to absorb bursts of requests.
+ * 
+ */
+public class SCGILeaderFollowerListener extends SCGIListener
+{
+    private static final int ACCEPT_TIMEOUT = 1000;
+
+    private final ReentrantLock leader = new ReentrantLock();
+
+    private ServerSocket server;
+
+    private Logger logger = Logger.getLogger(SCGILeaderFollowerListener.class);
+
+    public SCGILeaderFollowerListener()
+    {
+        super();
+    }
+
+    public SCGILeaderFollowerListener(int port)
+    {
+        super(port);
+    }
+
+    public SCGILeaderFollowerListener(int port, int poolSize)
+    {
+        super(port, poolSize);
+    }
+
+    public SCGILeaderFollowerListener(int port, int poolSize, SCGIProcessor processor)
+    {
+        super(port, poolSize, processor);
+    }
+
+    @Override
+    protected void bind() throws IOException
+    {
+        this.server = this.openServerSocket();
+        // the leader wakes periodically to check if we are still running
+        this.server.setSoTimeout(ACCEPT_TIMEOUT);
+    }
+
+    @Override
+    protected void unbind() throws IOException
+    {
+        if (this.server != null) this.server.close();
+    }
+
+    @Override
+    protected void startListener()
+    {
+        // the workers accept connections
+    }
+
+    @Override
+    protected SCGIConnection nextConnection(long timeout) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        // wait to become the leader
+        if (! this.leader.tryLock(timeout, TimeUnit.MILLISECONDS)) return null;
+        try
+        {
+            while (this.isRun() && System.currentTimeMillis() < deadline)
+            {
+                try
+                {
+                    Socket client = this.server.accept();
+                    this.accepted();
+                    // grow the pool if there is no follower to take over as leader
+                    if (! this.leader.hasQueuedThreads()) this.growPool();
+                    return new SCGIConnection(client);
+                }
+                catch (SocketTimeoutException e)
+                {
+                    /* expected */
+                }
+                catch (IOException e)
+                {
+                    if (this.isRun()) logger.fatal("Error accepting connection", e);
+                }
+            }
+            return null;
+        }
+        finally
+        {
+            // hand leadership to the next follower
+            this.leader.unlock();
+        }
+    }
+}
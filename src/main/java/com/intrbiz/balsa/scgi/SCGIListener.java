@@ -28,40 +28,154 @@
 package com.intrbiz.balsa.scgi;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.BindException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.log4j.Logger;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import com.intrbiz.balsa.SCGIBadRequestException;
 import com.intrbiz.balsa.SCGIException;
+import com.intrbiz.balsa.http.HTTP.Charsets;
+import com.intrbiz.balsa.http.HTTP.HTTPStatus;
+import com.intrbiz.balsa.util.CoDel;
+import com.intrbiz.balsa.util.Platform;
+import com.intrbiz.balsa.util.RingBufferQueue;
+import com.intrbiz.balsa.util.RingBufferQueue.WaitStrategy;
 import com.intrbiz.gerald.source.IntelligenceSource;
 import com.intrbiz.gerald.witchcraft.Witchcraft;
 
 /**
  * A simple 'pre-forked' SCGI server
  * 
+ * The worker pool is elastic, between the minimum and maximum pool size.  
+ * Workers are added when requests are queued and all workers are busy, 
+ * idle workers above the minimum pool size exit after the worker keep alive.
+ * By default the pool has a fixed size.  The pool can be resized at runtime, 
+ * including via JMX.
+ * 
  * Note: This is based on the Balsa SCGI implementation, modified to be more standalone.
  * 
  */
-public class SCGIListener implements Runnable
+public class SCGIListener implements Runnable, SCGIListenerMXBean
 {
     public static final int DEFAULT_PORT = 8090;
 
     public static final int DEFAULT_POOL_SIZE = 16;
 
+    public static final long DEFAULT_WORKER_KEEP_ALIVE = 60000;
+
+    public static final long DEFAULT_HEADER_TIMEOUT = 30000;
+
+    public static final int DEFAULT_MAX_HEADER_BYTES = 65536;
+
+    public static final int DEFAULT_MAX_VARIABLES = 512;
+
+    public static final int DEFAULT_MAX_NAME_LENGTH = 1024;
+
+    public static final int DEFAULT_MAX_VALUE_LENGTH = 32768;
+
+    /**
+     * How often connections are checked for timeouts
+     */
+    private static final long REAPER_INTERVAL = 250;
+
+    /**
+     * The canned response sent when we are too busy to process a request
+     */
+    private static final byte[] SERVICE_UNAVAILABLE = "Status: 503 Service Unavailable\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: 20\r\n\r\nService Unavailable\n".getBytes(Charsets.SCGI);
+
+    /**
+     * The canned responses sent when a request is malformed or exceeds our limits
+     */
+    private static final byte[] BAD_REQUEST = "Status: 400 Bad Request\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: 12\r\n\r\nBad Request\n".getBytes(Charsets.SCGI);
+
+    private static final byte[] REQUEST_TOO_LARGE = "Status: 413 Request Entity Too Large\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: 25\r\n\r\nRequest Entity Too Large\n".getBytes(Charsets.SCGI);
+
+    /**
+     * The smallest ring buffer run queue, a ring buffer cannot grow so it 
+     * is preallocated with room for the pool to be resized at runtime
+     */
+    private static final int MIN_RING_RUN_QUEUE_CAPACITY = 1024;
+
+    /**
+     * The number of connections which may wait to be rejected, beyond which 
+     * connections are closed without a response
+     */
+    private static final int REJECT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * The running listeners, the listener gauges are aggregated across them
+     */
+    private static final Set<SCGIListener> RUNNING = Collections.newSetFromMap(new ConcurrentHashMap<SCGIListener, Boolean>());
+
+    private static final AtomicBoolean GAUGES_REGISTERED = new AtomicBoolean();
+
     private int port = DEFAULT_PORT;
 
-    private int poolSize = DEFAULT_POOL_SIZE;
+    private boolean reusePort = false;
+
+    private String shard;
+
+    private volatile int minPoolSize = DEFAULT_POOL_SIZE;
+
+    private volatile int maxPoolSize = DEFAULT_POOL_SIZE;
+
+    private volatile long workerKeepAlive = DEFAULT_WORKER_KEEP_ALIVE;
+
+    private volatile long headerTimeout = DEFAULT_HEADER_TIMEOUT;
+
+    private volatile long bodyTimeout = 0;
+
+    private volatile long requestTimeout = 0;
+
+    private volatile int maxHeaderBytes = DEFAULT_MAX_HEADER_BYTES;
+
+    private volatile int maxVariables = DEFAULT_MAX_VARIABLES;
+
+    private volatile int maxNameLength = DEFAULT_MAX_NAME_LENGTH;
+
+    private volatile int maxValueLength = DEFAULT_MAX_VALUE_LENGTH;
+
+    private volatile int arenaSize = 0;
+
+    private final Set<SCGIConnection> timedConnections = Collections.newSetFromMap(new ConcurrentHashMap<SCGIConnection, Boolean>());
+
+    private Thread reaperThread;
+
+    /**
+     * Connections rejected by the acceptor, which are sent a 503 by the 
+     * rejector thread so that a slow client cannot stall accepting
+     */
+    private final BlockingQueue<SCGIConnection> rejectQueue = new LinkedBlockingQueue<SCGIConnection>(REJECT_QUEUE_CAPACITY);
+
+    private Thread rejectorThread;
 
     protected SCGIProcessor processor;
 
+    protected SCGIAsyncProcessor asyncProcessor;
+
     private volatile boolean run = false;
 
     private ServerSocket server;
@@ -70,13 +184,37 @@ public class SCGIListener implements Runnable
 
     private ThreadFactory workerFactory;
 
-    private SCGIWorker[] workers;
+    private final Set<SCGIWorker> workers = Collections.newSetFromMap(new ConcurrentHashMap<SCGIWorker, Boolean>());
+
+    private final AtomicInteger workerCount = new AtomicInteger();
 
-    private BlockingQueue<Socket> runQueue;
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+
+    private final AtomicInteger asyncRequests = new AtomicInteger();
+
+    private final Queue<SCGIHandler> idleHandlers = new ConcurrentLinkedQueue<SCGIHandler>();
+
+    private final AtomicInteger idleHandlerCount = new AtomicInteger();
+
+    private BlockingQueue<SCGIConnection> runQueue;
+
+    private CoDel queuePolicy;
+
+    private WaitStrategy runQueueWaitStrategy;
 
     private Logger logger = Logger.getLogger(SCGIListener.class);
     
     private final Counter accepts;
+
+    private Counter shardAccepts;
+    
+    private final Counter rejected;
+    
+    private final Counter shed;
+
+    private final Counter timeouts;
+
+    private final Counter badRequests;
     
     private final Timer requestDuration;
     
@@ -90,9 +228,72 @@ public class SCGIListener implements Runnable
         // setup the metrics
         IntelligenceSource source = Witchcraft.get().source("com.intrbiz.balsa");
         this.accepts                    = source.getRegistry().counter(Witchcraft.name(SCGIListener.class, "accepts"));
+        this.rejected                   = source.getRegistry().counter(Witchcraft.name(SCGIListener.class, "rejected"));
+        this.shed                       = source.getRegistry().counter(Witchcraft.name(SCGIListener.class, "shed"));
+        this.timeouts                   = source.getRegistry().counter(Witchcraft.name(SCGIListener.class, "request-timeouts"));
+        this.badRequests                = source.getRegistry().counter(Witchcraft.name(SCGIListener.class, "bad-requests"));
         this.requestDuration            = source.getRegistry().timer(  Witchcraft.name(SCGIListener.class, "request-duration"));
         this.requestHeaderParseDuration = source.getRegistry().timer(  Witchcraft.name(SCGIListener.class, "request-header-parse-duration"));
         this.requestProcessDuration     = source.getRegistry().timer(  Witchcraft.name(SCGIListener.class, "request-process-duration"));
+        // saturation gauges
+        if (GAUGES_REGISTERED.compareAndSet(false, true)) registerGauges(source.getRegistry());
+    }
+
+    /**
+     * Register the saturation gauges, once, aggregated across all running listeners
+     */
+    private static void registerGauges(MetricRegistry registry)
+    {
+        register(registry, Witchcraft.name(SCGIListener.class, "queue-depth"), new Gauge<Integer>() {
+            public Integer getValue()
+            {
+                int depth = 0;
+                for (SCGIListener listener : RUNNING)
+                {
+                    depth += listener.getQueueDepth();
+                }
+                return depth;
+            }
+        });
+        register(registry, Witchcraft.name(SCGIListener.class, "workers"), new Gauge<Integer>() {
+            public Integer getValue()
+            {
+                int count = 0;
+                for (SCGIListener listener : RUNNING)
+                {
+                    count += listener.getWorkerCount();
+                }
+                return count;
+            }
+        });
+        register(registry, Witchcraft.name(SCGIListener.class, "busy-workers"), new Gauge<Integer>() {
+            public Integer getValue()
+            {
+                int count = 0;
+                for (SCGIListener listener : RUNNING)
+                {
+                    count += listener.getBusyWorkerCount();
+                }
+                return count;
+            }
+        });
+        register(registry, Witchcraft.name(SCGIListener.class, "async-requests"), new Gauge<Integer>() {
+            public Integer getValue()
+            {
+                int count = 0;
+                for (SCGIListener listener : RUNNING)
+                {
+                    count += listener.getAsyncRequestCount();
+                }
+                return count;
+            }
+        });
+    }
+
+    private static void register(MetricRegistry registry, String name, Gauge<Integer> gauge)
+    {
+        registry.remove(name);
+        registry.register(name, gauge);
     }
 
     public SCGIListener(int port)
@@ -105,14 +306,14 @@ public class SCGIListener implements Runnable
     {
         this();
         this.port = port;
-        this.poolSize = poolSize;
+        this.setPoolSize(poolSize);
     }
     
     public SCGIListener(int port, int poolSize, SCGIProcessor processor)
     {
         this();
         this.port = port;
-        this.poolSize = poolSize;
+        this.setPoolSize(poolSize);
         this.processor = processor;
     }
 
@@ -131,19 +332,285 @@ public class SCGIListener implements Runnable
         this.port = port;
     }
 
+    public boolean isReusePort()
+    {
+        return reusePort;
+    }
+
+    /**
+     * Bind the listening socket with SO_REUSEPORT, allowing many 
+     * listeners to bind the same port (Java 9+, Linux 3.9+)
+     * @param reusePort
+     * returns void
+     */
+    public void setReusePort(boolean reusePort)
+    {
+        this.reusePort = reusePort;
+    }
+
+    public String getShard()
+    {
+        return shard;
+    }
+
+    /**
+     * The name of this listener, when it is one of many listening on the same port.  
+     * Shards have their own accepts, queue depth and busy worker metrics.
+     * @param shard
+     * returns void
+     */
+    public void setShard(String shard)
+    {
+        this.shard = shard;
+    }
+
     public int getPoolSize()
     {
-        return poolSize;
+        return this.maxPoolSize;
     }
 
     /**
-     * The number of worker threads
+     * The number of worker threads, this sets both the minimum and maximum pool size
      * @param poolSize
      * returns void
      */
     public void setPoolSize(int poolSize)
     {
-        this.poolSize = poolSize;
+        this.setMaxPoolSize(poolSize);
+        this.setMinPoolSize(poolSize);
+    }
+
+    public int getMinPoolSize()
+    {
+        return this.minPoolSize;
+    }
+
+    /**
+     * The minimum number of worker threads, which are kept even when idle
+     * @param minPoolSize
+     * returns void
+     */
+    public void setMinPoolSize(int minPoolSize)
+    {
+        this.minPoolSize = minPoolSize;
+        if (this.maxPoolSize < minPoolSize) this.maxPoolSize = minPoolSize;
+        // grow the pool if we are running
+        if (this.run)
+        {
+            while (this.workerCount.get() < this.minPoolSize)
+            {
+                if (! this.spawnWorker(this.minPoolSize)) break;
+            }
+        }
+    }
+
+    public int getMaxPoolSize()
+    {
+        return this.maxPoolSize;
+    }
+
+    /**
+     * The maximum number of worker threads, workers are added up to this size 
+     * when requests are queued and all workers are busy.  Should the pool be 
+     * shrunk at runtime, surplus workers exit after their current request or 
+     * once they have been idle for the worker keep alive.  Up to twice this 
+     * many connections may wait in the run queue for a worker.
+     * @param maxPoolSize
+     * returns void
+     */
+    public void setMaxPoolSize(int maxPoolSize)
+    {
+        this.maxPoolSize = maxPoolSize;
+        if (this.minPoolSize > maxPoolSize) this.minPoolSize = maxPoolSize;
+    }
+
+    public long getWorkerKeepAlive()
+    {
+        return this.workerKeepAlive;
+    }
+
+    /**
+     * How long, in milliseconds, workers above the minimum pool size may be idle before exiting
+     * @param workerKeepAlive
+     * returns void
+     */
+    public void setWorkerKeepAlive(long workerKeepAlive)
+    {
+        this.workerKeepAlive = workerKeepAlive;
+    }
+
+    public long getHeaderTimeout()
+    {
+        return headerTimeout;
+    }
+
+    /**
+     * The time allowed to read the request headers, once a worker 
+     * has started processing the connection
+     * @param headerTimeout the timeout in milliseconds, 0 for no limit
+     * returns void
+     */
+    public void setHeaderTimeout(long headerTimeout)
+    {
+        this.headerTimeout = headerTimeout;
+    }
+
+    public long getBodyTimeout()
+    {
+        return bodyTimeout;
+    }
+
+    /**
+     * The time allowed to read the request body, once the headers have been 
+     * read.  The timeout only applies whilst waiting for the body to arrive.  
+     * By default there is no limit.
+     * @param bodyTimeout the timeout in milliseconds, 0 for no limit
+     * returns void
+     */
+    public void setBodyTimeout(long bodyTimeout)
+    {
+        this.bodyTimeout = bodyTimeout;
+    }
+
+    public long getRequestTimeout()
+    {
+        return requestTimeout;
+    }
+
+    /**
+     * The time allowed to process the whole request, including reading the 
+     * headers and body.  By default there is no limit.
+     * @param requestTimeout the timeout in milliseconds, 0 for no limit
+     * returns void
+     */
+    public void setRequestTimeout(long requestTimeout)
+    {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public long getTimeoutCount()
+    {
+        return this.timeouts.getCount();
+    }
+
+    public int getMaxHeaderBytes()
+    {
+        return this.maxHeaderBytes;
+    }
+
+    /**
+     * The maximum size of the request headers netstring, larger requests are 
+     * rejected before the headers are read
+     * @param maxHeaderBytes the limit in bytes
+     * returns void
+     */
+    public void setMaxHeaderBytes(int maxHeaderBytes)
+    {
+        this.maxHeaderBytes = maxHeaderBytes;
+    }
+
+    public int getMaxVariables()
+    {
+        return this.maxVariables;
+    }
+
+    /**
+     * The maximum number of SCGI variables, including headers, in a request
+     * @param maxVariables the limit
+     * returns void
+     */
+    public void setMaxVariables(int maxVariables)
+    {
+        this.maxVariables = maxVariables;
+    }
+
+    public int getMaxNameLength()
+    {
+        return this.maxNameLength;
+    }
+
+    /**
+     * The maximum length of the name of a SCGI variable
+     * @param maxNameLength the limit in bytes
+     * returns void
+     */
+    public void setMaxNameLength(int maxNameLength)
+    {
+        this.maxNameLength = maxNameLength;
+    }
+
+    public int getMaxValueLength()
+    {
+        return this.maxValueLength;
+    }
+
+    /**
+     * The maximum length of the value of a SCGI variable
+     * @param maxValueLength the limit in bytes
+     * returns void
+     */
+    public void setMaxValueLength(int maxValueLength)
+    {
+        this.maxValueLength = maxValueLength;
+    }
+
+    public int getArenaSize()
+    {
+        return this.arenaSize;
+    }
+
+    /**
+     * Give each worker an off heap arena of the given size, so that a request 
+     * body which fits is available as a ByteBuffer via SCGIRequest.getBodyBuffer().  
+     * The body is only read into the arena when getBodyBuffer() is called, a 
+     * body which is only read as a stream is not copied.  Note that reading into 
+     * the arena copies the body through a pooled heap buffer, and that reading 
+     * the input stream afterwards copies it back onto the heap, so this only 
+     * pays for processors which consume the body as a ByteBuffer.  The arena 
+     * is reset in one go once the request is finished.  By default there is 
+     * no arena.
+     * @param arenaSize the arena size in bytes, 0 to disable
+     * returns void
+     */
+    public void setArenaSize(int arenaSize)
+    {
+        this.arenaSize = arenaSize;
+    }
+
+    public long getBadRequestCount()
+    {
+        return this.badRequests.getCount();
+    }
+
+    public int getWorkerCount()
+    {
+        return this.workerCount.get();
+    }
+
+    public int getBusyWorkerCount()
+    {
+        return this.busyWorkers.get();
+    }
+
+    public int getAsyncRequestCount()
+    {
+        return this.asyncRequests.get();
+    }
+
+    public int getQueueDepth()
+    {
+        BlockingQueue<SCGIConnection> queue = this.runQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    public long getRejectedCount()
+    {
+        return this.rejected.getCount();
+    }
+
+    public long getShedCount()
+    {
+        return this.shed.getCount();
     }
 
     public SCGIProcessor getProcessor()
@@ -161,6 +628,61 @@ public class SCGIListener implements Runnable
         this.processor = processor;
     }
 
+    public SCGIAsyncProcessor getAsyncProcessor()
+    {
+        return asyncProcessor;
+    }
+
+    /**
+     * Process requests asynchronously, the worker returns to the pool as soon 
+     * as the processor returns, rather than once the request has completed.  
+     * When set, this is used in place of the processor.
+     * @param asyncProcessor the processor or null to process requests synchronously
+     * returns void
+     */
+    public void setAsyncProcessor(SCGIAsyncProcessor asyncProcessor)
+    {
+        this.asyncProcessor = asyncProcessor;
+    }
+
+    public CoDel getQueuePolicy()
+    {
+        return queuePolicy;
+    }
+
+    /**
+     * Shed requests which have waited in the run queue for too long, 
+     * using the given CoDel policy.  By default no requests are shed.
+     * @param queuePolicy the policy or null to disable
+     * returns void
+     */
+    public void setQueuePolicy(CoDel queuePolicy)
+    {
+        this.queuePolicy = queuePolicy;
+    }
+
+    public WaitStrategy getRunQueueWaitStrategy()
+    {
+        return runQueueWaitStrategy;
+    }
+
+    /**
+     * Use a preallocated ring buffer for the run queue, rather than a 
+     * LinkedBlockingQueue, with workers waiting for requests using the 
+     * given strategy.  The spinning strategies give lower hand off latency 
+     * at the cost of idle workers burning CPU.  By default a LinkedBlockingQueue 
+     * is used.  This must be set before the listener is started.  The ring 
+     * buffer is allocated when the listener starts, with room for at least 
+     * 1024 connections, so the run queue cannot grow beyond its size should 
+     * the maximum pool size be raised further at runtime.
+     * @param runQueueWaitStrategy the wait strategy or null for the default run queue
+     * returns void
+     */
+    public void setRunQueueWaitStrategy(WaitStrategy runQueueWaitStrategy)
+    {
+        this.runQueueWaitStrategy = runQueueWaitStrategy;
+    }
+
     boolean isRun()
     {
         return this.run;
@@ -178,33 +700,25 @@ public class SCGIListener implements Runnable
     {
         try
         {
-            this.listenerThread = new Thread(new ThreadGroup("SCGI"), this, "SCGIListener");
-            // factory
-            this.workerFactory = new ThreadFactory() {
-                
-                private int count = 0;
-                private ThreadGroup group = new ThreadGroup("SCGI");
-                
-                public Thread newThread(Runnable r)
-                {
-                    return new Thread(this.group, r, "SCGIWorker-" + (++count));
-                }
-            };
-            // runqueue
-            this.runQueue = new LinkedBlockingQueue<Socket>(this.getPoolSize() * 2);
-            // prefork
-            this.run = true;
-            this.workers = new SCGIWorker[this.getPoolSize()];
-            for (int i = 0; i < this.workers.length; i++)
-            {
-                this.workers[i] = new SCGIWorker(this, this.runQueue, this.workerFactory, this.requestDuration, this.requestHeaderParseDuration, this.requestProcessDuration);
-                this.workers[i].start();
-            }
+            this.listenerThread = new Thread(new ThreadGroup("SCGI"), this, this.shard == null ? "SCGIListener" : "SCGIListener-" + this.shard);
+            // per shard metrics
+            if (this.shard != null) this.registerShardMetrics();
             // listen
-            this.server = new ServerSocket(this.getPort());
-            this.server.setSoTimeout(20000);
+            this.bind();
+            // workers
+            this.run = true;
+            this.startWorkers();
+            this.startReaper();
+            this.startRejector();
             // start the listener
-            this.listenerThread.start();
+            this.startListener();
+            // expose via JMX and the listener gauges
+            this.registerMBean();
+            RUNNING.add(this);
+        }
+        catch (SCGIException e)
+        {
+            throw e;
         }
         catch (BindException e)
         {
@@ -216,6 +730,452 @@ public class SCGIListener implements Runnable
         }
     }
 
+    /**
+     * Start the listener thread, which accepts connections
+     * returns void
+     */
+    protected void startListener()
+    {
+        this.listenerThread.start();
+    }
+
+    /**
+     * Start the thread which closes connections which have timed out
+     * returns void
+     */
+    protected void startReaper()
+    {
+        this.reaperThread = new Thread(this.listenerThread.getThreadGroup(), new Runnable() {
+            public void run()
+            {
+                while (run)
+                {
+                    try
+                    {
+                        Thread.sleep(REAPER_INTERVAL);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        break;
+                    }
+                    reap();
+                }
+            }
+        }, this.shard == null ? "SCGIReaper" : "SCGIReaper-" + this.shard);
+        this.reaperThread.setDaemon(true);
+        this.reaperThread.start();
+    }
+
+    /**
+     * Start the thread which sends the 503 response to connections rejected 
+     * by the acceptor
+     * returns void
+     */
+    protected void startRejector()
+    {
+        this.rejectorThread = new Thread(this.listenerThread.getThreadGroup(), new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    while (run)
+                    {
+                        SCGIConnection client = rejectQueue.poll(REAPER_INTERVAL, TimeUnit.MILLISECONDS);
+                        if (client != null) reject(client);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                }
+                // close anything left once stopped
+                SCGIConnection client;
+                while ((client = rejectQueue.poll()) != null)
+                {
+                    closeQuietly(client);
+                }
+            }
+        }, this.shard == null ? "SCGIRejector" : "SCGIRejector-" + this.shard);
+        this.rejectorThread.setDaemon(true);
+        this.rejectorThread.start();
+    }
+
+    private static void closeQuietly(SCGIConnection client)
+    {
+        try
+        {
+            client.close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    private void reap()
+    {
+        long now = System.nanoTime();
+        for (SCGIConnection client : this.timedConnections)
+        {
+            if (client.expire(now))
+            {
+                this.timedConnections.remove(client);
+                this.timedOut();
+            }
+        }
+    }
+
+    /**
+     * Start enforcing the header and request timeouts on the given connection
+     */
+    void startTimeouts(SCGIConnection client)
+    {
+        if (this.headerTimeout > 0 || this.bodyTimeout > 0 || this.requestTimeout > 0)
+        {
+            client.startTimeouts(this.headerTimeout, this.requestTimeout);
+            this.timedConnections.add(client);
+        }
+    }
+
+    void stopTimeouts(SCGIConnection client)
+    {
+        this.timedConnections.remove(client);
+    }
+
+    /**
+     * Record that a connection was closed due to a timeout
+     * returns void
+     */
+    protected void timedOut()
+    {
+        this.timeouts.inc();
+    }
+
+    /**
+     * Record that a request was malformed or exceeded our limits
+     * @param e why the request was rejected
+     * @return the canned response to send
+     */
+    protected byte[] badRequest(SCGIBadRequestException e)
+    {
+        this.badRequests.inc();
+        if (logger.isDebugEnabled()) logger.debug("Rejecting bad request: " + e.getMessage());
+        return e.getStatus() == HTTPStatus.RequestEntityTooLarge ? REQUEST_TOO_LARGE : BAD_REQUEST;
+    }
+
+    /**
+     * Reject a request which is malformed or exceeds our limits, without processing it
+     * @param client the connection
+     * @param e why the request was rejected
+     * returns void
+     */
+    void rejectBadRequest(SCGIConnection client, SCGIBadRequestException e)
+    {
+        client.abort(this.badRequest(e));
+    }
+
+    /**
+     * Create and start the workers which will process requests
+     * returns void
+     */
+    protected void startWorkers() throws IOException
+    {
+        // factory
+        this.workerFactory = new ThreadFactory() {
+            
+            private final AtomicInteger count = new AtomicInteger();
+            private ThreadGroup group = new ThreadGroup("SCGI");
+            
+            public Thread newThread(Runnable r)
+            {
+                return new Thread(this.group, r, (shard == null ? "SCGIWorker-" : "SCGIWorker-" + shard + "-") + this.count.incrementAndGet());
+            }
+        };
+        // runqueue
+        this.runQueue = this.newRunQueue(this.getRunQueueCapacity());
+        // prefork
+        while (this.workerCount.get() < this.minPoolSize)
+        {
+            if (! this.spawnWorker(this.minPoolSize)) break;
+        }
+    }
+
+    /**
+     * The number of connections which may wait for a worker, which follows 
+     * the maximum pool size as it is changed at runtime
+     */
+    protected int getRunQueueCapacity()
+    {
+        return this.maxPoolSize * 2;
+    }
+
+    /**
+     * Create the queue which connections wait in for a worker, the queue is 
+     * bounded by dispatch() to the run queue capacity rather than by its size
+     * @param capacity the current run queue capacity
+     */
+    protected BlockingQueue<SCGIConnection> newRunQueue(int capacity)
+    {
+        if (this.runQueueWaitStrategy != null) return new RingBufferQueue<SCGIConnection>(Math.max(capacity, MIN_RING_RUN_QUEUE_CAPACITY), this.runQueueWaitStrategy);
+        return new LinkedBlockingQueue<SCGIConnection>();
+    }
+
+    /**
+     * Start another worker, provided the pool is smaller than the given limit
+     * @return true if a worker was started
+     */
+    private boolean spawnWorker(int limit)
+    {
+        if (this.workerFactory == null) return false;
+        int count;
+        do
+        {
+            count = this.workerCount.get();
+            if (count >= limit) return false;
+        }
+        while (! this.workerCount.compareAndSet(count, count + 1));
+        SCGIWorker worker = new SCGIWorker(this, this.workerFactory, this.acquireHandler());
+        this.workers.add(worker);
+        worker.start();
+        return true;
+    }
+
+    /**
+     * Add a worker to the pool, provided the pool is below its maximum size
+     * returns void
+     */
+    protected void growPool()
+    {
+        this.spawnWorker(this.maxPoolSize);
+    }
+
+    /**
+     * Should the given worker exit, either because it has been idle 
+     * and the pool is above its minimum size, or the pool is above its 
+     * maximum size
+     * @param worker the worker
+     * @param idle has the worker been idle for the keep alive
+     * @return true if the worker must exit
+     */
+    boolean retireWorker(SCGIWorker worker, boolean idle)
+    {
+        int count;
+        do
+        {
+            count = this.workerCount.get();
+            if (count <= (idle ? this.minPoolSize : this.maxPoolSize)) return false;
+        }
+        while (! this.workerCount.compareAndSet(count, count - 1));
+        this.workers.remove(worker);
+        return true;
+    }
+
+    void workerBusy()
+    {
+        this.busyWorkers.incrementAndGet();
+    }
+
+    void workerIdle()
+    {
+        this.busyWorkers.decrementAndGet();
+    }
+
+    /**
+     * Create a handler, which owns a request and response
+     * @return a new handler
+     * returns SCGIHandler
+     */
+    protected SCGIHandler newHandler()
+    {
+        return new SCGIHandler(this, this.requestDuration, this.requestHeaderParseDuration, this.requestProcessDuration);
+    }
+
+    /**
+     * Get an idle handler, creating one if needed
+     */
+    protected SCGIHandler acquireHandler()
+    {
+        SCGIHandler handler = this.idleHandlers.poll();
+        if (handler == null) return this.newHandler();
+        this.idleHandlerCount.decrementAndGet();
+        return handler;
+    }
+
+    /**
+     * Return a handler which is no longer processing a request, up to 
+     * the maximum pool size idle handlers are kept for reuse
+     */
+    protected void releaseHandler(SCGIHandler handler)
+    {
+        if (this.idleHandlerCount.incrementAndGet() > this.maxPoolSize)
+        {
+            this.idleHandlerCount.decrementAndGet();
+            return;
+        }
+        this.idleHandlers.offer(handler);
+    }
+
+    void asyncStarted()
+    {
+        this.asyncRequests.incrementAndGet();
+    }
+
+    void asyncComplete(SCGIHandler handler)
+    {
+        this.asyncRequests.decrementAndGet();
+        if (handler != null) this.releaseHandler(handler);
+    }
+
+    private void registerShardMetrics()
+    {
+        IntelligenceSource source = Witchcraft.get().source("com.intrbiz.balsa");
+        this.shardAccepts = source.getRegistry().counter(Witchcraft.name(SCGIListener.class, this.shard, "accepts"));
+        // shard names are unique, so these gauges are bound to this listener
+        register(source.getRegistry(), Witchcraft.name(SCGIListener.class, this.shard, "queue-depth"), new Gauge<Integer>() {
+            public Integer getValue()
+            {
+                return getQueueDepth();
+            }
+        });
+        register(source.getRegistry(), Witchcraft.name(SCGIListener.class, this.shard, "busy-workers"), new Gauge<Integer>() {
+            public Integer getValue()
+            {
+                return getBusyWorkerCount();
+            }
+        });
+    }
+
+    /**
+     * Record that a connection has been accepted
+     * returns void
+     */
+    protected void accepted()
+    {
+        this.accepts.inc();
+        if (this.shardAccepts != null) this.shardAccepts.inc();
+    }
+
+    public long getAcceptCount()
+    {
+        return this.shardAccepts != null ? this.shardAccepts.getCount() : this.accepts.getCount();
+    }
+
+    /**
+     * Create the server socket, bound to our port
+     * @throws IOException
+     * returns ServerSocket
+     */
+    protected ServerSocket openServerSocket() throws IOException
+    {
+        ServerSocket server = new ServerSocket();
+        try
+        {
+            if (this.reusePort) Platform.setReusePort(server);
+            server.bind(new InetSocketAddress(this.getPort()));
+            return server;
+        }
+        catch (IOException e)
+        {
+            server.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Bind the listening socket
+     * @throws IOException
+     * returns void
+     */
+    protected void bind() throws IOException
+    {
+        this.server = this.openServerSocket();
+        this.server.setSoTimeout(20000);
+    }
+
+    /**
+     * Close the listening socket
+     * @throws IOException
+     * returns void
+     */
+    protected void unbind() throws IOException
+    {
+        if (this.server != null) this.server.close();
+    }
+
+    /**
+     * Hand a connection over to the workers
+     * @param client the connection to process
+     * returns void
+     */
+    protected void dispatch(SCGIConnection client)
+    {
+        BlockingQueue<SCGIConnection> queue = this.runQueue;
+        if (queue.size() >= this.getRunQueueCapacity() || ! queue.offer(client))
+        {
+            this.rejectLater(client);
+        }
+        // grow the pool if the run queue is backing up
+        if (queue.size() > this.workerCount.get() - this.busyWorkers.get()) this.growPool();
+    }
+
+    /**
+     * Reject a connection which could not be dispatched, the 503 response is 
+     * sent by the rejector thread so that the acceptor is not held up
+     * @param client the connection
+     * returns void
+     */
+    protected void rejectLater(SCGIConnection client)
+    {
+        this.rejected.inc();
+        // should the rejector be backed up as well just close the connection
+        if (! this.rejectQueue.offer(client)) closeQuietly(client);
+    }
+
+    /**
+     * Wait for the next connection to process, called by the workers
+     * @param timeout how long to wait, in milliseconds
+     * @return the connection or null if none arrived within the timeout
+     * @throws InterruptedException
+     * returns SCGIConnection
+     */
+    protected SCGIConnection nextConnection(long timeout) throws InterruptedException
+    {
+        return this.runQueue.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Should a connection taken from the run queue be shed, rather than processed, 
+     * since it has waited too long.  Shed connections are rejected.
+     * @param client the connection taken from the run queue
+     * @return true if the connection was shed
+     * returns boolean
+     */
+    protected boolean shed(SCGIConnection client)
+    {
+        CoDel policy = this.queuePolicy;
+        if (policy != null)
+        {
+            long now = System.nanoTime();
+            if (policy.shouldDrop(now - client.getQueued(), now))
+            {
+                this.shed.inc();
+                this.reject(client);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reject a connection which we are too busy to process, with a 503 response, 
+     * this is called by the rejector thread or by a worker when shedding
+     * @param client the connection
+     * returns void
+     */
+    protected void reject(SCGIConnection client)
+    {
+        if (logger.isTraceEnabled()) logger.trace("Rejecting request, waited " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - client.getQueued()) + "ms");
+        client.abort(SERVICE_UNAVAILABLE);
+    }
+
     public void run()
     {
         while (this.run)
@@ -224,8 +1184,8 @@ public class SCGIListener implements Runnable
             {
                 // Place the socket onto the run queue
                 Socket client = this.server.accept();
-                this.accepts.inc();
-                this.runQueue.offer(client);
+                this.accepted();
+                this.dispatch(new SCGIConnection(client));
             }
             catch (SocketTimeoutException e)
             {
@@ -233,7 +1193,7 @@ public class SCGIListener implements Runnable
             }
             catch (IOException e)
             {
-                logger.fatal("Error during listener run loop", e);
+                if (this.run) logger.fatal("Error during listener run loop", e);
             }
         }
     }
@@ -241,28 +1201,66 @@ public class SCGIListener implements Runnable
     public void shutdown()
     {
         this.stop();
-        if (this.workers != null)
+        for (SCGIWorker worker : this.workers)
         {
-            for (SCGIWorker worker : this.workers)
-            {
-                worker.await();
-            }
+            worker.await();
         }
     }
 
     public void stop()
     {
-        if (this.server != null)
+        this.run = false;
+        RUNNING.remove(this);
+        try
+        {
+            this.unbind();
+        }
+        catch (Exception e)
+        {
+        }
+        if (this.reaperThread != null) this.reaperThread.interrupt();
+        if (this.rejectorThread != null) this.rejectorThread.interrupt();
+        // wake any workers waiting on the run queue
+        for (SCGIWorker worker : this.workers)
+        {
+            worker.interrupt();
+        }
+        this.unregisterMBean();
+    }
+
+    /**
+     * The JMX name of this listener
+     */
+    protected ObjectName getObjectName() throws Exception
+    {
+        return new ObjectName("com.intrbiz.balsa:type=SCGIListener,port=" + this.getPort() + (this.shard == null ? "" : ",shard=" + ObjectName.quote(this.shard)));
+    }
+
+    private void registerMBean()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = this.getObjectName();
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }
+        catch (Exception e)
+        {
+            logger.warn("Failed to register SCGI Listener with JMX", e);
+        }
+    }
+
+    private void unregisterMBean()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = this.getObjectName();
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        }
+        catch (Exception e)
         {
-            try
-            {
-                this.run = false;
-                this.runQueue.notifyAll();
-                this.server.close();
-            }
-            catch (Exception e)
-            {
-            }
         }
     }
 }
@@ -0,0 +1,130 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.intrbiz.balsa.scgi;
+
+/**
+ * Manage and monitor a SCGI Listener via JMX
+ */
+public interface SCGIListenerMXBean
+{
+    int getPort();
+
+    String getShard();
+
+    int getMinPoolSize();
+
+    void setMinPoolSize(int minPoolSize);
+
+    int getMaxPoolSize();
+
+    void setMaxPoolSize(int maxPoolSize);
+
+    long getWorkerKeepAlive();
+
+    void setWorkerKeepAlive(long workerKeepAlive);
+
+    long getHeaderTimeout();
+
+    void setHeaderTimeout(long headerTimeout);
+
+    long getBodyTimeout();
+
+    void setBodyTimeout(long bodyTimeout);
+
+    long getRequestTimeout();
+
+    void setRequestTimeout(long requestTimeout);
+
+    int getMaxHeaderBytes();
+
+    void setMaxHeaderBytes(int maxHeaderBytes);
+
+    int getMaxVariables();
+
+    void setMaxVariables(int maxVariables);
+
+    int getMaxNameLength();
+
+    void setMaxNameLength(int maxNameLength);
+
+    int getMaxValueLength();
+
+    void setMaxValueLength(int maxValueLength);
+
+    /**
+     * The size of the off heap arena of each worker, 0 when arenas are not used
+     */
+    int getArenaSize();
+
+    void setArenaSize(int arenaSize);
+
+    /**
+     * The number of workers currently in the pool
+     */
+    int getWorkerCount();
+
+    /**
+     * The number of workers currently processing a request
+     */
+    int getBusyWorkerCount();
+
+    /**
+     * The number of requests waiting for a worker
+     */
+    int getQueueDepth();
+
+    /**
+     * The number of connections accepted
+     */
+    long getAcceptCount();
+
+    /**
+     * The number of requests being processed asynchronously
+     */
+    int getAsyncRequestCount();
+
+    /**
+     * The number of connections closed due to a timeout
+     */
+    long getTimeoutCount();
+
+    /**
+     * The number of requests rejected because they were malformed or exceeded our limits
+     */
+    long getBadRequestCount();
+
+    /**
+     * The number of requests rejected because the run queue was full
+     */
+    long getRejectedCount();
+
+    /**
+     * The number of requests shed because they waited too long in the run queue
+     */
+    long getShedCount();
+}
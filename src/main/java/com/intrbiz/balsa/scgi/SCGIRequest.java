@@ -27,22 +27,27 @@
 
 package com.intrbiz.balsa.scgi;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
 
+import com.intrbiz.balsa.SCGIBadRequestException;
 import com.intrbiz.balsa.http.HTTP.SCGI;
 import com.intrbiz.balsa.parameter.ListParameter;
 import com.intrbiz.balsa.parameter.Parameter;
 import com.intrbiz.balsa.parameter.StringParameter;
+import com.intrbiz.balsa.util.CompactParameterSet;
 import com.intrbiz.balsa.util.CookieSet;
+import com.intrbiz.balsa.util.FlatMap;
 import com.intrbiz.balsa.util.LengthLimitedSocketInputStream;
 import com.intrbiz.balsa.util.ParameterSet;
+import com.intrbiz.balsa.util.RequestArena;
 
 
 /**
@@ -57,7 +62,13 @@ public class SCGIRequest implements ParameterSet, CookieSet
 {
     private Logger logger = Logger.getLogger(SCGIRequest.class);
     
-    private int contentLength = 0;
+    private final SCGIVariableIndex index = new SCGIVariableIndex();
+
+    private boolean headersDecoded = false;
+
+    private boolean variablesDecoded = false;
+
+    private int contentLength = -1;
 
     private String contentType;
 
@@ -69,13 +80,13 @@ public class SCGIRequest implements ParameterSet, CookieSet
 
     private String serverAddress;
 
-    private int serverPort;
+    private int serverPort = -1;
 
     private String serverProtocol;
 
     private String remoteAddress;
 
-    private int remotePort;
+    private int remotePort = -1;
 
     private String requestMethod;
     
@@ -93,19 +104,52 @@ public class SCGIRequest implements ParameterSet, CookieSet
 
     private String documentRoot;
 
-    private Map<String, String> headers = new TreeMap<String, String>();
+    // these maps keep their arrays when cleared, for the next request on this worker
+    private Map<String, String> headers = new FlatMap<String>();
 
-    private Map<String, String> scgiVariables = new TreeMap<String, String>();
+    private Map<String, String> scgiVariables = new FlatMap<String>();
+
+    private Map<String, Parameter> parameters = new FlatMap<Parameter>();
+
+    /**
+     * Immutable parameters shared with other requests, which are copied 
+     * into parameters should they be changed
+     */
+    private Map<String, Parameter> sharedParameters;
 
-    private Map<String, Parameter> parameters = new TreeMap<String, Parameter>();
+    /**
+     * Holds the parameters when compact, kept for the next request on this worker
+     */
+    private CompactParameterSet compactParameters;
 
-    private Map<String, String> cookies = new TreeMap<String, String>();
+    /**
+     * Are the parameters held by compactParameters rather than parameters
+     */
+    private boolean compact;
+
+    /**
+     * Parses the parameters when they are first accessed
+     */
+    private SCGIParameterParser parameterParser;
+
+    /**
+     * Why the deferred parameters failed to parse
+     */
+    private Exception parameterFailure;
+
+    private Map<String, String> cookies = new FlatMap<String>();
 
     private InputStream input;
     
     private LengthLimitedSocketInputStream bodyInput = null;
 
+    private boolean inputUsed = false;
+
     private Object body;
+
+    private ByteBuffer bodyBuffer;
+
+    private RequestArena arena;
     
     private long processingStart;
     
@@ -116,88 +160,107 @@ public class SCGIRequest implements ParameterSet, CookieSet
         super();
     }
 
+    /**
+     * Set the variables of this request from the given SCGI header block, 
+     * the variables are only decoded when they are accessed so the block 
+     * must remain unchanged until this request is deactivated.
+     */
+    public void variables(byte[] block, int offset, int length)
+    {
+        this.index.index(block, offset, length);
+        this.traceVariables();
+    }
+
+    /**
+     * Use the given raw header block, rejecting it should it be malformed or exceed any of the given limits
+     * @param maxVariables the maximum number of variables
+     * @param maxNameLength the maximum length of a variable name
+     * @param maxValueLength the maximum length of a variable value
+     * @throws SCGIBadRequestException should the block be malformed or exceed a limit
+     */
+    public void variables(byte[] block, int offset, int length, int maxVariables, int maxNameLength, int maxValueLength) throws SCGIBadRequestException
+    {
+        this.index.index(block, offset, length, maxVariables, maxNameLength, maxValueLength);
+        this.traceVariables();
+    }
+
+    private void traceVariables()
+    {
+        if (this.logger.isTraceEnabled())
+        {
+            for (int entry = 0; entry < this.index.size(); entry++)
+            {
+                this.logger.trace("SCGI Variable: " + this.index.name(entry) + " => " + this.index.value(entry));
+            }
+        }
+    }
+
     public void variable(String name, String value)
     {
         if (this.logger.isTraceEnabled()) this.logger.trace("SCGI Variable: " + name + " => " + value);
-        if (name.startsWith("HTTP"))
+        if (name.startsWith("HTTP_"))
         {
             this.headers.put(name.substring(5), value);
+            return;
         }
-        else if (SCGI.CONTENT_LENGTH.equals(name))
-        {
-            this.contentLength = Integer.parseInt(value);
-        }
-        else if (SCGI.CONTENT_TYPE.equals(name))
+        switch (SCGIVariableIndex.knownId(name))
         {
-            this.contentType = value;
-        }
-        else if (SCGI.SCGI.equals(name))
-        {
-            this.version = value;
-        }
-        else if (SCGI.SERVER_SOFTWARE.equals(name))
-        {
-            this.serverSoftware = value;
-        }
-        else if (SCGI.SERVER_NAME.equals(name))
-        {
-            this.serverName = value;
-        }
-        else if (SCGI.SERVER_ADDR.equals(name))
-        {
-            this.serverAddress = value;
-        }
-        else if (SCGI.SERVER_PORT.equals(name))
-        {
-            this.serverPort = Integer.parseInt(value);
-        }
-        else if (SCGI.SERVER_PROTOCOL.equals(name))
-        {
-            this.serverProtocol = value;
-        }
-        else if (SCGI.REMOTE_ADDR.equals(name))
-        {
-            this.remoteAddress = value;
-        }
-        else if (SCGI.REMOTE_PORT.equals(name))
-        {
-            this.remotePort = Integer.parseInt(value);
-        }
-        else if (SCGI.REQUEST_METHOD.equals(name))
-        {
-            this.requestMethod = value;
-        }
-        else if (SCGI.REQUEST_SCHEME.equals(name))
-        {
-            this.requestScheme = value;
-        }
-        else if (SCGI.REQUEST_URI.equals(name))
-        {
-            this.requestUri = value;
-        }
-        else if (SCGI.PATH_INFO.equals(name))
-        {
-            this.pathInfo = value;
-        }
-        else if (SCGI.QUERY_STRING.equals(name))
-        {
-            this.queryString = value;
-        }
-        else if (SCGI.SCRIPT_NAME.equals(name))
-        {
-            this.scriptName = value;
-        }
-        else if (SCGI.SCRIPT_FILENAME.equals(name))
-        {
-            this.scriptFileName = value;
-        }
-        else if (SCGI.DOCUMENT_ROOT.equals(name))
-        {
-            this.documentRoot = value;
-        }
-        else
-        {
-            this.scgiVariables.put(name, value);
+            case SCGIVariableIndex.CONTENT_LENGTH:
+                this.contentLength = Integer.parseInt(value);
+                break;
+            case SCGIVariableIndex.CONTENT_TYPE:
+                this.contentType = value;
+                break;
+            case SCGIVariableIndex.SCGI_VERSION:
+                this.version = value;
+                break;
+            case SCGIVariableIndex.SERVER_SOFTWARE:
+                this.serverSoftware = value;
+                break;
+            case SCGIVariableIndex.SERVER_NAME:
+                this.serverName = value;
+                break;
+            case SCGIVariableIndex.SERVER_ADDR:
+                this.serverAddress = value;
+                break;
+            case SCGIVariableIndex.SERVER_PORT:
+                this.serverPort = Integer.parseInt(value);
+                break;
+            case SCGIVariableIndex.SERVER_PROTOCOL:
+                this.serverProtocol = value;
+                break;
+            case SCGIVariableIndex.REMOTE_ADDR:
+                this.remoteAddress = value;
+                break;
+            case SCGIVariableIndex.REMOTE_PORT:
+                this.remotePort = Integer.parseInt(value);
+                break;
+            case SCGIVariableIndex.REQUEST_METHOD:
+                this.requestMethod = value;
+                break;
+            case SCGIVariableIndex.REQUEST_SCHEME:
+                this.requestScheme = value;
+                break;
+            case SCGIVariableIndex.REQUEST_URI:
+                this.requestUri = value;
+                break;
+            case SCGIVariableIndex.PATH_INFO:
+                this.pathInfo = value;
+                break;
+            case SCGIVariableIndex.QUERY_STRING:
+                this.queryString = value;
+                break;
+            case SCGIVariableIndex.SCRIPT_NAME:
+                this.scriptName = value;
+                break;
+            case SCGIVariableIndex.SCRIPT_FILENAME:
+                this.scriptFileName = value;
+                break;
+            case SCGIVariableIndex.DOCUMENT_ROOT:
+                this.documentRoot = value;
+                break;
+            default:
+                this.scgiVariables.put(name, value);
         }
     }
 
@@ -215,21 +278,32 @@ public class SCGIRequest implements ParameterSet, CookieSet
         // clear all state!
         this.input = null;
         this.bodyInput = null;
+        this.inputUsed = false;
         this.body = null;
+        this.bodyBuffer = null;
+        this.arena = null;
+        this.index.clear();
+        this.headersDecoded = false;
+        this.variablesDecoded = false;
         this.headers.clear();
         this.scgiVariables.clear();
         this.parameters.clear();
+        this.sharedParameters = null;
+        this.compact = false;
+        if (this.compactParameters != null) this.compactParameters.clear();
+        this.parameterParser = null;
+        this.parameterFailure = null;
         this.cookies.clear();
-        this.contentLength = 0;
+        this.contentLength = -1;
         this.contentType = null;
         this.version = null;
         this.serverSoftware = null;
         this.serverName = null;
         this.serverAddress = null;
-        this.serverPort = 0;
+        this.serverPort = -1;
         this.serverProtocol = null;
         this.remoteAddress = null;
-        this.remotePort = 0;
+        this.remotePort = -1;
         this.requestMethod = null;
         this.requestScheme = null;
         this.requestUri = null;
@@ -254,169 +328,461 @@ public class SCGIRequest implements ParameterSet, CookieSet
     {
         if (this.bodyInput == null)
         {
-            this.bodyInput = new LengthLimitedSocketInputStream(this.contentLength, this.input);
+            this.bodyInput = new LengthLimitedSocketInputStream(this.getContentLength(), this.input);
         }
+        this.inputUsed = true;
         return this.bodyInput;
     }
 
+    /**
+     * Has the input stream been handed out, in which case the body may 
+     * already have been read
+     */
+    public boolean isInputUsed()
+    {
+        return this.inputUsed;
+    }
+
+    /**
+     * The request body, read into the off heap arena of the worker when this 
+     * is first called.  Any later reads of the input stream read the arena.
+     * @return a read only view of the body, valid until the request is finished, 
+     * or null should there be no arena, no body, the body not fit in the arena 
+     * or the input stream have already been used
+     * @throws IOException should reading the body fail
+     */
+    public ByteBuffer getBodyBuffer() throws IOException
+    {
+        if (this.bodyBuffer == null && this.arena != null && ! this.inputUsed)
+        {
+            int length = this.getContentLength();
+            int offset = length > 0 ? this.arena.read(this.input, length) : -1;
+            if (offset == -1) return null;
+            this.bodyBuffer = this.arena.slice(offset, length);
+            this.input = this.arena.input(offset, length);
+        }
+        return this.bodyBuffer == null ? null : this.bodyBuffer.duplicate();
+    }
+
+    /**
+     * The arena the body may be read into, should it be asked for as a buffer
+     */
+    public void arena(RequestArena arena)
+    {
+        this.arena = arena;
+    }
+
     public int getContentLength()
     {
-        return contentLength;
+        if (this.contentLength == -1) this.contentLength = this.index.intValue(this.index.find(SCGIVariableIndex.CONTENT_LENGTH), 0);
+        return this.contentLength;
     }
 
     public String getContentType()
     {
-        return contentType;
+        if (this.contentType == null) this.contentType = this.index.value(this.index.find(SCGIVariableIndex.CONTENT_TYPE));
+        return this.contentType;
     }
 
     public String getVersion()
     {
-        return version;
+        if (this.version == null) this.version = this.index.value(this.index.find(SCGIVariableIndex.SCGI_VERSION));
+        return this.version;
     }
 
     public String getServerSoftware()
     {
-        return serverSoftware;
+        if (this.serverSoftware == null) this.serverSoftware = this.index.value(this.index.find(SCGIVariableIndex.SERVER_SOFTWARE));
+        return this.serverSoftware;
     }
 
     public String getServerName()
     {
-        return serverName;
+        if (this.serverName == null) this.serverName = this.index.value(this.index.find(SCGIVariableIndex.SERVER_NAME));
+        return this.serverName;
     }
 
     public String getServerAddress()
     {
-        return serverAddress;
+        if (this.serverAddress == null) this.serverAddress = this.index.value(this.index.find(SCGIVariableIndex.SERVER_ADDR));
+        return this.serverAddress;
     }
 
     public int getServerPort()
     {
-        return serverPort;
+        if (this.serverPort == -1) this.serverPort = this.index.intValue(this.index.find(SCGIVariableIndex.SERVER_PORT), 0);
+        return this.serverPort;
     }
 
     public String getServerProtocol()
     {
-        return serverProtocol;
+        if (this.serverProtocol == null) this.serverProtocol = this.index.value(this.index.find(SCGIVariableIndex.SERVER_PROTOCOL));
+        return this.serverProtocol;
     }
 
     public String getRemoteAddress()
     {
-        return remoteAddress;
+        if (this.remoteAddress == null) this.remoteAddress = this.index.value(this.index.find(SCGIVariableIndex.REMOTE_ADDR));
+        return this.remoteAddress;
     }
 
     public int getRemotePort()
     {
-        return remotePort;
+        if (this.remotePort == -1) this.remotePort = this.index.intValue(this.index.find(SCGIVariableIndex.REMOTE_PORT), 0);
+        return this.remotePort;
     }
 
     public String getRequestMethod()
     {
-        return requestMethod;
+        if (this.requestMethod == null) this.requestMethod = this.index.value(this.index.find(SCGIVariableIndex.REQUEST_METHOD));
+        return this.requestMethod;
     }
     
     public String getRequestScheme()
     {
-        return requestScheme;
+        if (this.requestScheme == null) this.requestScheme = this.index.value(this.index.find(SCGIVariableIndex.REQUEST_SCHEME));
+        return this.requestScheme;
     }
 
     public String getRequestUri()
     {
-        return requestUri;
+        if (this.requestUri == null) this.requestUri = this.index.value(this.index.find(SCGIVariableIndex.REQUEST_URI));
+        return this.requestUri;
     }
 
     public String getPathInfo()
     {
-        return pathInfo;
+        if (this.pathInfo == null) this.pathInfo = this.index.value(this.index.find(SCGIVariableIndex.PATH_INFO));
+        return this.pathInfo;
     }
 
     public String getQueryString()
     {
-        return queryString;
+        if (this.queryString == null) this.queryString = this.index.value(this.index.find(SCGIVariableIndex.QUERY_STRING));
+        return this.queryString;
     }
 
     public String getScriptName()
     {
-        return scriptName;
+        if (this.scriptName == null) this.scriptName = this.index.value(this.index.find(SCGIVariableIndex.SCRIPT_NAME));
+        return this.scriptName;
     }
 
     public String getScriptFileName()
     {
-        return scriptFileName;
+        if (this.scriptFileName == null) this.scriptFileName = this.index.value(this.index.find(SCGIVariableIndex.SCRIPT_FILENAME));
+        return this.scriptFileName;
     }
 
     public String getDocumentRoot()
     {
-        return documentRoot;
+        if (this.documentRoot == null) this.documentRoot = this.index.value(this.index.find(SCGIVariableIndex.DOCUMENT_ROOT));
+        return this.documentRoot;
     }
 
     public Map<String, String> getHeaders()
     {
+        if (! this.headersDecoded)
+        {
+            for (int entry = 0; entry < this.index.size(); entry++)
+            {
+                if (this.index.kind(entry) == SCGIVariableIndex.KIND_HEADER)
+                {
+                    String name = this.index.headerName(entry);
+                    // explicitly set headers take precedence
+                    if (! this.headers.containsKey(name)) this.headers.put(name, this.index.value(entry));
+                }
+            }
+            this.headersDecoded = true;
+        }
         return headers;
     }
 
+    /**
+     * Get the value of the given header
+     * @param name the HTTP header name (IE: "Accept-Encoding"), or the CGI form of it (IE: "ACCEPT_ENCODING")
+     * @return the header value or null if the header was not sent
+     */
     public String getHeader(String name)
     {
-        return this.headers.get(cgifyHeaderName(name));
+        // only the raw headers to search, which we can do without converting the name
+        if (this.headers.isEmpty() && ! this.headersDecoded) return this.index.value(this.index.findHeader(name));
+        return this.getHeader(SCGIHeaderKey.of(name));
     }
-    
-    private String cgifyHeaderName(String name)
+
+    /**
+     * Get the value of the given header
+     * @param key the header key, IE: SCGIHeaderKey.COOKIE
+     * @return the header value or null if the header was not sent
+     */
+    public String getHeader(SCGIHeaderKey key)
     {
-        return name.toUpperCase().replace('-', '_');
+        String value = this.headers.isEmpty() ? null : this.headers.get(key.getCgiName());
+        if (value == null && ! this.headersDecoded) value = this.index.value(this.index.findHeader(key));
+        return value;
+    }
+
+    /**
+     * Get a view of the value of the given header, without decoding it into a String
+     * @param key the header key, IE: SCGIHeaderKey.ACCEPT
+     * @return the header value, valid until the request is finished, or null
+     */
+    public CharSequence getHeaderChars(SCGIHeaderKey key)
+    {
+        String value = this.headers.isEmpty() ? null : this.headers.get(key.getCgiName());
+        if (value != null || this.headersDecoded) return value;
+        return this.index.chars(this.index.findHeader(key));
     }
 
     public Set<String> getHeaderNames()
     {
-        return this.headers.keySet();
+        return this.getHeaders().keySet();
     }
 
     public Map<String, String> getVariables()
     {
+        if (! this.variablesDecoded)
+        {
+            for (int entry = 0; entry < this.index.size(); entry++)
+            {
+                if (this.index.kind(entry) == SCGIVariableIndex.KIND_OTHER)
+                {
+                    String name = this.index.name(entry);
+                    // explicitly set variables take precedence
+                    if (! this.scgiVariables.containsKey(name)) this.scgiVariables.put(name, this.index.value(entry));
+                }
+            }
+            this.variablesDecoded = true;
+        }
         return scgiVariables;
     }
 
     public String getVariable(String name)
     {
-        return this.scgiVariables.get(name.toUpperCase());
+        String upperName = name.toUpperCase();
+        String value = this.scgiVariables.get(upperName);
+        if (value == null && ! this.variablesDecoded)
+        {
+            int entry = this.index.find(upperName);
+            if (entry != -1 && this.index.kind(entry) == SCGIVariableIndex.KIND_OTHER) value = this.index.value(entry);
+        }
+        return value;
+    }
+
+    /**
+     * Get a view of the raw value of the given variable, as sent by the web 
+     * server, without decoding it into a String
+     * @param name the exact variable name, IE: "REQUEST_URI"
+     * @return the value, valid until the request is finished, or null
+     */
+    public CharSequence getVariableChars(String name)
+    {
+        String value = this.scgiVariables.get(name);
+        return value != null ? value : this.index.chars(this.index.find(name));
     }
 
     public Set<String> getVariableNames()
     {
-        return this.scgiVariables.keySet();
+        return this.getVariables().keySet();
+    }
+
+    /**
+     * Defer parsing the parameters of this request until they are first 
+     * accessed, the query string and body are left untouched until then.
+     * 
+     * Should the parameters be accessed after the input stream has been 
+     * used, the body will not be parsed, only the query string.  Should the 
+     * parameters fail to parse, every access to them raises an 
+     * IllegalStateException and the failure is kept, see 
+     * getParameterFailure().
+     * @param parser the parser which will parse the parameters
+     */
+    public void parseParametersLazily(SCGIParameterParser parser)
+    {
+        this.parameterParser = parser;
+    }
+
+    /**
+     * Are the parameters of this request yet to be parsed
+     */
+    public boolean isParametersPending()
+    {
+        return this.parameterParser != null && this.parameterFailure == null;
+    }
+
+    /**
+     * Why the deferred parameters of this request failed to parse, IE: a 
+     * SCGIBadRequestException should the body be malformed
+     * @return the failure or null
+     */
+    public Exception getParameterFailure()
+    {
+        return this.parameterFailure;
+    }
+
+    /**
+     * Parse the deferred parameters
+     * @throws IllegalStateException should the parameters fail, or have failed, to parse
+     */
+    private void parseParameters()
+    {
+        if (this.parameterFailure == null)
+        {
+            SCGIParameterParser parser = this.parameterParser;
+            // the parser adds to this request
+            this.parameterParser = null;
+            try
+            {
+                parser.parseParameters(this);
+                return;
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // every later access fails the same way
+                this.parameterParser = parser;
+                this.parameterFailure = e;
+            }
+        }
+        throw new IllegalStateException("Failed to parse the request parameters", this.parameterFailure);
+    }
+
+    /**
+     * Use the given immutable parameters, IE: a cached parse of the query 
+     * string, as the parameters of this request.  The parameters are copied 
+     * before anything which could be changed is handed out, IE: a list 
+     * parameter or the names or values, so that a request behaves the same 
+     * whether or not it shares its parameters.
+     * @param shared the parameters, which must not change
+     * @return false if this request already has parameters, in which case the parameters are not used
+     */
+    public boolean shareParameters(Map<String, Parameter> shared)
+    {
+        if (! this.parameters.isEmpty() || this.sharedParameters != null || this.compact) return false;
+        this.sharedParameters = shared;
+        return true;
+    }
+
+    /**
+     * Copy the shared parameters before they are changed
+     */
+    private void unshareParameters()
+    {
+        Map<String, Parameter> shared = this.sharedParameters;
+        this.sharedParameters = null;
+        for (Parameter parameter : shared.values())
+        {
+            if (parameter instanceof ListParameter && ((ListParameter) parameter).isFrozen()) parameter = ((ListParameter) parameter).copy();
+            this.parameters.put(parameter.getName(), parameter);
+        }
+    }
+
+    /**
+     * Hold the parameters of this request in a CompactParameterSet, for 
+     * requests with many parameters.  Parsers should add to the returned 
+     * set directly, QueryStringParser then decodes into it without creating 
+     * a String or a map entry per parameter.
+     * 
+     * The parameters are then read from the compact set, the names and 
+     * values are snapshots and list parameters are frozen, change a list by 
+     * adding a copy of it.  As getParameters() returns a live map, calling 
+     * it copies the parameters into that map and the compact set is no 
+     * longer used, endpoints with many parameters should use 
+     * getParameter() and the other accessors instead.
+     * 
+     * @return the set to add the parameters to, or null if this request already has parameters
+     */
+    public CompactParameterSet useCompactParameters()
+    {
+        if (this.compact) return this.compactParameters;
+        if (! this.parameters.isEmpty() || this.sharedParameters != null) return null;
+        if (this.compactParameters == null) this.compactParameters = new CompactParameterSet();
+        this.compact = true;
+        return this.compactParameters;
+    }
+
+    /**
+     * Are the parameters of this request held in a CompactParameterSet
+     */
+    public boolean isCompactParameters()
+    {
+        return this.compact;
+    }
+
+    /**
+     * Copy the compact parameters into the live map
+     */
+    private void inflateParameters()
+    {
+        this.compact = false;
+        for (Parameter parameter : this.compactParameters.getParameterValues())
+        {
+            if (parameter instanceof ListParameter && ((ListParameter) parameter).isFrozen()) parameter = ((ListParameter) parameter).copy();
+            this.parameters.put(parameter.getName(), parameter);
+        }
+        this.compactParameters.clear();
     }
 
     public Map<String, Parameter> getParameters()
     {
+        if (this.parameterParser != null) this.parseParameters();
+        // the map can be changed by the caller
+        if (this.sharedParameters != null) this.unshareParameters();
+        if (this.compact) this.inflateParameters();
         return parameters;
     }
 
     public Parameter getParameter(String name)
     {
+        if (this.parameterParser != null) this.parseParameters();
+        if (this.sharedParameters != null)
+        {
+            Parameter parameter = this.sharedParameters.get(name);
+            // lists can be changed by the caller
+            if (! (parameter instanceof ListParameter)) return parameter;
+            this.unshareParameters();
+        }
+        if (this.compact) return this.compactParameters.getParameter(name);
         return this.parameters.get(name);
     }
 
     public void addParameter(Parameter parameter)
     {
-        this.parameters.put(parameter.getName(), parameter);
+        if (this.parameterParser != null) this.parseParameters();
+        if (this.sharedParameters != null) this.unshareParameters();
+        if (this.compact) this.compactParameters.addParameter(parameter);
+        else this.parameters.put(parameter.getName(), parameter);
     }
 
     @Override
     public void removeParameter(String name)
     {
-        this.parameters.remove(name);
+        if (this.parameterParser != null) this.parseParameters();
+        if (this.sharedParameters != null) this.unshareParameters();
+        if (this.compact) this.compactParameters.removeParameter(name);
+        else this.parameters.remove(name);
     }
 
     public Set<String> getParameterNames()
     {
+        if (this.parameterParser != null) this.parseParameters();
+        if (this.sharedParameters != null) this.unshareParameters();
+        if (this.compact) return this.compactParameters.getParameterNames();
         return this.parameters.keySet();
     }
 
     public Collection<Parameter> getParameterValues()
     {
+        if (this.parameterParser != null) this.parseParameters();
+        if (this.sharedParameters != null) this.unshareParameters();
+        if (this.compact) return this.compactParameters.getParameterValues();
         return this.parameters.values();
     }
 
     public boolean containsParameter(String name)
     {
+        if (this.parameterParser != null) this.parseParameters();
+        if (this.sharedParameters != null) return this.sharedParameters.containsKey(name);
+        if (this.compact) return this.compactParameters.containsParameter(name);
         return this.parameters.containsKey(name);
     }
 
@@ -463,24 +829,24 @@ public class SCGIRequest implements ParameterSet, CookieSet
         StringBuilder sb = new StringBuilder();
         sb.append(this.getRequestMethod()).append(" ").append(this.getPathInfo()).append("\r\n\r\n");
         //
-        sb.append(SCGI.CONTENT_LENGTH).append(": ").append(this.contentLength).append("\r\n");
-        sb.append(SCGI.CONTENT_TYPE).append(": ").append(this.contentType).append("\r\n");
-        sb.append(SCGI.SCGI).append(": ").append(this.version).append("\r\n");
-        sb.append(SCGI.SERVER_SOFTWARE).append(": ").append(this.serverSoftware).append("\r\n");
-        sb.append(SCGI.SERVER_NAME).append(": ").append(this.serverName).append("\r\n");
-        sb.append(SCGI.SERVER_ADDR).append(": ").append(this.serverAddress).append("\r\n");
-        sb.append(SCGI.SERVER_PORT).append(": ").append(this.serverPort).append("\r\n");
-        sb.append(SCGI.SERVER_PROTOCOL).append(": ").append(this.serverProtocol).append("\r\n");
-        sb.append(SCGI.REMOTE_ADDR).append(": ").append(this.remoteAddress).append("\r\n");
-        sb.append(SCGI.REMOTE_PORT).append(": ").append(this.remotePort).append("\r\n");
-        sb.append(SCGI.REQUEST_METHOD).append(": ").append(this.requestMethod).append("\r\n");
-        sb.append(SCGI.REQUEST_SCHEME).append(": ").append(this.requestScheme).append("\r\n");
-        sb.append(SCGI.REQUEST_URI).append(": ").append(this.requestUri).append("\r\n");
-        sb.append(SCGI.PATH_INFO).append(": ").append(this.pathInfo).append("\r\n");
-        sb.append(SCGI.QUERY_STRING).append(": ").append(this.queryString).append("\r\n");
-        sb.append(SCGI.SCRIPT_NAME).append(": ").append(this.scriptName).append("\r\n");
-        sb.append(SCGI.SCRIPT_FILENAME).append(": ").append(this.scriptFileName).append("\r\n");
-        sb.append(SCGI.DOCUMENT_ROOT).append(": ").append(this.documentRoot).append("\r\n");
+        sb.append(SCGI.CONTENT_LENGTH).append(": ").append(this.getContentLength()).append("\r\n");
+        sb.append(SCGI.CONTENT_TYPE).append(": ").append(this.getContentType()).append("\r\n");
+        sb.append(SCGI.SCGI).append(": ").append(this.getVersion()).append("\r\n");
+        sb.append(SCGI.SERVER_SOFTWARE).append(": ").append(this.getServerSoftware()).append("\r\n");
+        sb.append(SCGI.SERVER_NAME).append(": ").append(this.getServerName()).append("\r\n");
+        sb.append(SCGI.SERVER_ADDR).append(": ").append(this.getServerAddress()).append("\r\n");
+        sb.append(SCGI.SERVER_PORT).append(": ").append(this.getServerPort()).append("\r\n");
+        sb.append(SCGI.SERVER_PROTOCOL).append(": ").append(this.getServerProtocol()).append("\r\n");
+        sb.append(SCGI.REMOTE_ADDR).append(": ").append(this.getRemoteAddress()).append("\r\n");
+        sb.append(SCGI.REMOTE_PORT).append(": ").append(this.getRemotePort()).append("\r\n");
+        sb.append(SCGI.REQUEST_METHOD).append(": ").append(this.getRequestMethod()).append("\r\n");
+        sb.append(SCGI.REQUEST_SCHEME).append(": ").append(this.getRequestScheme()).append("\r\n");
+        sb.append(SCGI.REQUEST_URI).append(": ").append(this.getRequestUri()).append("\r\n");
+        sb.append(SCGI.PATH_INFO).append(": ").append(this.getPathInfo()).append("\r\n");
+        sb.append(SCGI.QUERY_STRING).append(": ").append(this.getQueryString()).append("\r\n");
+        sb.append(SCGI.SCRIPT_NAME).append(": ").append(this.getScriptName()).append("\r\n");
+        sb.append(SCGI.SCRIPT_FILENAME).append(": ").append(this.getScriptFileName()).append("\r\n");
+        sb.append(SCGI.DOCUMENT_ROOT).append(": ").append(this.getDocumentRoot()).append("\r\n");
         //
         sb.append("\r\nVariables:\r\n");
         for (Entry<String, String> var : this.getVariables().entrySet())
@@ -493,7 +859,9 @@ public class SCGIRequest implements ParameterSet, CookieSet
             sb.append("\t").append(hd.getKey()).append(" => ").append(hd.getValue()).append("\r\n");
         }
         sb.append("\r\nParameters:\r\n");
-        for (Parameter p : this.getParameterValues())
+        // do not parse deferred parameters, that would consume the body
+        Collection<Parameter> values = this.sharedParameters != null ? this.sharedParameters.values() : (this.compact ? this.compactParameters.getParameterValues() : this.parameters.values());
+        for (Parameter p : values)
         {
             if (p instanceof StringParameter)
             {
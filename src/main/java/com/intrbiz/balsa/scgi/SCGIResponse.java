@@ -27,10 +27,8 @@
 
 package com.intrbiz.balsa.scgi;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
@@ -45,6 +43,8 @@ import com.intrbiz.balsa.http.HTTP.Expires;
 import com.intrbiz.balsa.http.HTTP.HTTPStatus;
 import com.intrbiz.balsa.util.CookieBuilder;
 import com.intrbiz.balsa.util.HTMLWriter;
+import com.intrbiz.balsa.util.PooledOutputStream;
+import com.intrbiz.balsa.util.PooledWriter;
 import com.intrbiz.balsa.util.SocketOutputStream;
 
 public class SCGIResponse
@@ -72,6 +72,10 @@ public class SCGIResponse
 
     private Writer writer = null;
 
+    private final PooledWriter bodyWriter = new PooledWriter();
+
+    private final PooledOutputStream headerOutput = new PooledOutputStream();
+
     private HTMLWriter htmlWriter = null;
 
     public SCGIResponse()
@@ -87,6 +91,7 @@ public class SCGIResponse
     {
         this.output = null;
         this.writer = null;
+        this.bodyWriter.release();
         this.htmlWriter = null;
         this.status = HTTPStatus.OK;
         this.charset = Charsets.UTF8;
@@ -103,6 +108,7 @@ public class SCGIResponse
         // Reset the response
         // Note: Do not reset the output stream!
         this.writer = null;
+        this.bodyWriter.release();
         this.htmlWriter = null;
         this.status = HTTPStatus.OK;
         this.charset = Charsets.UTF8;
@@ -269,40 +275,48 @@ public class SCGIResponse
         if (!this.sentHeaders)
         {
             this.sentHeaders = true;
-            // create the writer
-            Writer headerWriter = new BufferedWriter(new OutputStreamWriter(this.output, Charsets.SCGI), 1024);
-            // the status
-            headerWriter.write("Status: ");
-            headerWriter.write(String.valueOf(this.getStatus().getCode()));
-            headerWriter.write(" ");
-            headerWriter.write(this.getStatus().getMessage());
-            // the content type
-            headerWriter.write("\r\nContent-Type: ");
-            headerWriter.write(this.getContentType());
-            headerWriter.write("; charset=");
-            headerWriter.write(this.getCharset().name().toLowerCase());
-            // cache control
-            if (this.getCacheControl() != null)
-            {
-                headerWriter.write("\r\nCacheControl: ");
-                headerWriter.write(this.getCacheControl());
-            }
-            // expires
-            if (this.getExpires() != null)
+            // encode the headers into a pooled buffer
+            PooledOutputStream headerWriter = this.headerOutput;
+            headerWriter.open(this.output);
+            try
             {
-                headerWriter.write("\r\nExpires: ");
-                headerWriter.write(this.getExpires());
+                // the status
+                headerWriter.writeLatin1("Status: ");
+                headerWriter.writeLatin1(String.valueOf(this.getStatus().getCode()));
+                headerWriter.writeLatin1(" ");
+                headerWriter.writeLatin1(this.getStatus().getMessage());
+                // the content type
+                headerWriter.writeLatin1("\r\nContent-Type: ");
+                headerWriter.writeLatin1(this.getContentType());
+                headerWriter.writeLatin1("; charset=");
+                headerWriter.writeLatin1(this.getCharset().name().toLowerCase());
+                // cache control
+                if (this.getCacheControl() != null)
+                {
+                    headerWriter.writeLatin1("\r\nCacheControl: ");
+                    headerWriter.writeLatin1(this.getCacheControl());
+                }
+                // expires
+                if (this.getExpires() != null)
+                {
+                    headerWriter.writeLatin1("\r\nExpires: ");
+                    headerWriter.writeLatin1(this.getExpires());
+                }
+                // write headers
+                for (String header : this.getHeaders())
+                {
+                    headerWriter.writeLatin1("\r\n");
+                    headerWriter.writeLatin1(header);
+                }
+                // write end of headers
+                headerWriter.writeLatin1("\r\n\r\n");
+                // flush
+                headerWriter.flush();
             }
-            // write headers
-            for (String header : this.getHeaders())
+            finally
             {
-                headerWriter.write("\r\n");
-                headerWriter.write(header);
+                headerWriter.release();
             }
-            // write end of headers
-            headerWriter.write("\r\n\r\n");
-            // flush
-            headerWriter.flush();
         }
     }
 
@@ -314,7 +328,11 @@ public class SCGIResponse
 
     public Writer getWriter() throws IOException
     {
-        if (this.writer == null) this.writer = new BufferedWriter(new OutputStreamWriter(this.getOutput(), this.getCharset()), 8192);
+        if (this.writer == null)
+        {
+            this.bodyWriter.open(this.getOutput(), this.getCharset());
+            this.writer = this.bodyWriter;
+        }
         return writer;
     }
 
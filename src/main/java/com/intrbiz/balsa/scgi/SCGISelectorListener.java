@@ -0,0 +1,446 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.intrbiz.balsa.scgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.intrbiz.balsa.SCGIBadRequestException;
+import com.intrbiz.balsa.http.HTTP.Charsets;
+import com.intrbiz.balsa.http.HTTP.HTTPStatus;
+import com.intrbiz.balsa.http.HTTP.SCGI;
+import com.intrbiz.balsa.util.Platform;
+
+/**
+ * A selector driven SCGI server
+ *
+ * Rather than handing a connection to a worker as soon as it is accepted, this
+ * listener reads the netstring headers and the request body using non-blocking
+ * IO and only dispatches a request to the workers once it has been fully framed.
+ *
+ * Slow web servers therefore no longer pin a worker while the request is
+ * trickling in.  Request bodies larger than the maximum buffered body size are
+ * dispatched once the headers are framed, the worker then reads the rest of the
+ * body directly from the connection.
+ * 
+ * Connections which take longer than the header timeout to be framed are closed.
+ *
+ */
+public class SCGISelectorListener extends SCGIListener
+{
+    public static final int DEFAULT_MAX_BUFFERED_BODY = 64 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /**
+     * How often connections which are being framed are checked for timeouts
+     */
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private static final byte[] CONTENT_LENGTH = SCGI.CONTENT_LENGTH.getBytes(Charsets.SCGI);
+
+    private int maxBufferedBody = DEFAULT_MAX_BUFFERED_BODY;
+
+    private Selector selector;
+
+    private ServerSocketChannel server;
+
+    private Logger logger = Logger.getLogger(SCGISelectorListener.class);
+
+    public SCGISelectorListener()
+    {
+        super();
+    }
+
+    public SCGISelectorListener(int port)
+    {
+        super(port);
+    }
+
+    public SCGISelectorListener(int port, int poolSize)
+    {
+        super(port, poolSize);
+    }
+
+    public SCGISelectorListener(int port, int poolSize, SCGIProcessor processor)
+    {
+        super(port, poolSize, processor);
+    }
+
+    public int getMaxBufferedBody()
+    {
+        return maxBufferedBody;
+    }
+
+    /**
+     * The largest request body which will be read before dispatching the request,
+     * larger bodies are read by the worker
+     * @param maxBufferedBody the body size in bytes
+     * returns void
+     */
+    public void setMaxBufferedBody(int maxBufferedBody)
+    {
+        this.maxBufferedBody = maxBufferedBody;
+    }
+
+    @Override
+    protected void bind() throws IOException
+    {
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.configureBlocking(false);
+        if (this.isReusePort()) Platform.setReusePort(this.server);
+        this.server.bind(new InetSocketAddress(this.getPort()));
+        this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    protected void unbind() throws IOException
+    {
+        if (this.selector != null) this.selector.wakeup();
+        if (this.server != null) this.server.close();
+    }
+
+    @Override
+    public void run()
+    {
+        List<SelectionKey> framed = new LinkedList<SelectionKey>();
+        long lastSweep = System.nanoTime();
+        try
+        {
+            while (this.isRun())
+            {
+                try
+                {
+                    this.selector.select(1000);
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext())
+                    {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (! key.isValid()) continue;
+                        if (key.isAcceptable())
+                        {
+                            this.accept();
+                        }
+                        else if (key.isReadable())
+                        {
+                            if (this.read(key)) framed.add(key);
+                        }
+                    }
+                    // dispatch the framed requests
+                    if (! framed.isEmpty())
+                    {
+                        // the cancelled keys must be flushed before the
+                        // channels can be placed back into blocking mode
+                        this.selector.selectNow();
+                        for (SelectionKey key : framed)
+                        {
+                            this.dispatchFramed(key);
+                        }
+                        framed.clear();
+                    }
+                    // close connections which are taking too long to send their headers
+                    long now = System.nanoTime();
+                    if (now - lastSweep > SWEEP_INTERVAL)
+                    {
+                        this.sweep(now);
+                        lastSweep = now;
+                    }
+                }
+                catch (IOException e)
+                {
+                    logger.fatal("Error during listener run loop", e);
+                }
+            }
+        }
+        finally
+        {
+            this.closeSelector();
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel client;
+        while ((client = this.server.accept()) != null)
+        {
+            this.accepted();
+            client.configureBlocking(false);
+            client.register(this.selector, SelectionKey.OP_READ, new Frame());
+        }
+    }
+
+    /**
+     * Read from the client, returning true once the request is framed
+     */
+    private boolean read(SelectionKey key)
+    {
+        SocketChannel client = (SocketChannel) key.channel();
+        Frame frame = (Frame) key.attachment();
+        try
+        {
+            if (client.read(frame.buffer) == -1) throw new IOException("Unexpected EOF while framing request");
+            if (frame.parse(this.maxBufferedBody, this.getMaxHeaderBytes()))
+            {
+                key.cancel();
+                return true;
+            }
+        }
+        catch (SCGIBadRequestException e)
+        {
+            // best effort, we do not wait for the web server to read the response
+            try
+            {
+                client.write(ByteBuffer.wrap(this.badRequest(e)));
+            }
+            catch (IOException we)
+            {
+            }
+            this.close(key);
+        }
+        catch (IOException e)
+        {
+            logger.debug("Failed to frame request, closing connection", e);
+            this.close(key);
+        }
+        return false;
+    }
+
+    private void dispatchFramed(SelectionKey key)
+    {
+        SocketChannel client = (SocketChannel) key.channel();
+        Frame frame = (Frame) key.attachment();
+        try
+        {
+            client.configureBlocking(true);
+            InputStream input = new ByteArrayInputStream(frame.buffer.array(), 0, frame.buffer.position());
+            // chain the rest of the body when it is not buffered
+            if (frame.buffer.position() < frame.requestLength) input = new SequenceInputStream(input, Channels.newInputStream(client));
+            this.dispatch(new SCGIConnection(client, input));
+        }
+        catch (IOException e)
+        {
+            logger.debug("Failed to dispatch request, closing connection", e);
+            this.close(key);
+        }
+    }
+
+    private void sweep(long now)
+    {
+        long headerTimeout = TimeUnit.MILLISECONDS.toNanos(this.getHeaderTimeout());
+        if (headerTimeout <= 0) return;
+        for (SelectionKey key : this.selector.keys())
+        {
+            Frame frame = (Frame) key.attachment();
+            if (frame != null && key.isValid() && now - frame.started > headerTimeout)
+            {
+                logger.debug("Timed out framing request, closing connection");
+                this.close(key);
+                this.timedOut();
+            }
+        }
+    }
+
+    private void close(SelectionKey key)
+    {
+        key.cancel();
+        try
+        {
+            key.channel().close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    private void closeSelector()
+    {
+        try
+        {
+            for (SelectionKey key : this.selector.keys())
+            {
+                this.close(key);
+            }
+            this.selector.close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    /**
+     * The framing state of a request
+     */
+    static final class Frame
+    {
+        public ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        public final long started = System.nanoTime();
+
+        /**
+         * The offset of the header block
+         */
+        private int headerStart = -1;
+
+        private int headerLength = -1;
+
+        /**
+         * The total length of the request: netstring and body, which may 
+         * exceed the int range for a streamed body
+         */
+        public long requestLength = -1;
+
+        /**
+         * Is the body too large to buffer
+         */
+        private boolean streamed = false;
+
+        /**
+         * Parse as much of the request as we can
+         * @return true once enough of the request has been read to dispatch it
+         */
+        public boolean parse(int maxBufferedBody, int maxHeaderBytes) throws IOException
+        {
+            byte[] buf = this.buffer.array();
+            int read = this.buffer.position();
+            // header length
+            if (this.headerStart == -1)
+            {
+                int length = 0;
+                for (int i = 0; i < read; i++)
+                {
+                    int b = buf[i];
+                    if (b == ':')
+                    {
+                        if (i == 0) throw new SCGIBadRequestException("Empty headers length");
+                        this.headerLength = length;
+                        this.headerStart = i + 1;
+                        break;
+                    }
+                    if (b < '0' || b > '9') throw new SCGIBadRequestException("Unexpected character #" + b + " in headers length");
+                    if (i >= 9) throw new SCGIBadRequestException(HTTPStatus.RequestEntityTooLarge, "Headers length is too long");
+                    length = length * 10 + (b - '0');
+                }
+                if (this.headerStart == -1) return false;
+                // reject before we buffer the headers
+                if (this.headerLength > maxHeaderBytes) throw new SCGIBadRequestException(HTTPStatus.RequestEntityTooLarge, "Headers length " + this.headerLength + " exceeds the limit of " + maxHeaderBytes);
+                this.ensureCapacity(this.headerStart + this.headerLength + 1);
+            }
+            // headers
+            if (this.requestLength == -1)
+            {
+                int separator = this.headerStart + this.headerLength;
+                if (read <= separator) return false;
+                if (buf[separator] != ',') throw new SCGIBadRequestException("SCGI body separator not found where it should be, got #" + buf[separator] + " instead");
+                int contentLength = this.contentLength(buf, this.headerStart, separator);
+                this.requestLength = separator + 1L + contentLength;
+                this.streamed = contentLength > maxBufferedBody || this.requestLength > Integer.MAX_VALUE;
+                if (! this.streamed) this.ensureCapacity((int) this.requestLength);
+            }
+            // body
+            return this.streamed || read >= this.requestLength;
+        }
+
+        private void ensureCapacity(int capacity)
+        {
+            if (this.buffer.capacity() < capacity)
+            {
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                // through Buffer, the covariant override does not exist before Java 9
+                ((Buffer) this.buffer).flip();
+                grown.put(this.buffer);
+                this.buffer = grown;
+            }
+        }
+
+        /**
+         * Find the CONTENT_LENGTH variable within the header block
+         */
+        private int contentLength(byte[] buf, int start, int end) throws IOException
+        {
+            int nameStart = start;
+            while (nameStart < end)
+            {
+                int nameEnd = indexOfNul(buf, nameStart, end);
+                if (nameEnd == -1) break;
+                int valueEnd = indexOfNul(buf, nameEnd + 1, end);
+                if (valueEnd == -1) break;
+                if (regionEquals(buf, nameStart, nameEnd, CONTENT_LENGTH))
+                {
+                    long length = 0;
+                    for (int i = nameEnd + 1; i < valueEnd; i++)
+                    {
+                        int b = buf[i];
+                        if (b < '0' || b > '9' || i - nameEnd > 10) throw new SCGIBadRequestException("Invalid content length");
+                        length = length * 10 + (b - '0');
+                    }
+                    if (length > Integer.MAX_VALUE) throw new SCGIBadRequestException(HTTPStatus.RequestEntityTooLarge, "Content length " + length + " is too large");
+                    return (int) length;
+                }
+                nameStart = valueEnd + 1;
+            }
+            return 0;
+        }
+
+        private static int indexOfNul(byte[] buf, int start, int end)
+        {
+            for (int i = start; i < end; i++)
+            {
+                if (buf[i] == 0) return i;
+            }
+            return -1;
+        }
+
+        private static boolean regionEquals(byte[] buf, int start, int end, byte[] value)
+        {
+            if (end - start != value.length) return false;
+            for (int i = 0; i < value.length; i++)
+            {
+                if (buf[start + i] != value[i]) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.intrbiz.balsa.scgi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.intrbiz.balsa.SCGIException;
+
+/**
+ * Many SCGI listeners, bound to the same port using SO_REUSEPORT
+ * 
+ * Each shard has its own acceptor thread and worker pool, the kernel spreads 
+ * incoming connections across the shards.  This removes the single acceptor 
+ * bottleneck at high connection rates.
+ * 
+ * Each shard publishes accepts, queue-depth and busy-workers metrics under 
+ * its own name, while the usual listener metrics are aggregated across all 
+ * running listeners, including every shard.
+ *
+ */
+public class SCGIShardedListener
+{
+    private final List<SCGIListener> shards = new ArrayList<SCGIListener>();
+
+    private int port = SCGIListener.DEFAULT_PORT;
+
+    public SCGIShardedListener(int port, int shards, int poolSize, SCGIProcessor processor)
+    {
+        super();
+        if (shards < 1) throw new IllegalArgumentException("Must have at least one shard");
+        this.port = port;
+        for (int i = 0; i < shards; i++)
+        {
+            SCGIListener shard = this.newShard();
+            shard.setPort(port);
+            shard.setPoolSize(poolSize);
+            shard.setProcessor(processor);
+            shard.setReusePort(true);
+            shard.setShard("shard-" + i);
+            this.shards.add(shard);
+        }
+    }
+
+    public SCGIShardedListener(int port, int shards, SCGIProcessor processor)
+    {
+        this(port, shards, SCGIListener.DEFAULT_POOL_SIZE, processor);
+    }
+
+    /**
+     * Create the listener for a shard, override this to use a different listener type
+     */
+    protected SCGIListener newShard()
+    {
+        return new SCGIListener();
+    }
+
+    public int getPort()
+    {
+        return this.port;
+    }
+
+    public List<SCGIListener> getShards()
+    {
+        return Collections.unmodifiableList(this.shards);
+    }
+
+    public int getQueueDepth()
+    {
+        int depth = 0;
+        for (SCGIListener shard : this.shards)
+        {
+            depth += shard.getQueueDepth();
+        }
+        return depth;
+    }
+
+    public int getWorkerCount()
+    {
+        int count = 0;
+        for (SCGIListener shard : this.shards)
+        {
+            count += shard.getWorkerCount();
+        }
+        return count;
+    }
+
+    public int getBusyWorkerCount()
+    {
+        int count = 0;
+        for (SCGIListener shard : this.shards)
+        {
+            count += shard.getBusyWorkerCount();
+        }
+        return count;
+    }
+
+    public int getAsyncRequestCount()
+    {
+        int count = 0;
+        for (SCGIListener shard : this.shards)
+        {
+            count += shard.getAsyncRequestCount();
+        }
+        return count;
+    }
+
+    /**
+     * Start all shards, should any shard fail to start, all shards are stopped
+     * @throws SCGIException
+     * returns void
+     */
+    public void start() throws SCGIException
+    {
+        try
+        {
+            for (SCGIListener shard : this.shards)
+            {
+                shard.start();
+            }
+        }
+        catch (SCGIException e)
+        {
+            this.stop();
+            throw e;
+        }
+    }
+
+    public void stop()
+    {
+        for (SCGIListener shard : this.shards)
+        {
+            shard.stop();
+        }
+    }
+
+    public void shutdown()
+    {
+        this.stop();
+        for (SCGIListener shard : this.shards)
+        {
+            shard.shutdown();
+        }
+    }
+}
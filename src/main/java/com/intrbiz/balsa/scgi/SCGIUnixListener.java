@@ -0,0 +1,228 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.intrbiz.balsa.scgi;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.intrbiz.balsa.util.Platform;
+
+/**
+ * A SCGI server listening on a UNIX domain socket
+ * 
+ * When the web server is on the same host, a UNIX domain socket avoids 
+ * the TCP handshake and teardown for every request.  This requires 
+ * Java 16 or later.
+ * 
+ * Any stale socket file, left behind by a previous process, is removed 
+ * when binding, a socket file is only stale should connecting to it be 
+ * refused.  Should another process still be listening on the socket, or 
+ * should we be unable to tell, then binding will fail.  The socket file is removed when the listener 
+ * is stopped.
+ * 
+ */
+public class SCGIUnixListener extends SCGIListener
+{
+    private Path socketPath;
+
+    private String socketPermissions;
+
+    private ServerSocketChannel server;
+
+    /**
+     * The socket file we created, which is the only one we will remove
+     */
+    private Path boundPath;
+
+    private Logger logger = Logger.getLogger(SCGIUnixListener.class);
+
+    public SCGIUnixListener()
+    {
+        super();
+    }
+
+    public SCGIUnixListener(String socketPath)
+    {
+        super();
+        this.setSocketPath(socketPath);
+    }
+
+    public SCGIUnixListener(String socketPath, int poolSize)
+    {
+        this(socketPath);
+        this.setPoolSize(poolSize);
+    }
+
+    public SCGIUnixListener(String socketPath, int poolSize, SCGIProcessor processor)
+    {
+        this(socketPath, poolSize);
+        this.setProcessor(processor);
+    }
+
+    public Path getSocketPath()
+    {
+        return socketPath;
+    }
+
+    public void setSocketPath(Path socketPath)
+    {
+        this.socketPath = socketPath;
+    }
+
+    public void setSocketPath(String socketPath)
+    {
+        this.socketPath = Paths.get(socketPath);
+    }
+
+    public String getSocketPermissions()
+    {
+        return socketPermissions;
+    }
+
+    /**
+     * The POSIX permissions to apply to the socket file, once bound, 
+     * eg: rw-rw---- to allow the web server group to connect. By 
+     * default the permissions are given by the umask of the process.
+     * @param socketPermissions the permissions in the form rwxrwxrwx
+     * returns void
+     */
+    public void setSocketPermissions(String socketPermissions)
+    {
+        // validate now rather than when binding
+        if (socketPermissions != null) PosixFilePermissions.fromString(socketPermissions);
+        this.socketPermissions = socketPermissions;
+    }
+
+    @Override
+    protected void bind() throws IOException
+    {
+        if (this.socketPath == null) throw new IOException("No socket path has been given");
+        this.removeStaleSocket();
+        Path path = this.socketPath;
+        ServerSocketChannel server = Platform.openUnixDomainServerSocketChannel();
+        boolean bound = false;
+        try
+        {
+            server.bind(Platform.unixDomainSocketAddress(path.toString()));
+            bound = true;
+            if (this.socketPermissions != null) Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(this.socketPermissions));
+        }
+        catch (IOException e)
+        {
+            server.close();
+            // only remove the socket file should we have created it
+            if (bound) Files.deleteIfExists(path);
+            throw e;
+        }
+        this.server = server;
+        this.boundPath = path;
+    }
+
+    /**
+     * Remove a socket file left behind by a process which did not shutdown cleanly
+     */
+    private void removeStaleSocket() throws IOException
+    {
+        if (! Files.exists(this.socketPath)) return;
+        if (Files.isRegularFile(this.socketPath) || Files.isDirectory(this.socketPath)) throw new BindException("Refusing to replace " + this.socketPath + " which is not a socket");
+        // is anyone still listening
+        try (SocketChannel probe = Platform.openUnixDomainSocketChannel())
+        {
+            probe.connect(Platform.unixDomainSocketAddress(this.socketPath.toString()));
+        }
+        catch (ConnectException e)
+        {
+            // connection refused, the socket is stale
+            logger.info("Removing stale socket " + this.socketPath);
+            Files.deleteIfExists(this.socketPath);
+            return;
+        }
+        catch (IOException e)
+        {
+            // permission denied, timed out, etc: the socket may well be live
+            BindException be = new BindException("Could not tell if the socket " + this.socketPath + " is in use, not removing it: " + e.getMessage());
+            be.initCause(e);
+            throw be;
+        }
+        throw new BindException("The socket " + this.socketPath + " is in use by another process");
+    }
+
+    @Override
+    protected void unbind() throws IOException
+    {
+        ServerSocketChannel server = this.server;
+        Path path = this.boundPath;
+        this.server = null;
+        this.boundPath = null;
+        if (server != null) server.close();
+        if (path != null) Files.deleteIfExists(path);
+    }
+
+    @Override
+    public void run()
+    {
+        // unbind clears the field, the closed channel ends the loop
+        ServerSocketChannel server = this.server;
+        while (server != null && this.isRun())
+        {
+            try
+            {
+                SocketChannel client = server.accept();
+                this.accepted();
+                this.dispatch(new SCGIConnection(client));
+            }
+            catch (ClosedChannelException e)
+            {
+                // we have been stopped
+                break;
+            }
+            catch (IOException e)
+            {
+                if (this.isRun()) logger.fatal("Error during listener run loop", e);
+            }
+        }
+    }
+
+    @Override
+    protected ObjectName getObjectName() throws Exception
+    {
+        return new ObjectName("com.intrbiz.balsa:type=SCGIListener,path=" + ObjectName.quote(String.valueOf(this.socketPath)) + (this.getShard() == null ? "" : ",shard=" + ObjectName.quote(this.getShard())));
+    }
+}
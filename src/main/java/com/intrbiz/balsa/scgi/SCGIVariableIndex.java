@@ -0,0 +1,659 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.scgi;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.intrbiz.balsa.SCGIBadRequestException;
+import com.intrbiz.balsa.http.HTTP.HTTPStatus;
+import com.intrbiz.balsa.http.HTTP.SCGI;
+import com.intrbiz.balsa.util.Latin1CharSequence;
+import com.intrbiz.balsa.util.StringCache;
+
+/**
+ * An index over the raw SCGI header block of a request
+ * 
+ * Rather than decoding every name and value into Strings when the request 
+ * is read, the header block is kept as is and the offsets of each name and 
+ * value are recorded.  Values are only decoded when they are accessed.
+ * 
+ * The well known SCGI variables are identified as the block is indexed, using 
+ * a perfect hash of the raw name bytes, so that they can be found without 
+ * searching.  Headers are identified by their HTTP_ prefix and are not copied.
+ * 
+ * Names, and the values of the variables and headers which are usually the 
+ * same for every request, IE: DOCUMENT_ROOT or User-Agent, are decoded 
+ * through a shared StringCache so that they are not allocated again for 
+ * each request.  Only the values of an allow list of variables and headers 
+ * are cached, other values may differ per request, IE: X-Forwarded-For, or 
+ * be sensitive, IE: Cookie or X-Api-Key, and are never cached.
+ * 
+ * The index is recycled between requests, the header block must remain 
+ * unchanged whilst the request is being processed.
+ */
+public final class SCGIVariableIndex
+{
+    private static final Charset SCGI_CHARSET = Charset.forName("ISO-8859-1");
+
+    public static final int CONTENT_LENGTH = 0;
+
+    public static final int CONTENT_TYPE = 1;
+
+    public static final int SCGI_VERSION = 2;
+
+    public static final int SERVER_SOFTWARE = 3;
+
+    public static final int SERVER_NAME = 4;
+
+    public static final int SERVER_ADDR = 5;
+
+    public static final int SERVER_PORT = 6;
+
+    public static final int SERVER_PROTOCOL = 7;
+
+    public static final int REMOTE_ADDR = 8;
+
+    public static final int REMOTE_PORT = 9;
+
+    public static final int REQUEST_METHOD = 10;
+
+    public static final int REQUEST_SCHEME = 11;
+
+    public static final int REQUEST_URI = 12;
+
+    public static final int PATH_INFO = 13;
+
+    public static final int QUERY_STRING = 14;
+
+    public static final int SCRIPT_NAME = 15;
+
+    public static final int SCRIPT_FILENAME = 16;
+
+    public static final int DOCUMENT_ROOT = 17;
+
+    private static final byte[][] KNOWN_NAMES = {
+        bytes(SCGI.CONTENT_LENGTH),
+        bytes(SCGI.CONTENT_TYPE),
+        bytes(SCGI.SCGI),
+        bytes(SCGI.SERVER_SOFTWARE),
+        bytes(SCGI.SERVER_NAME),
+        bytes(SCGI.SERVER_ADDR),
+        bytes(SCGI.SERVER_PORT),
+        bytes(SCGI.SERVER_PROTOCOL),
+        bytes(SCGI.REMOTE_ADDR),
+        bytes(SCGI.REMOTE_PORT),
+        bytes(SCGI.REQUEST_METHOD),
+        bytes(SCGI.REQUEST_SCHEME),
+        bytes(SCGI.REQUEST_URI),
+        bytes(SCGI.PATH_INFO),
+        bytes(SCGI.QUERY_STRING),
+        bytes(SCGI.SCRIPT_NAME),
+        bytes(SCGI.SCRIPT_FILENAME),
+        bytes(SCGI.DOCUMENT_ROOT)
+    };
+
+    private static final String[] KNOWN_STRINGS = {
+        SCGI.CONTENT_LENGTH,
+        SCGI.CONTENT_TYPE,
+        SCGI.SCGI,
+        SCGI.SERVER_SOFTWARE,
+        SCGI.SERVER_NAME,
+        SCGI.SERVER_ADDR,
+        SCGI.SERVER_PORT,
+        SCGI.SERVER_PROTOCOL,
+        SCGI.REMOTE_ADDR,
+        SCGI.REMOTE_PORT,
+        SCGI.REQUEST_METHOD,
+        SCGI.REQUEST_SCHEME,
+        SCGI.REQUEST_URI,
+        SCGI.PATH_INFO,
+        SCGI.QUERY_STRING,
+        SCGI.SCRIPT_NAME,
+        SCGI.SCRIPT_FILENAME,
+        SCGI.DOCUMENT_ROOT
+    };
+
+    /**
+     * A perfect hash table of the well known variable names, keyed by 
+     * the length, middle and last byte of the name
+     */
+    private static final int TABLE_MASK = 63;
+
+    private static final int[] TABLE = new int[TABLE_MASK + 1];
+
+    static
+    {
+        Arrays.fill(TABLE, -1);
+        for (int id = 0; id < KNOWN_NAMES.length; id++)
+        {
+            int slot = hash(KNOWN_NAMES[id], 0, KNOWN_NAMES[id].length);
+            if (TABLE[slot] != -1) throw new IllegalStateException("The well known variable hash is not perfect, " + KNOWN_STRINGS[id] + " collides with " + KNOWN_STRINGS[TABLE[slot]]);
+            TABLE[slot] = id;
+        }
+    }
+
+    /**
+     * The well known variables whose values repeat between requests
+     */
+    private static final boolean[] CACHED_KNOWN = new boolean[KNOWN_NAMES.length];
+    
+    static
+    {
+        for (int id : new int[] { SCGI_VERSION, SERVER_SOFTWARE, SERVER_NAME, SERVER_ADDR, SERVER_PORT, SERVER_PROTOCOL, REQUEST_METHOD, REQUEST_SCHEME, SCRIPT_NAME, SCRIPT_FILENAME, DOCUMENT_ROOT })
+        {
+            CACHED_KNOWN[id] = true;
+        }
+    }
+
+    /**
+     * The headers whose values repeat between requests
+     */
+    private static final SCGIHeaderKey[] CACHED_HEADERS = {
+        SCGIHeaderKey.ACCEPT,
+        SCGIHeaderKey.ACCEPT_CHARSET,
+        SCGIHeaderKey.ACCEPT_ENCODING,
+        SCGIHeaderKey.ACCEPT_LANGUAGE,
+        SCGIHeaderKey.CACHE_CONTROL,
+        SCGIHeaderKey.CONNECTION,
+        SCGIHeaderKey.HOST,
+        SCGIHeaderKey.ORIGIN,
+        SCGIHeaderKey.USER_AGENT,
+        SCGIHeaderKey.X_FORWARDED_PROTO,
+        SCGIHeaderKey.X_REQUESTED_WITH
+    };
+
+    /**
+     * The other variables whose values repeat between requests
+     */
+    private static final byte[][] CACHED_VARIABLES = {
+        bytes("GATEWAY_INTERFACE"),
+        bytes("HTTPS"),
+        bytes("SERVER_ADMIN"),
+        bytes("SERVER_SIGNATURE"),
+        bytes("CONTEXT_PREFIX"),
+        bytes("CONTEXT_DOCUMENT_ROOT")
+    };
+
+    private static final byte[] HTTP_PREFIX = bytes("HTTP_");
+
+    /**
+     * What kind of variable an entry is
+     */
+    public static final int KIND_OTHER = 0;
+
+    public static final int KIND_KNOWN = 1;
+
+    public static final int KIND_HEADER = 2;
+
+    private static final int SCAN_OK = 0;
+
+    private static final int SCAN_TOO_MANY_VARIABLES = 1;
+
+    private static final int SCAN_NAME_TOO_LONG = 2;
+
+    private static final int SCAN_VALUE_TOO_LONG = 3;
+
+    private static final int SCAN_MALFORMED = 4;
+
+    /**
+     * Each entry is: name start, name end, value start, value end, kind, well known id
+     */
+    private static final int ENTRY_SIZE = 6;
+
+    private byte[] block;
+
+    private int[] entries = new int[32 * ENTRY_SIZE];
+
+    private String[] values = new String[32];
+
+    private int count = 0;
+
+    private final int[] known = new int[KNOWN_NAMES.length];
+
+    private StringCache cache = StringCache.values();
+
+    /**
+     * Cache lookups are counted locally and recorded when the index is cleared
+     */
+    private int cacheHits = 0;
+
+    private int cacheMisses = 0;
+
+    public SCGIVariableIndex()
+    {
+        super();
+        Arrays.fill(this.known, -1);
+    }
+
+    private static byte[] bytes(String s)
+    {
+        return s.getBytes(SCGI_CHARSET);
+    }
+
+    private static int hash(byte[] name, int start, int length)
+    {
+        return ((length << 5) ^ name[start + length - 1] ^ (name[start + (length >> 1)] << 1)) & TABLE_MASK;
+    }
+
+    /**
+     * Get the id of the well known variable with the given name
+     * @return the id or -1 if the name is not a well known variable
+     */
+    public static int knownId(String name)
+    {
+        int length = name.length();
+        if (length == 0) return -1;
+        int id = TABLE[((length << 5) ^ name.charAt(length - 1) ^ (name.charAt(length >> 1) << 1)) & TABLE_MASK];
+        return id != -1 && KNOWN_STRINGS[id].equals(name) ? id : -1;
+    }
+
+    private int knownId(int start, int end)
+    {
+        if (start == end) return -1;
+        int id = TABLE[hash(this.block, start, end - start)];
+        return id != -1 && this.regionEquals(start, end, KNOWN_NAMES[id]) ? id : -1;
+    }
+
+    /**
+     * Index the given header block, a sequence of NUL terminated names and values
+     */
+    public void index(byte[] block, int offset, int length)
+    {
+        this.scan(block, offset, length, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Index the given header block, rejecting it should it be malformed, 
+     * have an invalid CONTENT_LENGTH or exceed any of the given limits
+     * @param maxVariables the maximum number of variables
+     * @param maxNameLength the maximum length of a variable name
+     * @param maxValueLength the maximum length of a variable value
+     * @throws SCGIBadRequestException should the block be malformed or exceed a limit
+     */
+    public void index(byte[] block, int offset, int length, int maxVariables, int maxNameLength, int maxValueLength) throws SCGIBadRequestException
+    {
+        switch (this.scan(block, offset, length, maxVariables, maxNameLength, maxValueLength))
+        {
+            case SCAN_TOO_MANY_VARIABLES:
+                throw new SCGIBadRequestException(HTTPStatus.RequestEntityTooLarge, "Request has more than " + maxVariables + " variables");
+            case SCAN_NAME_TOO_LONG:
+                throw new SCGIBadRequestException(HTTPStatus.RequestEntityTooLarge, "Request has a variable name longer than " + maxNameLength);
+            case SCAN_VALUE_TOO_LONG:
+                throw new SCGIBadRequestException(HTTPStatus.RequestEntityTooLarge, "Request has a variable value longer than " + maxValueLength);
+            case SCAN_MALFORMED:
+                throw new SCGIBadRequestException("Request headers are not a sequence of NUL terminated names and values");
+        }
+        // the content length is read as the request is handled, it must not fail there
+        try
+        {
+            this.intValue(this.find(CONTENT_LENGTH), 0);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new SCGIBadRequestException("Request has an invalid CONTENT_LENGTH");
+        }
+    }
+
+    /**
+     * Scan the header block, stopping at the first limit which is exceeded
+     * @return SCAN_OK or the reason the block was rejected
+     */
+    private int scan(byte[] block, int offset, int length, int maxVariables, int maxNameLength, int maxValueLength)
+    {
+        this.clear();
+        this.block = block;
+        int end = offset + length;
+        int start = offset;
+        int nameStart = -1, nameEnd = -1;
+        for (int i = offset; i < end; i++)
+        {
+            if (block[i] == 0)
+            {
+                if (nameStart == -1)
+                {
+                    if (i - start > maxNameLength) return SCAN_NAME_TOO_LONG;
+                    if (this.count == maxVariables) return SCAN_TOO_MANY_VARIABLES;
+                    nameStart = start;
+                    nameEnd = i;
+                }
+                else
+                {
+                    if (i - start > maxValueLength) return SCAN_VALUE_TOO_LONG;
+                    this.add(nameStart, nameEnd, start, i);
+                    nameStart = -1;
+                }
+                start = i + 1;
+            }
+        }
+        // a name without a value, or a trailing name or value which is not terminated
+        return nameStart != -1 || start != end ? SCAN_MALFORMED : SCAN_OK;
+    }
+
+    private void add(int nameStart, int nameEnd, int valueStart, int valueEnd)
+    {
+        if ((this.count + 1) * ENTRY_SIZE > this.entries.length)
+        {
+            this.entries = Arrays.copyOf(this.entries, this.entries.length * 2);
+            this.values = Arrays.copyOf(this.values, this.values.length * 2);
+        }
+        int entry = this.count++;
+        int at = entry * ENTRY_SIZE;
+        this.entries[at]     = nameStart;
+        this.entries[at + 1] = nameEnd;
+        this.entries[at + 2] = valueStart;
+        this.entries[at + 3] = valueEnd;
+        // classify the variable
+        int kind = KIND_OTHER;
+        int id = -1;
+        if (this.startsWith(nameStart, nameEnd, HTTP_PREFIX))
+        {
+            kind = KIND_HEADER;
+        }
+        else
+        {
+            id = this.knownId(nameStart, nameEnd);
+            if (id != -1)
+            {
+                // should a variable be repeated, the last one wins
+                this.known[id] = entry;
+                kind = KIND_KNOWN;
+            }
+        }
+        this.entries[at + 4] = kind;
+        this.entries[at + 5] = id;
+    }
+
+    /**
+     * Is the value of the given entry one which repeats between requests, 
+     * and so worth caching
+     */
+    private boolean isCacheable(int entry)
+    {
+        int at = entry * ENTRY_SIZE;
+        switch (this.entries[at + 4])
+        {
+            case KIND_KNOWN:
+                return CACHED_KNOWN[this.entries[at + 5]];
+            case KIND_HEADER:
+                for (SCGIHeaderKey key : CACHED_HEADERS)
+                {
+                    if (key.matches(this.block, this.entries[at], this.entries[at + 1])) return true;
+                }
+                return false;
+            default:
+                for (byte[] name : CACHED_VARIABLES)
+                {
+                    if (this.regionEquals(this.entries[at], this.entries[at + 1], name)) return true;
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Compare the bytes of the block between start and end with the given value
+     */
+    private boolean regionEquals(int start, int end, byte[] value)
+    {
+        if (end - start != value.length) return false;
+        for (int i = 0; i < value.length; i++)
+        {
+            if (this.block[start + i] != value[i]) return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(int start, int end, byte[] prefix)
+    {
+        if (end - start < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (this.block[start + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compare a CGI style header name in the block with a HTTP style name, 
+     * ignoring case and treating '-' as '_'
+     */
+    private boolean headerNameEquals(int start, int end, String name)
+    {
+        if (end - start != name.length()) return false;
+        for (int i = start, j = 0; i < end; i++, j++)
+        {
+            int c = name.charAt(j);
+            if (c >= 'a' && c <= 'z') c -= ('a' - 'A');
+            else if (c == '-') c = '_';
+            if ((this.block[i] & 0xFF) != c) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compare the bytes of the block between start and end with the given 
+     * value from valueOffset, each char being compared as a Latin-1 byte
+     */
+    private boolean regionEquals(int start, int end, String value, int valueOffset)
+    {
+        if (end - start != value.length() - valueOffset) return false;
+        for (int i = start, j = valueOffset; i < end; i++, j++)
+        {
+            if ((this.block[i] & 0xFF) != value.charAt(j)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Use the given cache to decode names and values, or null to always decode them
+     */
+    public void setCache(StringCache cache)
+    {
+        this.recordCacheLookups();
+        this.cache = cache;
+    }
+
+    public StringCache getCache()
+    {
+        return this.cache;
+    }
+
+    private void recordCacheLookups()
+    {
+        if (this.cache != null) this.cache.record(this.cacheHits, this.cacheMisses);
+        this.cacheHits = 0;
+        this.cacheMisses = 0;
+    }
+
+    public void clear()
+    {
+        if (this.cacheHits != 0 || this.cacheMisses != 0) this.recordCacheLookups();
+        Arrays.fill(this.values, 0, this.count, null);
+        Arrays.fill(this.known, -1);
+        this.count = 0;
+        this.block = null;
+    }
+
+    /**
+     * The number of variables
+     */
+    public int size()
+    {
+        return this.count;
+    }
+
+    public int kind(int entry)
+    {
+        return this.entries[entry * ENTRY_SIZE + 4];
+    }
+
+    /**
+     * Get the entry of the given well known variable
+     * @return the entry or -1 if the variable was not sent
+     */
+    public int find(int id)
+    {
+        return this.known[id];
+    }
+
+    /**
+     * Find the entry of the variable with the given name
+     * @return the entry or -1 if the variable was not sent
+     */
+    public int find(String name)
+    {
+        for (int entry = 0; entry < this.count; entry++)
+        {
+            int at = entry * ENTRY_SIZE;
+            if (this.regionEquals(this.entries[at], this.entries[at + 1], name, 0)) return entry;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the entry of the HTTP header with the given name, either the HTTP 
+     * name (IE: "Accept-Encoding") or the CGI name without the HTTP_ prefix 
+     * (IE: "ACCEPT_ENCODING"), the name is compared without converting it
+     * @return the entry or -1 if the header was not sent
+     */
+    public int findHeader(String name)
+    {
+        for (int entry = 0; entry < this.count; entry++)
+        {
+            int at = entry * ENTRY_SIZE;
+            if (this.entries[at + 4] == KIND_HEADER && this.headerNameEquals(this.entries[at] + HTTP_PREFIX.length, this.entries[at + 1], name)) return entry;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the entry of the given HTTP header
+     * @return the entry or -1 if the header was not sent
+     */
+    public int findHeader(SCGIHeaderKey key)
+    {
+        for (int entry = 0; entry < this.count; entry++)
+        {
+            int at = entry * ENTRY_SIZE;
+            if (this.entries[at + 4] == KIND_HEADER && key.matches(this.block, this.entries[at], this.entries[at + 1])) return entry;
+        }
+        return -1;
+    }
+
+    /**
+     * Decode the name of the given entry
+     */
+    public String name(int entry)
+    {
+        int at = entry * ENTRY_SIZE;
+        return this.decode(this.entries[at], this.entries[at + 1], true);
+    }
+
+    /**
+     * Decode the name of the given header entry, without the HTTP_ prefix
+     */
+    public String headerName(int entry)
+    {
+        int at = entry * ENTRY_SIZE;
+        return this.decode(this.entries[at] + HTTP_PREFIX.length, this.entries[at + 1], true);
+    }
+
+    /**
+     * Decode the value of the given entry, the value is only decoded once
+     * @return the value or null if the entry is -1
+     */
+    public String value(int entry)
+    {
+        if (entry == -1) return null;
+        String value = this.values[entry];
+        if (value == null)
+        {
+            int at = entry * ENTRY_SIZE;
+            value = this.decode(this.entries[at + 2], this.entries[at + 3], this.cache != null && this.isCacheable(entry));
+            this.values[entry] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Decode the given region of the block, using the cache if permitted
+     */
+    private String decode(int start, int end, boolean cacheable)
+    {
+        int length = end - start;
+        if (cacheable && this.cache != null && this.cache.accepts(length))
+        {
+            String value = this.cache.lookup(this.block, start, length);
+            if (value != null)
+            {
+                this.cacheHits++;
+                return value;
+            }
+            this.cacheMisses++;
+            return this.cache.add(this.block, start, length);
+        }
+        return new String(this.block, start, length, SCGI_CHARSET);
+    }
+
+    /**
+     * A view of the value of the given entry, which decodes the value as it 
+     * is accessed rather than copying it, valid until the index is cleared
+     * @return the value, or null if entry is -1
+     */
+    public CharSequence chars(int entry)
+    {
+        if (entry == -1) return null;
+        String value = this.values[entry];
+        if (value != null) return value;
+        int at = entry * ENTRY_SIZE;
+        return new Latin1CharSequence(this.block, this.entries[at + 2], this.entries[at + 3] - this.entries[at + 2]);
+    }
+
+    /**
+     * Parse the value of the given entry as a positive integer, without decoding it
+     * @return the value or the given default if the entry is -1 or empty
+     * @throws NumberFormatException if the value is not a positive integer
+     */
+    public int intValue(int entry, int defaultValue)
+    {
+        if (entry == -1) return defaultValue;
+        int at = entry * ENTRY_SIZE;
+        int start = this.entries[at + 2];
+        int end = this.entries[at + 3];
+        if (start == end) return defaultValue;
+        long value = 0;
+        for (int i = start; i < end; i++)
+        {
+            int b = this.block[i];
+            if (b < '0' || b > '9' || i - start >= 10) throw new NumberFormatException("For input string: \"" + this.value(entry) + "\"");
+            value = value * 10 + (b - '0');
+        }
+        if (value > Integer.MAX_VALUE) throw new NumberFormatException("For input string: \"" + this.value(entry) + "\"");
+        return (int) value;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.intrbiz.balsa.scgi;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.intrbiz.balsa.SCGIException;
+import com.intrbiz.balsa.util.Platform;
+
+/**
+ * A SCGI server which processes every connection on its own virtual thread
+ * 
+ * Rather than pre-forking a fixed number of workers, each accepted connection 
+ * is processed on a new virtual thread, so request processing which blocks on 
+ * IO does not limit the number of in-flight requests.
+ * 
+ * The request and response are obtained from a pool of recycled handlers, the 
+ * pool size is the number of idle handlers which are kept for reuse.
+ * 
+ * Shutting down waits for the requests being processed, like the pooled 
+ * listeners wait for their workers.
+ * 
+ * Note: This requires Java 21 or later.
+ * 
+ */
+public class SCGIVirtualThreadListener extends SCGIListener
+{
+    private ThreadFactory virtualFactory;
+
+    /**
+     * The virtual threads processing a request
+     */
+    private final Set<Thread> running = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+    private Logger logger = Logger.getLogger(SCGIVirtualThreadListener.class);
+
+    public SCGIVirtualThreadListener()
+    {
+        super();
+    }
+
+    public SCGIVirtualThreadListener(int port)
+    {
+        super(port);
+    }
+
+    public SCGIVirtualThreadListener(int port, int poolSize)
+    {
+        super(port, poolSize);
+    }
+
+    public SCGIVirtualThreadListener(int port, int poolSize, SCGIProcessor processor)
+    {
+        super(port, poolSize, processor);
+    }
+
+    @Override
+    protected void startWorkers() throws IOException
+    {
+        try
+        {
+            this.virtualFactory = this.threadFactory();
+        }
+        catch (UnsupportedOperationException e)
+        {
+            throw new SCGIException("Failed to start SCGI Listener, virtual threads are not supported", e);
+        }
+    }
+
+    /**
+     * Create the factory of the threads which process each connection
+     * @throws UnsupportedOperationException should this JVM not support virtual threads
+     */
+    protected ThreadFactory threadFactory()
+    {
+        return Platform.newVirtualThreadFactory("SCGIVirtualWorker-");
+    }
+
+    @Override
+    protected void dispatch(final SCGIConnection client)
+    {
+        Thread thread = this.virtualFactory.newThread(new Runnable() {
+            public void run()
+            {
+                SCGIHandler handler = acquireHandler();
+                boolean done = false;
+                workerBusy();
+                try
+                {
+                    done = handler.handle(client);
+                }
+                finally
+                {
+                    workerIdle();
+                    // an asynchronous request releases the handler once complete
+                    if (done) releaseHandler(handler);
+                    running.remove(Thread.currentThread());
+                }
+            }
+        });
+        this.running.add(thread);
+        try
+        {
+            thread.start();
+        }
+        catch (RuntimeException | OutOfMemoryError e)
+        {
+            // keep accepting, this connection is rejected
+            this.running.remove(thread);
+            logger.error("Failed to start a thread to process a connection, rejecting it", e);
+            this.rejectLater(client);
+        }
+    }
+
+    /**
+     * Stop accepting connections and wait for the requests being processed
+     */
+    @Override
+    public void shutdown()
+    {
+        super.shutdown();
+        // a connection accepted while stopping may still start a thread
+        while (! this.running.isEmpty())
+        {
+            for (Thread thread : this.running)
+            {
+                try
+                {
+                    thread.join();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -10,129 +10,58 @@
 
 package com.intrbiz.balsa.scgi;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.nio.charset.Charset;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ThreadFactory;
 
-import org.apache.log4j.Logger;
-
-import com.codahale.metrics.Timer;
-
 /**
  * A worker of the SCGI Listener.
  * 
- * The SCGI worker will parse the socket, populating a SCGIRequest.
- * 
- * The request is then passed to a SCGIProcessor for processing.
+ * The SCGI worker takes connections from the listener and 
+ * passes them to its handler for processing.
  * 
  */
 public class SCGIWorker implements Runnable
 {
-    private static final Charset SCGI_CHARSET = Charset.forName("ISO-8859-1");
-
     private final SCGIListener listener;
 
-    private final BlockingQueue<Socket> runQueue;
-
     private final Thread thread;
 
-    private Logger logger = Logger.getLogger(this.getClass());
-
-    private final Timer requestDuration;
+    private SCGIHandler handler;
 
-    private final Timer requestHeaderParseDuration;
-    
-    private final Timer requestProcessDuration;
-
-    public SCGIWorker(SCGIListener listener, BlockingQueue<Socket> runQueue, ThreadFactory workerFactory, Timer requestDuration, Timer requestHeaderParseDuration, Timer requestProcessDuration)
+    public SCGIWorker(SCGIListener listener, ThreadFactory workerFactory, SCGIHandler handler)
     {
         super();
         this.listener = listener;
-        this.runQueue = runQueue;
         this.thread = workerFactory.newThread(this);
-        this.requestDuration = requestDuration;
-        this.requestHeaderParseDuration = requestHeaderParseDuration;
-        this.requestProcessDuration = requestProcessDuration;
-    }
-
-    protected SCGIProcessor getProcessor()
-    {
-        return this.listener.getProcessor();
+        this.handler = handler;
     }
 
     public void run()
     {
-        // Request and Response
-        SCGIRequest request = new SCGIRequest();
-        SCGIResponse response = new SCGIResponse();
-        // The client
-        Socket client;
         // Enter the run loop
         while (this.listener.isRun())
         {
             try
             {
-                client = this.runQueue.take();
-                final Timer.Context tCtx = this.requestDuration.time();
-                try
+                SCGIConnection client = this.listener.nextConnection(this.listener.getWorkerKeepAlive());
+                if (client == null)
                 {
+                    // we've been idle, exit if the pool can shrink
+                    if (this.listener.retireWorker(this, true)) break;
+                }
+                else if (! this.listener.shed(client))
+                {
+                    this.listener.workerBusy();
                     try
                     {
-                        request.activate();
-                        response.activate();
-                        try
-                        {
-                            final Timer.Context hpCtx = this.requestHeaderParseDuration.time();
-                            try
-                            {
-                                InputStream input = new BufferedInputStream(client.getInputStream(), 1024);
-                                OutputStream output = new BufferedOutputStream(client.getOutputStream(), 8192);
-                                byte[] headers = this.readHeaders(input);
-                                this.parseHeaders(headers, request);
-                                this.readBodySeparator(input);
-                                // set the streams
-                                request.stream(input);
-                                response.stream(output);
-                            }
-                            finally
-                            {
-                                hpCtx.stop();
-                            }
-                            // process
-                            final Timer.Context rpCtx = this.requestProcessDuration.time();
-                            try
-                            {
-                                this.getProcessor().process(request, response);
-                            }
-                            finally
-                            {
-                                rpCtx.stop();
-                            }
-                        }
-                        finally
-                        {
-                            // close
-                            request.deactivate();
-                            response.deactivate();
-                            client.close();
-                        }
+                        // take another handler, should the request still be in flight
+                        if (! this.handler.handle(client)) this.handler = this.listener.acquireHandler();
                     }
-                    catch (Throwable t)
+                    finally
                     {
-                        // A throwable should not reach here - Fatal!
-                        if (t instanceof OutOfMemoryError) logger.fatal("OUT OF MEMORY ERROR!");
-                        logger.fatal("Terminated request due to uncaught throwable while processing request!", t);
+                        this.listener.workerIdle();
                     }
-                }
-                finally
-                {
-                    tCtx.stop();
+                    // exit if the pool has been shrunk
+                    if (this.listener.retireWorker(this, false)) break;
                 }
             }
             catch (InterruptedException e)
@@ -147,6 +76,11 @@ public class SCGIWorker implements Runnable
         this.thread.start();
     }
 
+    public void interrupt()
+    {
+        this.thread.interrupt();
+    }
+
     public void await()
     {
         try
@@ -157,62 +91,4 @@ public class SCGIWorker implements Runnable
         {
         }
     }
-
-    protected void parseHeaders(byte[] headers, SCGIRequest request)
-    {
-        int start = 0;
-        String name = null;
-        for (int i = 0; i < headers.length; i++)
-        {
-            if (headers[i] == 0)
-            {
-                if (name == null)
-                {
-                    name = new String(headers, start, i - start, SCGI_CHARSET);
-                }
-                else
-                {
-                    request.variable(name, new String(headers, start, i - start, SCGI_CHARSET));
-                    name = null;
-                }
-                start = i + 1;
-            }
-        }
-    }
-
-    protected void readBodySeparator(InputStream input) throws IOException
-    {
-        int r = input.read();
-        if (r == -1) throw new IOException("Unexpected EOF while reading body separator");
-        if (r != ',') throw new IOException("SCGI body separator not found where it should be, got #" + r + " instead");
-    }
-
-    protected byte[] readHeaders(InputStream input) throws IOException
-    {
-        int headerLength = this.readHeaderLength(input);
-        // Get a buffer for the headers
-        byte[] buffer = new byte[headerLength];
-        int readLength = 0;
-        // read in the headers
-        while (readLength < headerLength)
-        {
-            int r = input.read(buffer, readLength, headerLength);
-            if (r == -1) throw new IOException("Unexpected EOF while reading headers");
-            readLength += r;
-        }
-        return buffer;
-    }
-
-    protected int readHeaderLength(InputStream input) throws IOException
-    {
-        int r;
-        int length = 0;
-        while ((r = input.read()) != -1)
-        {
-            if (r == ':') return length;
-            if (r < '0' && '9' > r) throw new IOException("Unexpected character #" + r + " in headers length");
-            length = length * 10 + (r - '0');
-        }
-        throw new IOException("Unexpected EOF while reading header length");
-    }
 }
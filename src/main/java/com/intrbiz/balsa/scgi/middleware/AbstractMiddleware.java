@@ -62,7 +62,7 @@ public class AbstractMiddleware implements SCGIMiddleware
         int read = 0;
         while (read < length)
         {
-            int r = input.read(buffer, read, length);
+            int r = input.read(buffer, read, length - read);
             if (r == -1) throw new IOException("Unexpected EOF while reading body");
             read += r;
         }
@@ -0,0 +1,107 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.scgi.middleware;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.intrbiz.balsa.scgi.SCGIAsyncProcessor;
+import com.intrbiz.balsa.scgi.SCGICompletion;
+import com.intrbiz.balsa.scgi.SCGIMiddleware;
+import com.intrbiz.balsa.scgi.SCGIRequest;
+import com.intrbiz.balsa.scgi.SCGIResponse;
+
+/**
+ * Adapt Middleware to an asynchronous processor, forming a processing chain
+ * 
+ * The middleware is called after the request has completed, on the 
+ * thread which completed it.
+ */
+public class AsyncMiddlewareProcessor implements SCGIAsyncProcessor
+{
+    private final SCGIMiddleware middleware;
+
+    private final SCGIAsyncProcessor processor;
+
+    public AsyncMiddlewareProcessor(SCGIMiddleware middleware, SCGIAsyncProcessor processor)
+    {
+        super();
+        this.middleware = middleware;
+        this.processor = processor;
+    }
+
+    public void process(final SCGIRequest request, final SCGIResponse response, final SCGICompletion completion) throws Throwable
+    {
+        // Call before, abort if false
+        if (!this.middleware.before(request, response))
+        {
+            completion.complete();
+            return;
+        }
+        SCGICompletion after = new SCGICompletion() {
+            private final AtomicBoolean done = new AtomicBoolean();
+
+            public void complete()
+            {
+                if (! this.done.compareAndSet(false, true)) return;
+                try
+                {
+                    // Always call after
+                    middleware.after(request, response);
+                }
+                catch (Throwable t)
+                {
+                    completion.fail(t);
+                    return;
+                }
+                completion.complete();
+            }
+
+            public void fail(Throwable t)
+            {
+                if (! this.done.compareAndSet(false, true)) return;
+                try
+                {
+                    // Always call after
+                    middleware.after(request, response);
+                }
+                catch (Throwable e)
+                {
+                }
+                completion.fail(t);
+            }
+        };
+        try
+        {
+            this.processor.process(request, response, after);
+        }
+        catch (Throwable t)
+        {
+            after.fail(t);
+        }
+    }
+}
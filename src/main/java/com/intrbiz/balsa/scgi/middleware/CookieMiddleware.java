@@ -31,6 +31,7 @@ import static com.intrbiz.balsa.util.Util.*;
 
 import java.io.IOException;
 
+import com.intrbiz.balsa.scgi.SCGIHeaderKey;
 import com.intrbiz.balsa.scgi.SCGIRequest;
 import com.intrbiz.balsa.scgi.SCGIResponse;
 import com.intrbiz.balsa.util.CookiesParser;
@@ -40,12 +41,10 @@ import com.intrbiz.balsa.util.CookiesParser;
  */
 public class CookieMiddleware extends AbstractMiddleware
 {
-    public static final String COOKIES_HEADER = "Cookie";
-    
     @Override
     public boolean before(SCGIRequest request, SCGIResponse response) throws IOException
     {
-        String cookies = request.getHeader(COOKIES_HEADER);
+        String cookies = request.getHeader(SCGIHeaderKey.COOKIE);
         if (! isEmpty(cookies)) CookiesParser.parseCookies(cookies, request);
         return true;
     }
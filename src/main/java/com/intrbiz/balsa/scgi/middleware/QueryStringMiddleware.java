@@ -28,37 +28,183 @@
 package com.intrbiz.balsa.scgi.middleware;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.util.Map;
 
+import com.intrbiz.balsa.parameter.Parameter;
+import com.intrbiz.balsa.scgi.SCGIParameterParser;
 import com.intrbiz.balsa.scgi.SCGIRequest;
 import com.intrbiz.balsa.scgi.SCGIResponse;
+import com.intrbiz.balsa.util.CompactParameterSet;
+import com.intrbiz.balsa.util.FormBodyParser;
+import com.intrbiz.balsa.util.ParameterSet;
+import com.intrbiz.balsa.util.QueryStringCache;
 import com.intrbiz.balsa.util.QueryStringParser;
 
 /**
- * Parse the query string
+ * Parse the query string, and any posted form body
+ * 
+ * A posted form is parsed as it is read, limited to getMaxBodySize() bytes 
+ * with no single parameter larger than getMaxParameterSize(), a form which 
+ * exceeds these limits is rejected with 413 Request Entity Too Large.  By 
+ * default a form is limited to 2 MiB with no parameter larger than 256 KiB, 
+ * applications which accept larger forms must raise these limits, use 
+ * Integer.MAX_VALUE for no limit.
+ * 
+ * In lazy mode the parameters are only parsed when the request parameters 
+ * are first accessed, so requests which never look at their parameters 
+ * do not pay to parse them.  A parse failure is then raised as an 
+ * IllegalStateException from every accessor, should the request not have 
+ * responded the failure is then rejected as a bad request.  A body which 
+ * has been read by other means is not parsed.
+ * 
+ * Given a QueryStringCache, the parameters of repeated query strings are 
+ * shared between requests rather than parsed again.
+ * 
+ * With compact parameters, the parameters are parsed into a 
+ * CompactParameterSet held by the request, rather than a Parameter and a 
+ * map entry per parameter, for endpoints which take hundreds of 
+ * parameters.  See SCGIRequest.useCompactParameters() for how the 
+ * parameters then behave.  A shared parse of the query string is used in 
+ * preference to compact parameters.
  */
-public class QueryStringMiddleware extends AbstractMiddleware
+public class QueryStringMiddleware extends AbstractMiddleware implements SCGIParameterParser
 {
-    private static final Charset SCGI_CHARSET = Charset.forName("ISO-8859-1");
-    
     public static final String WWW_FORM_URLENCODED = "application/x-www-form-urlencoded";
     
+    /**
+     * The default limit of a posted form, 2 MiB
+     */
+    public static final int DEFAULT_MAX_BODY_SIZE = 2 * 1024 * 1024;
+    
+    /**
+     * The default limit of a single parameter of a posted form, 256 KiB
+     */
+    public static final int DEFAULT_MAX_PARAMETER_SIZE = 256 * 1024;
+    
+    private int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+    
+    private int maxParameterSize = DEFAULT_MAX_PARAMETER_SIZE;
+    
+    private boolean lazy = false;
+    
+    private QueryStringCache queryStringCache;
+    
+    private boolean compactParameters = false;
+    
+    public QueryStringMiddleware()
+    {
+        super();
+    }
+    
+    public QueryStringMiddleware(int maxBodySize, int maxParameterSize)
+    {
+        super();
+        this.maxBodySize = maxBodySize;
+        this.maxParameterSize = maxParameterSize;
+    }
+    
+    public QueryStringMiddleware(boolean lazy)
+    {
+        super();
+        this.lazy = lazy;
+    }
+    
+    public int getMaxBodySize()
+    {
+        return this.maxBodySize;
+    }
+
+    public void setMaxBodySize(int maxBodySize)
+    {
+        this.maxBodySize = maxBodySize;
+    }
+
+    public int getMaxParameterSize()
+    {
+        return this.maxParameterSize;
+    }
+
+    public void setMaxParameterSize(int maxParameterSize)
+    {
+        this.maxParameterSize = maxParameterSize;
+    }
+
+    /**
+     * Are parameters parsed when they are first accessed, rather than before the request is processed
+     */
+    public boolean isLazy()
+    {
+        return this.lazy;
+    }
+
+    public void setLazy(boolean lazy)
+    {
+        this.lazy = lazy;
+    }
+
+    public QueryStringCache getQueryStringCache()
+    {
+        return this.queryStringCache;
+    }
+
+    /**
+     * Share the parsed parameters of repeated query strings using the given cache, or null to always parse them
+     */
+    public void setQueryStringCache(QueryStringCache queryStringCache)
+    {
+        this.queryStringCache = queryStringCache;
+    }
+
+    /**
+     * Are parameters parsed into a CompactParameterSet held by the request
+     */
+    public boolean isCompactParameters()
+    {
+        return this.compactParameters;
+    }
+
+    public void setCompactParameters(boolean compactParameters)
+    {
+        this.compactParameters = compactParameters;
+    }
+
     @Override
     public boolean before(SCGIRequest request, SCGIResponse response) throws IOException
     {
-        // parse the query string
-        QueryStringParser.parseQueryString(request.getQueryString(), request);
-        // parse a posted query string
-        if (request.getContentType() != null && request.getContentType().startsWith(WWW_FORM_URLENCODED))
+        if (this.lazy)
+        {
+            request.parseParametersLazily(this);
+        }
+        else
         {
-            // buffer the request body in
-            byte[] body = this.readBodyBytes(request);
-            // parse the parameters
-            String postParameters = new String(body, SCGI_CHARSET);
-            QueryStringParser.parseQueryString(postParameters, request);
+            this.parseParameters(request);
         }
         // continue processing the request
         return true;
     }
+
+    @Override
+    public void parseParameters(SCGIRequest request) throws IOException
+    {
+        // parse the query string, or use the cached parse of it
+        String query = request.getQueryString();
+        Map<String, Parameter> shared = this.queryStringCache == null ? null : this.queryStringCache.get(query);
+        ParameterSet parameters = request;
+        if (shared == null || ! request.shareParameters(shared))
+        {
+            if (this.compactParameters)
+            {
+                CompactParameterSet compact = request.useCompactParameters();
+                if (compact != null) parameters = compact;
+            }
+            QueryStringParser.parseQueryString(query, parameters);
+        }
+        // parse a posted query string, unless the body has been read by other means
+        if (request.getContentType() != null && request.getContentType().startsWith(WWW_FORM_URLENCODED) && ! request.isInputUsed())
+        {
+            // decode the parameters as the body is read
+            FormBodyParser.parse(request.getInput(), request.getContentLength(), parameters, this.maxBodySize, this.maxParameterSize);
+        }
+    }
     
 }
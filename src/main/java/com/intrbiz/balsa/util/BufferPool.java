@@ -0,0 +1,298 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.intrbiz.gerald.source.IntelligenceSource;
+import com.intrbiz.gerald.witchcraft.Witchcraft;
+
+/**
+ * A pool of fixed size buffers, used to avoid allocating and zeroing
+ * I/O buffers for every request.
+ *
+ * Each thread keeps a small stack of buffers, so that a worker which
+ * releases a buffer at the end of a request gets the same buffer back
+ * for its next request without contention.  Buffers beyond that go to a
+ * bounded shared pool, which allows buffers to move between threads,
+ * IE: when an asynchronous request completes on another thread.  Buffers
+ * released to a full pool are left for the garbage collector.
+ *
+ * Virtual threads do not keep buffers of their own, as they do not
+ * outlive a request.
+ *
+ * The hits, misses and the number of buffers which are currently
+ * acquired are published as metrics.
+ *
+ * @param <T> the buffer type
+ */
+public abstract class BufferPool<T>
+{
+    public static final int DEFAULT_BYTE_BUFFER_SIZE = 8192;
+
+    public static final int DEFAULT_CHAR_BUFFER_SIZE = 4096;
+
+    /**
+     * The number of buffers each thread keeps
+     */
+    public static final int DEFAULT_THREAD_CAPACITY = 4;
+
+    /**
+     * The number of buffers the shared pool keeps
+     */
+    public static final int DEFAULT_SHARED_CAPACITY = 256;
+
+    private static final BufferPool<byte[]> BYTES = new Bytes("bytes", DEFAULT_BYTE_BUFFER_SIZE, DEFAULT_THREAD_CAPACITY, DEFAULT_SHARED_CAPACITY);
+
+    private static final BufferPool<char[]> CHARS = new Chars("chars", DEFAULT_CHAR_BUFFER_SIZE, DEFAULT_THREAD_CAPACITY, DEFAULT_SHARED_CAPACITY);
+
+    /**
+     * The shared pool of byte buffers used for socket I/O
+     */
+    public static BufferPool<byte[]> bytes()
+    {
+        return BYTES;
+    }
+
+    /**
+     * The shared pool of char buffers used by writers
+     */
+    public static BufferPool<char[]> chars()
+    {
+        return CHARS;
+    }
+
+    private final int bufferSize;
+
+    private final int threadCapacity;
+
+    private final int sharedCapacity;
+
+    private final ThreadLocal<Local> local = new ThreadLocal<Local>() {
+        @Override
+        protected Local initialValue()
+        {
+            return new Local(Platform.isVirtualThread(Thread.currentThread()) ? 0 : threadCapacity);
+        }
+    };
+
+    private final Queue<T> shared = new ConcurrentLinkedQueue<T>();
+
+    private final AtomicInteger sharedCount = new AtomicInteger();
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    /**
+     * Create a pool, publishing its metrics under the given name
+     * @param name the name of the pool
+     * @param bufferSize the size of each buffer
+     * @param threadCapacity the number of buffers each thread keeps
+     * @param sharedCapacity the number of buffers the shared pool keeps
+     */
+    protected BufferPool(String name, int bufferSize, int threadCapacity, int sharedCapacity)
+    {
+        super();
+        this.bufferSize = bufferSize;
+        this.threadCapacity = threadCapacity;
+        this.sharedCapacity = sharedCapacity;
+        // metrics
+        IntelligenceSource source = Witchcraft.get().source("com.intrbiz.balsa");
+        MetricRegistry registry = source.getRegistry();
+        this.hits   = registry.counter(Witchcraft.name(BufferPool.class, name, "hits"));
+        this.misses = registry.counter(Witchcraft.name(BufferPool.class, name, "misses"));
+        String outstandingName = Witchcraft.name(BufferPool.class, name, "outstanding");
+        registry.remove(outstandingName);
+        registry.register(outstandingName, new Gauge<Integer>() {
+            public Integer getValue()
+            {
+                return getOutstanding();
+            }
+        });
+    }
+
+    /**
+     * Allocate a new buffer
+     */
+    protected abstract T allocate(int size);
+
+    /**
+     * The size of the given buffer
+     */
+    protected abstract int size(T buffer);
+
+    public final int getBufferSize()
+    {
+        return this.bufferSize;
+    }
+
+    /**
+     * Take a buffer from this pool, allocating one should the pool be empty
+     * @return a buffer of getBufferSize(), the content of which is undefined
+     */
+    public final T acquire()
+    {
+        this.outstanding.incrementAndGet();
+        T buffer = this.local.get().pop();
+        if (buffer == null)
+        {
+            buffer = this.shared.poll();
+            if (buffer != null) this.sharedCount.decrementAndGet();
+        }
+        if (buffer != null)
+        {
+            this.hits.inc();
+            return buffer;
+        }
+        this.misses.inc();
+        return this.allocate(this.bufferSize);
+    }
+
+    /**
+     * Return a buffer to this pool, the buffer must not be used afterwards
+     * @param buffer a buffer acquired from this pool, buffers of other sizes are ignored
+     */
+    public final void release(T buffer)
+    {
+        if (buffer == null) return;
+        this.outstanding.decrementAndGet();
+        if (this.size(buffer) != this.bufferSize) return;
+        if (this.local.get().push(buffer)) return;
+        if (this.sharedCount.incrementAndGet() <= this.sharedCapacity)
+        {
+            this.shared.offer(buffer);
+        }
+        else
+        {
+            this.sharedCount.decrementAndGet();
+        }
+    }
+
+    public long getHitCount()
+    {
+        return this.hits.getCount();
+    }
+
+    public long getMissCount()
+    {
+        return this.misses.getCount();
+    }
+
+    /**
+     * The number of buffers which have been acquired and not yet released
+     */
+    public int getOutstanding()
+    {
+        return this.outstanding.get();
+    }
+
+    /**
+     * The buffers kept by a thread
+     */
+    private final class Local
+    {
+        private final Object[] buffers;
+
+        private int count = 0;
+
+        public Local(int capacity)
+        {
+            this.buffers = new Object[capacity];
+        }
+
+        @SuppressWarnings("unchecked")
+        public T pop()
+        {
+            if (this.count == 0) return null;
+            T buffer = (T) this.buffers[--this.count];
+            this.buffers[this.count] = null;
+            return buffer;
+        }
+
+        public boolean push(T buffer)
+        {
+            if (this.count == this.buffers.length) return false;
+            this.buffers[this.count++] = buffer;
+            return true;
+        }
+    }
+
+    /**
+     * A pool of byte arrays
+     */
+    public static class Bytes extends BufferPool<byte[]>
+    {
+        public Bytes(String name, int bufferSize, int threadCapacity, int sharedCapacity)
+        {
+            super(name, bufferSize, threadCapacity, sharedCapacity);
+        }
+
+        @Override
+        protected byte[] allocate(int size)
+        {
+            return new byte[size];
+        }
+
+        @Override
+        protected int size(byte[] buffer)
+        {
+            return buffer.length;
+        }
+    }
+
+    /**
+     * A pool of char arrays
+     */
+    public static class Chars extends BufferPool<char[]>
+    {
+        public Chars(String name, int bufferSize, int threadCapacity, int sharedCapacity)
+        {
+            super(name, bufferSize, threadCapacity, sharedCapacity);
+        }
+
+        @Override
+        protected char[] allocate(int size)
+        {
+            return new char[size];
+        }
+
+        @Override
+        protected int size(char[] buffer)
+        {
+            return buffer.length;
+        }
+    }
+}
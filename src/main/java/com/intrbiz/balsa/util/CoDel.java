@@ -0,0 +1,150 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.intrbiz.balsa.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A CoDel (controlled delay) queue management policy.
+ * 
+ * Rather than looking at the length of a queue, CoDel looks at how long 
+ * items have waited in the queue.  Once the wait time of dequeued items has 
+ * stayed above the target for a whole interval, items are dropped, with the 
+ * drop rate increasing (interval / sqrt(drops)) until the wait time falls 
+ * back below the target.
+ * 
+ * See: Controlled Delay Active Queue Management, RFC 8289
+ */
+public class CoDel
+{
+    public static final long DEFAULT_TARGET = 5;
+
+    public static final long DEFAULT_INTERVAL = 100;
+
+    private final long target;
+
+    private final long interval;
+
+    private long firstAboveTime = 0;
+
+    private long dropNext = 0;
+
+    private int count = 0;
+
+    private int lastCount = 0;
+
+    private boolean dropping = false;
+
+    /**
+     * A CoDel policy using the default target (5ms) and interval (100ms)
+     */
+    public CoDel()
+    {
+        this(DEFAULT_TARGET, DEFAULT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A CoDel policy
+     * @param target the acceptable standing queue delay
+     * @param interval the time the delay must exceed the target before dropping
+     * @param unit the time unit of target and interval
+     */
+    public CoDel(long target, long interval, TimeUnit unit)
+    {
+        super();
+        this.target = unit.toNanos(target);
+        this.interval = unit.toNanos(interval);
+    }
+
+    public long getTarget(TimeUnit unit)
+    {
+        return unit.convert(this.target, TimeUnit.NANOSECONDS);
+    }
+
+    public long getInterval(TimeUnit unit)
+    {
+        return unit.convert(this.interval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Should an item which has just been taken from the queue be dropped
+     * @param sojourn how long the item waited in the queue, in nanoseconds
+     * @param now the current time, as given by System.nanoTime()
+     * @return true if the item should be dropped
+     */
+    public synchronized boolean shouldDrop(long sojourn, long now)
+    {
+        boolean okToDrop = this.isAboveTarget(sojourn, now);
+        if (this.dropping)
+        {
+            if (! okToDrop)
+            {
+                // the delay is back below the target
+                this.dropping = false;
+            }
+            else if (now - this.dropNext >= 0)
+            {
+                this.count++;
+                this.dropNext = this.controlLaw(this.dropNext);
+                return true;
+            }
+        }
+        else if (okToDrop)
+        {
+            // enter the dropping state, resuming from the previous drop rate 
+            // if we were dropping recently
+            this.dropping = true;
+            int delta = this.count - this.lastCount;
+            this.count = (delta > 1 && now - this.dropNext < 16 * this.interval) ? delta : 1;
+            this.lastCount = this.count;
+            this.dropNext = this.controlLaw(now);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isAboveTarget(long sojourn, long now)
+    {
+        if (sojourn < this.target)
+        {
+            this.firstAboveTime = 0;
+            return false;
+        }
+        if (this.firstAboveTime == 0)
+        {
+            this.firstAboveTime = now + this.interval;
+            return false;
+        }
+        return now - this.firstAboveTime >= 0;
+    }
+
+    private long controlLaw(long t)
+    {
+        return t + (long) (this.interval / Math.sqrt(this.count));
+    }
+}
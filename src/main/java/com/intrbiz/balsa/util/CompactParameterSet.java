@@ -0,0 +1,624 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.intrbiz.balsa.parameter.IndexedListParameter;
+import com.intrbiz.balsa.parameter.ListParameter;
+import com.intrbiz.balsa.parameter.Parameter;
+import com.intrbiz.balsa.parameter.StringParameter;
+
+/**
+ * A compact set of string parameters, for requests with many parameters.
+ *
+ * Rather than a Parameter object, a String for the name and value and a
+ * map entry for each parameter, all names and values are held in a single
+ * char buffer with an int table of offsets.  Each distinct name is stored
+ * once, the values of a name are chained together in the order they were
+ * added.  Names are found through an open addressing table using the
+ * String hash of the name, without creating a String.
+ *
+ * Parameter objects are only created when requested through the
+ * ParameterSet interface, the view of a name is kept until that name
+ * changes.  List views are frozen, changes must be made through this set,
+ * IE: by adding a copy of the list.  Parameters which are not strings, or
+ * lists of strings, are held as objects.
+ *
+ * QueryStringParser decodes directly into this set without creating a
+ * String per name and value.  A request holds its parameters in this set
+ * when it opts in, through QueryStringMiddleware.setCompactParameters() or
+ * SCGIRequest.useCompactParameters().
+ *
+ * This set is not thread safe, it can be cleared and reused.
+ */
+public final class CompactParameterSet implements ParameterSet
+{
+    /**
+     * Each value is: name, value offset, value length, index, flags, next value
+     */
+    private static final int VALUE_SIZE = 6;
+
+    /**
+     * Each name is: offset, length, hash, first value, last value, value count, flags
+     */
+    private static final int NAME_SIZE = 7;
+
+    /**
+     * The value should be sorted into the list by index
+     */
+    private static final int FLAG_SORT = 1;
+
+    /**
+     * The name is a list, even with a single value
+     */
+    private static final int FLAG_LIST = 2;
+
+    /**
+     * The name has a value which was sorted by index, IE: name[index]
+     */
+    private static final int FLAG_INDEXED = 4;
+
+    /**
+     * The name is held as an object in others
+     */
+    private static final int FLAG_OTHER = 8;
+
+    /**
+     * Buffers larger than these are not retained once the set is cleared
+     */
+    private static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+    private static final int MAX_RETAINED_VALUES = 4 * 1024;
+
+    private static final int MAX_RETAINED_NAMES = 1024;
+
+    private char[] chars = new char[256];
+
+    private int charCount = 0;
+
+    private int[] values = new int[16 * VALUE_SIZE];
+
+    private int valueCount = 0;
+
+    private int[] names = new int[16 * NAME_SIZE];
+
+    private int nameCount = 0;
+
+    /**
+     * The number of names which have values
+     */
+    private int size = 0;
+
+    /**
+     * The name table, holding the name id plus one
+     */
+    private int[] table = new int[32];
+
+    /**
+     * The views of each name id, kept until that name changes
+     */
+    private Parameter[] views = new Parameter[16];
+
+    /**
+     * Parameters which are not strings, the name of each is flagged FLAG_OTHER
+     */
+    private Map<String, Parameter> others;
+
+    public CompactParameterSet()
+    {
+        super();
+    }
+
+    /*
+     * Storage
+     */
+
+    private static int hash(char[] buffer, int offset, int length)
+    {
+        int h = 0;
+        for (int i = offset, end = offset + length; i < end; i++)
+        {
+            h = 31 * h + buffer[i];
+        }
+        return h;
+    }
+
+    private static int spread(int hash)
+    {
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean nameEquals(int name, char[] buffer, int offset, int length)
+    {
+        int at = name * NAME_SIZE;
+        if (this.names[at + 1] != length) return false;
+        int start = this.names[at];
+        for (int i = 0; i < length; i++)
+        {
+            if (this.chars[start + i] != buffer[offset + i]) return false;
+        }
+        return true;
+    }
+
+    private boolean nameEquals(int name, String string)
+    {
+        int at = name * NAME_SIZE;
+        int length = string.length();
+        if (this.names[at + 1] != length) return false;
+        int start = this.names[at];
+        for (int i = 0; i < length; i++)
+        {
+            if (this.chars[start + i] != string.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find the id of the given name
+     * @return the name id or -1
+     */
+    private int find(String name)
+    {
+        if (name == null) return -1;
+        int hash = name.hashCode();
+        int mask = this.table.length - 1;
+        for (int slot = spread(hash) & mask;; slot = (slot + 1) & mask)
+        {
+            int id = this.table[slot] - 1;
+            if (id == -1) return -1;
+            if (this.names[id * NAME_SIZE + 2] == hash && this.nameEquals(id, name)) return id;
+        }
+    }
+
+    /**
+     * Find or create the name held in the given buffer
+     */
+    private int intern(char[] buffer, int offset, int length)
+    {
+        int hash = hash(buffer, offset, length);
+        int mask = this.table.length - 1;
+        int slot = spread(hash) & mask;
+        for (;; slot = (slot + 1) & mask)
+        {
+            int id = this.table[slot] - 1;
+            if (id == -1) break;
+            if (this.names[id * NAME_SIZE + 2] == hash && this.nameEquals(id, buffer, offset, length)) return id;
+        }
+        // a new name
+        if ((this.nameCount + 1) * 2 > this.table.length)
+        {
+            this.rehash(this.table.length * 2);
+            return this.intern(buffer, offset, length);
+        }
+        if ((this.nameCount + 1) * NAME_SIZE > this.names.length)
+        {
+            this.names = Arrays.copyOf(this.names, this.names.length * 2);
+            this.views = Arrays.copyOf(this.views, this.names.length / NAME_SIZE);
+        }
+        int id = this.nameCount++;
+        int at = id * NAME_SIZE;
+        this.names[at]     = this.store(buffer, offset, length);
+        this.names[at + 1] = length;
+        this.names[at + 2] = hash;
+        this.names[at + 3] = -1;
+        this.names[at + 4] = -1;
+        this.names[at + 5] = 0;
+        this.names[at + 6] = 0;
+        this.table[slot] = id + 1;
+        return id;
+    }
+
+    private int intern(String name)
+    {
+        int id = this.find(name);
+        if (id != -1) return id;
+        char[] buffer = name.toCharArray();
+        return this.intern(buffer, 0, buffer.length);
+    }
+
+    private void rehash(int capacity)
+    {
+        this.table = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < this.nameCount; id++)
+        {
+            int slot = spread(this.names[id * NAME_SIZE + 2]) & mask;
+            while (this.table[slot] != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+            this.table[slot] = id + 1;
+        }
+    }
+
+    /**
+     * Copy the given chars into our buffer
+     * @return the offset of the chars
+     */
+    private int store(char[] buffer, int offset, int length)
+    {
+        if (this.charCount + length > this.chars.length) this.chars = Arrays.copyOf(this.chars, Math.max(this.charCount + length, this.chars.length * 2));
+        System.arraycopy(buffer, offset, this.chars, this.charCount, length);
+        int start = this.charCount;
+        this.charCount += length;
+        return start;
+    }
+
+    private int store(String value)
+    {
+        int length = value.length();
+        if (this.charCount + length > this.chars.length) this.chars = Arrays.copyOf(this.chars, Math.max(this.charCount + length, this.chars.length * 2));
+        value.getChars(0, length, this.chars, this.charCount);
+        int start = this.charCount;
+        this.charCount += length;
+        return start;
+    }
+
+    /**
+     * Append a stored value to the given name
+     */
+    private void append(int name, int valueOffset, int valueLength, int index, int flags)
+    {
+        if ((this.valueCount + 1) * VALUE_SIZE > this.values.length) this.values = Arrays.copyOf(this.values, this.values.length * 2);
+        int value = this.valueCount++;
+        int at = value * VALUE_SIZE;
+        this.values[at]     = name;
+        this.values[at + 1] = valueOffset;
+        this.values[at + 2] = valueLength;
+        this.values[at + 3] = index;
+        this.values[at + 4] = flags;
+        this.values[at + 5] = -1;
+        int nat = name * NAME_SIZE;
+        if (this.names[nat + 4] == -1)
+        {
+            this.names[nat + 3] = value;
+            this.size++;
+        }
+        else
+        {
+            this.values[this.names[nat + 4] * VALUE_SIZE + 5] = value;
+        }
+        this.names[nat + 4] = value;
+        this.names[nat + 5]++;
+        if ((flags & FLAG_SORT) != 0) this.names[nat + 6] |= FLAG_INDEXED;
+        this.views[name] = null;
+    }
+
+    /**
+     * Remove all values of the given name, their chars are left in the buffer until the set is cleared
+     */
+    private void reset(int name)
+    {
+        int nat = name * NAME_SIZE;
+        if (this.names[nat + 3] != -1) this.size--;
+        this.names[nat + 3] = -1;
+        this.names[nat + 4] = -1;
+        this.names[nat + 5] = 0;
+        this.names[nat + 6] = 0;
+        this.views[name] = null;
+    }
+
+    /**
+     * Hold the given parameter as an object
+     */
+    private void putOther(int name, Parameter parameter)
+    {
+        if (this.others == null) this.others = new FlatMap<Parameter>();
+        this.others.put(parameter.getName(), parameter);
+        this.names[name * NAME_SIZE + 6] |= FLAG_OTHER;
+    }
+
+    private String name(int name)
+    {
+        int at = name * NAME_SIZE;
+        return new String(this.chars, this.names[at], this.names[at + 1]);
+    }
+
+    /*
+     * Adding
+     */
+
+    /**
+     * Add a decoded parameter held in the given buffer, collecting repeated
+     * names into a list in the same way as QueryStringParser.addParameter
+     * @param buffer the buffer holding the name and value
+     * @param index the index of the value, or -1
+     * @param list is the parameter always a list, IE: name[] or name[index]
+     * @param indexed should the value be sorted into the list by index, IE: name[index]
+     */
+    public void add(char[] buffer, int nameOffset, int nameLength, int valueOffset, int valueLength, int index, boolean list, boolean indexed)
+    {
+        int name = this.intern(buffer, nameOffset, nameLength);
+        if ((this.names[name * NAME_SIZE + 6] & FLAG_OTHER) != 0)
+        {
+            // merge with a parameter which we cannot hold
+            this.addOther(name, new StringParameter(this.name(name), index, new String(buffer, valueOffset, valueLength)), indexed);
+            return;
+        }
+        if (list) this.names[name * NAME_SIZE + 6] |= FLAG_LIST;
+        this.append(name, this.store(buffer, valueOffset, valueLength), valueLength, index, indexed ? FLAG_SORT : 0);
+    }
+
+    /**
+     * Add a parameter, collecting repeated names into a list in the same way
+     * as QueryStringParser.addParameter
+     * @param name the name, stripped of any [index] suffix
+     * @param index the index of the value, or -1
+     * @param list is the parameter always a list, IE: name[] or name[index]
+     * @param indexed should the value be sorted into the list by index, IE: name[index]
+     */
+    public void add(String name, String value, int index, boolean list, boolean indexed)
+    {
+        int id = this.intern(name);
+        if ((this.names[id * NAME_SIZE + 6] & FLAG_OTHER) != 0)
+        {
+            this.addOther(id, new StringParameter(name, index, value), indexed);
+            return;
+        }
+        if (list) this.names[id * NAME_SIZE + 6] |= FLAG_LIST;
+        this.append(id, this.store(value), value.length(), index, indexed ? FLAG_SORT : 0);
+    }
+
+    private void addOther(int name, Parameter parameter, boolean indexed)
+    {
+        Parameter existing = this.others.get(parameter.getName());
+        ListParameter list;
+        if (existing instanceof ListParameter)
+        {
+            list = (ListParameter) existing;
+            if (indexed && ! (list instanceof IndexedListParameter))
+            {
+                List<Parameter> values = list.getListValue();
+                list = new IndexedListParameter(list.getName(), values.toArray(new Parameter[values.size()]));
+            }
+            else if (list.isFrozen())
+            {
+                list = list.copy();
+            }
+            list.addValue(parameter);
+        }
+        else
+        {
+            list = indexed ? new IndexedListParameter(parameter.getName(), existing, parameter) : new ListParameter(parameter.getName(), existing, parameter);
+        }
+        if (indexed) list.sort();
+        this.putOther(name, list);
+    }
+
+    /**
+     * Can the given list be held compactly
+     */
+    private static boolean isStringList(ListParameter list)
+    {
+        for (Parameter value : list.getListValue())
+        {
+            if (! (value instanceof StringParameter) || ! list.getName().equals(value.getName())) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void addParameter(Parameter parameter)
+    {
+        String name = parameter.getName();
+        if (this.others != null) this.others.remove(name);
+        int id = this.find(name);
+        if (id != -1) this.reset(id);
+        if (parameter instanceof StringParameter)
+        {
+            if (id == -1) id = this.intern(name);
+            String value = parameter.getStringValue();
+            this.append(id, this.store(value), value.length(), parameter.getIndex(), 0);
+        }
+        else if (parameter instanceof ListParameter && isStringList((ListParameter) parameter))
+        {
+            if (id == -1) id = this.intern(name);
+            this.names[id * NAME_SIZE + 6] |= FLAG_LIST;
+            // the list is already in order
+            for (Parameter value : parameter.getListValue())
+            {
+                String string = value.getStringValue();
+                this.append(id, this.store(string), string.length(), value.getIndex(), 0);
+            }
+            if (parameter instanceof IndexedListParameter) this.names[id * NAME_SIZE + 6] |= FLAG_INDEXED;
+            // an empty list
+            if (this.names[id * NAME_SIZE + 5] == 0) this.putOther(id, parameter);
+        }
+        else
+        {
+            if (id == -1) id = this.intern(name);
+            this.putOther(id, parameter);
+        }
+    }
+
+    @Override
+    public void removeParameter(String name)
+    {
+        int id = this.find(name);
+        if (id != -1) this.reset(id);
+        if (this.others != null) this.others.remove(name);
+    }
+
+    /**
+     * Remove all parameters, retaining the buffers for reuse
+     */
+    public void clear()
+    {
+        if (this.chars.length > MAX_RETAINED_CHARS) this.chars = new char[256];
+        if (this.values.length > MAX_RETAINED_VALUES * VALUE_SIZE) this.values = new int[16 * VALUE_SIZE];
+        if (this.names.length > MAX_RETAINED_NAMES * NAME_SIZE)
+        {
+            this.names = new int[16 * NAME_SIZE];
+            this.views = new Parameter[16];
+            this.table = new int[32];
+        }
+        else if (this.nameCount > 0)
+        {
+            Arrays.fill(this.table, 0);
+            Arrays.fill(this.views, 0, this.nameCount, null);
+        }
+        this.charCount = 0;
+        this.valueCount = 0;
+        this.nameCount = 0;
+        this.size = 0;
+        if (this.others != null) this.others.clear();
+    }
+
+    /*
+     * Views
+     */
+
+    /**
+     * The view of the values of the given name, created should the name have changed
+     */
+    private Parameter view(int name)
+    {
+        Parameter view = this.views[name];
+        if (view == null && this.names[name * NAME_SIZE + 3] != -1)
+        {
+            view = this.createView(name);
+            this.views[name] = view;
+        }
+        return view;
+    }
+
+    private Parameter createView(int name)
+    {
+        int nat = name * NAME_SIZE;
+        int first = this.names[nat + 3];
+        String nameString = this.name(name);
+        if (this.names[nat + 5] == 1 && (this.names[nat + 6] & FLAG_LIST) == 0)
+        {
+            int at = first * VALUE_SIZE;
+            return new StringParameter(nameString, this.values[at + 3], new String(this.chars, this.values[at + 1], this.values[at + 2]));
+        }
+        // only indexed lists are looked up by index, as with QueryStringParser
+        ListParameter list = (this.names[nat + 6] & FLAG_INDEXED) != 0 ? new IndexedListParameter(nameString) : new ListParameter(nameString);
+        for (int value = first; value != -1; value = this.values[value * VALUE_SIZE + 5])
+        {
+            int at = value * VALUE_SIZE;
+            list.addValue(new StringParameter(nameString, this.values[at + 3], new String(this.chars, this.values[at + 1], this.values[at + 2])));
+            if ((this.values[at + 4] & FLAG_SORT) != 0) list.sort();
+        }
+        list.freeze();
+        return list;
+    }
+
+    @Override
+    public Parameter getParameter(String name)
+    {
+        int id = this.find(name);
+        if (id != -1 && this.names[id * NAME_SIZE + 3] != -1) return this.view(id);
+        return this.others == null ? null : this.others.get(name);
+    }
+
+    @Override
+    public boolean containsParameter(String name)
+    {
+        int id = this.find(name);
+        if (id != -1 && this.names[id * NAME_SIZE + 3] != -1) return true;
+        return this.others != null && this.others.containsKey(name);
+    }
+
+    /**
+     * Get the value of the given parameter, without creating a Parameter
+     * @return the first value of the parameter, or null
+     */
+    public String getStringValue(String name)
+    {
+        int id = this.find(name);
+        if (id != -1)
+        {
+            int first = this.names[id * NAME_SIZE + 3];
+            if (first != -1)
+            {
+                int at = first * VALUE_SIZE;
+                return new String(this.chars, this.values[at + 1], this.values[at + 2]);
+            }
+        }
+        Parameter other = this.others == null ? null : this.others.get(name);
+        return other == null ? null : other.getStringValue();
+    }
+
+    /**
+     * The number of parameters
+     */
+    public int size()
+    {
+        return this.size + (this.others == null ? 0 : this.others.size());
+    }
+
+    /**
+     * A new map of views of all the parameters, changes to which are not reflected in this set
+     */
+    @Override
+    public Map<String, Parameter> getParameters()
+    {
+        Map<String, Parameter> parameters = new LinkedHashMap<String, Parameter>();
+        for (int id = 0; id < this.nameCount; id++)
+        {
+            Parameter view = this.view(id);
+            if (view != null) parameters.put(view.getName(), view);
+        }
+        if (this.others != null) parameters.putAll(this.others);
+        return parameters;
+    }
+
+    @Override
+    public Set<String> getParameterNames()
+    {
+        Set<String> names = new LinkedHashSet<String>();
+        for (int id = 0; id < this.nameCount; id++)
+        {
+            if (this.names[id * NAME_SIZE + 3] != -1) names.add(this.name(id));
+        }
+        if (this.others != null) names.addAll(this.others.keySet());
+        return names;
+    }
+
+    @Override
+    public Collection<Parameter> getParameterValues()
+    {
+        List<Parameter> parameters = new ArrayList<Parameter>(this.size());
+        for (int id = 0; id < this.nameCount; id++)
+        {
+            Parameter view = this.view(id);
+            if (view != null) parameters.add(view);
+        }
+        if (this.others != null) parameters.addAll(this.others.values());
+        return parameters;
+    }
+}
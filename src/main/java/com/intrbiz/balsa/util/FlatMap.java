@@ -0,0 +1,450 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A compact, insertion ordered, open addressing map of String keys which
+ * reuses its arrays once cleared.
+ *
+ * Entries are held in parallel key, value and hash arrays in insertion
+ * order, with a power of two table of entry indexes which is probed
+ * linearly.  Unlike a TreeMap or HashMap no node is allocated per mapping,
+ * so a map which is cleared and refilled for each request, by the same
+ * worker, does not allocate once it has grown to the size of a typical
+ * request.
+ *
+ * Removed entries leave a hole which is compacted when the map next grows,
+ * or when it is cleared.
+ *
+ * Iteration follows insertion order and is fail fast.  This map is not
+ * thread safe.
+ *
+ * @param <V> the value type
+ */
+public final class FlatMap<V> extends AbstractMap<String, V>
+{
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Arrays larger than this are not retained once the map is cleared, so
+     * that a single huge request does not pin memory
+     */
+    private static final int MAX_RETAINED_CAPACITY = 1024;
+
+    /**
+     * Table slot markers, a slot otherwise holds the entry index plus one
+     */
+    private static final int EMPTY = 0;
+
+    private static final int DELETED = -1;
+
+    private final int initialCapacity;
+
+    private int[] table;
+
+    private String[] keys;
+
+    private Object[] values;
+
+    private int[] hashes;
+
+    /**
+     * The number of entries used, including removed entries
+     */
+    private int used = 0;
+
+    /**
+     * The number of live entries
+     */
+    private int size = 0;
+
+    private int modCount = 0;
+
+    private Set<Map.Entry<String, V>> entrySet;
+
+    public FlatMap()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FlatMap(int initialCapacity)
+    {
+        super();
+        this.initialCapacity = Math.max(Integer.highestOneBit(Math.max(initialCapacity, 2) - 1) << 1, 4);
+        this.allocate(this.initialCapacity);
+    }
+
+    private void allocate(int capacity)
+    {
+        this.table = new int[capacity * 2];
+        this.keys = new String[capacity];
+        this.values = new Object[capacity];
+        this.hashes = new int[capacity];
+    }
+
+    private static int hash(Object key)
+    {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Find the entry index of the given key
+     * @return the entry index or -1
+     */
+    private int indexOf(Object key)
+    {
+        if (key == null) return -1;
+        int hash = hash(key);
+        int mask = this.table.length - 1;
+        for (int slot = hash & mask;; slot = (slot + 1) & mask)
+        {
+            int index = this.table[slot];
+            if (index == EMPTY) return -1;
+            if (index != DELETED)
+            {
+                index--;
+                if (this.hashes[index] == hash && key.equals(this.keys[index])) return index;
+            }
+        }
+    }
+
+    /**
+     * Find the table slot holding the given entry index
+     */
+    private int slotOf(int index)
+    {
+        int mask = this.table.length - 1;
+        int slot = this.hashes[index] & mask;
+        while (this.table[slot] != index + 1)
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    @Override
+    public int size()
+    {
+        return this.size;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return this.size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return this.indexOf(key) != -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key)
+    {
+        int index = this.indexOf(key);
+        return index == -1 ? null : (V) this.values[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V put(String key, V value)
+    {
+        if (key == null) throw new NullPointerException("FlatMap does not support null keys");
+        int hash = hash(key);
+        int mask = this.table.length - 1;
+        int free = -1;
+        int slot = hash & mask;
+        for (;; slot = (slot + 1) & mask)
+        {
+            int index = this.table[slot];
+            if (index == EMPTY) break;
+            if (index == DELETED)
+            {
+                if (free == -1) free = slot;
+            }
+            else
+            {
+                index--;
+                if (this.hashes[index] == hash && key.equals(this.keys[index]))
+                {
+                    V previous = (V) this.values[index];
+                    this.values[index] = value;
+                    return previous;
+                }
+            }
+        }
+        // add a new entry
+        if (this.used == this.keys.length)
+        {
+            this.resize(this.size < this.keys.length / 2 ? this.keys.length : this.keys.length * 2);
+            return this.put(key, value);
+        }
+        int index = this.used++;
+        this.keys[index] = key;
+        this.values[index] = value;
+        this.hashes[index] = hash;
+        this.table[free != -1 ? free : slot] = index + 1;
+        this.size++;
+        this.modCount++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V remove(Object key)
+    {
+        int index = this.indexOf(key);
+        if (index == -1) return null;
+        V previous = (V) this.values[index];
+        this.removeEntry(index);
+        return previous;
+    }
+
+    private void removeEntry(int index)
+    {
+        this.table[this.slotOf(index)] = DELETED;
+        this.keys[index] = null;
+        this.values[index] = null;
+        this.size--;
+        this.modCount++;
+    }
+
+    /**
+     * Rebuild the table, compacting out removed entries
+     */
+    private void resize(int capacity)
+    {
+        String[] keys = this.keys;
+        Object[] values = this.values;
+        int[] hashes = this.hashes;
+        int used = this.used;
+        if (capacity != keys.length)
+        {
+            this.allocate(capacity);
+        }
+        else
+        {
+            Arrays.fill(this.table, EMPTY);
+        }
+        int mask = this.table.length - 1;
+        int to = 0;
+        for (int from = 0; from < used; from++)
+        {
+            if (keys[from] != null)
+            {
+                this.keys[to] = keys[from];
+                this.values[to] = values[from];
+                this.hashes[to] = hashes[from];
+                int slot = hashes[from] & mask;
+                while (this.table[slot] != EMPTY)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                this.table[slot] = to + 1;
+                to++;
+            }
+        }
+        // release anything left behind when compacting in place
+        if (this.keys == keys)
+        {
+            Arrays.fill(this.keys, to, used, null);
+            Arrays.fill(this.values, to, used, null);
+        }
+        this.used = to;
+        this.modCount++;
+    }
+
+    /**
+     * Remove all mappings, retaining the arrays for reuse
+     */
+    @Override
+    public void clear()
+    {
+        if (this.keys.length > MAX_RETAINED_CAPACITY)
+        {
+            this.allocate(this.initialCapacity);
+        }
+        else if (this.used > 0)
+        {
+            Arrays.fill(this.table, EMPTY);
+            Arrays.fill(this.keys, 0, this.used, null);
+            Arrays.fill(this.values, 0, this.used, null);
+        }
+        this.used = 0;
+        this.size = 0;
+        this.modCount++;
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet()
+    {
+        if (this.entrySet == null) this.entrySet = new EntrySet();
+        return this.entrySet;
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<String, V>>
+    {
+        @Override
+        public Iterator<Map.Entry<String, V>> iterator()
+        {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size()
+        {
+            return size;
+        }
+
+        @Override
+        public boolean contains(Object o)
+        {
+            if (!(o instanceof Map.Entry)) return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            int index = indexOf(e.getKey());
+            if (index == -1) return false;
+            Object value = values[index];
+            return value == null ? e.getValue() == null : value.equals(e.getValue());
+        }
+
+        @Override
+        public void clear()
+        {
+            FlatMap.this.clear();
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, V>>
+    {
+        private int next = 0;
+
+        private int last = -1;
+
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext()
+        {
+            while (this.next < used && keys[this.next] == null)
+            {
+                this.next++;
+            }
+            return this.next < used;
+        }
+
+        @Override
+        public Map.Entry<String, V> next()
+        {
+            if (this.expectedModCount != modCount) throw new ConcurrentModificationException();
+            if (! this.hasNext()) throw new NoSuchElementException();
+            this.last = this.next++;
+            return new Entry(this.last);
+        }
+
+        @Override
+        public void remove()
+        {
+            if (this.last == -1) throw new IllegalStateException();
+            if (this.expectedModCount != modCount) throw new ConcurrentModificationException();
+            removeEntry(this.last);
+            this.last = -1;
+            this.expectedModCount = modCount;
+        }
+    }
+
+    private final class Entry implements Map.Entry<String, V>
+    {
+        private final int index;
+
+        private final String key;
+
+        public Entry(int index)
+        {
+            this.index = index;
+            this.key = keys[index];
+        }
+
+        @Override
+        public String getKey()
+        {
+            return this.key;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public V getValue()
+        {
+            return (V) values[this.index];
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public V setValue(V value)
+        {
+            if (keys[this.index] != this.key) throw new ConcurrentModificationException();
+            V previous = (V) values[this.index];
+            values[this.index] = value;
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Map.Entry)) return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            Object value = this.getValue();
+            return this.key.equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            Object value = this.getValue();
+            return this.key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.key + "=" + this.getValue();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import com.intrbiz.balsa.SCGIBadRequestException;
+import com.intrbiz.balsa.http.HTTP.HTTPStatus;
+
+/**
+ * Parse an application/x-www-form-urlencoded request body as it is read.
+ *
+ * The body is read in fixed size chunks and each parameter is percent
+ * decoded into a pooled buffer as its bytes arrive, parameters are added
+ * to the set as soon as they are complete.  Neither the raw body nor a
+ * String of it is ever held in memory, only the parameter currently being
+ * decoded.
+ *
+ * The length of the body and of each parameter are limited, a request
+ * which exceeds a limit, or which contains a malformed escape, is rejected
+ * with a SCGIBadRequestException.
+ */
+public final class FormBodyParser
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private FormBodyParser()
+    {
+    }
+
+    /**
+     * Parse the parameters of the given form body
+     * @param input the stream to read the body from
+     * @param length the length of the body
+     * @param parameters the set to add the parameters to
+     * @param maxBodySize the maximum length of the body
+     * @param maxParameterSize the maximum decoded length of a parameter, name and value
+     * @throws SCGIBadRequestException should the body exceed a limit or be malformed
+     * @throws IOException should the body end early
+     */
+    public static void parse(InputStream input, int length, ParameterSet parameters, int maxBodySize, int maxParameterSize) throws IOException
+    {
+        if (length > maxBodySize) throw new SCGIBadRequestException(HTTPStatus.RequestEntityTooLarge, "Form body of " + length + " bytes exceeds the limit of " + maxBodySize);
+        if (length <= 0) return;
+        BufferPool<byte[]> pool = BufferPool.bytes();
+        byte[] chunk = pool.acquire();
+        byte[] parameter = pool.acquire();
+        boolean pooled = true;
+        try
+        {
+            // the decoded length of the current parameter and where its name ends
+            int used = 0;
+            int nameEnd = -1;
+            // the number of hex digits of an escape read so far, or -1 when not in an escape
+            int escape = -1;
+            int escaped = 0;
+            int remaining = length;
+            while (remaining > 0)
+            {
+                int r = input.read(chunk, 0, Math.min(chunk.length, remaining));
+                if (r == -1) throw new IOException("Unexpected EOF while reading form body");
+                remaining -= r;
+                for (int i = 0; i < r; i++)
+                {
+                    int b = chunk[i] & 0xFF;
+                    if (escape != -1)
+                    {
+                        int digit = Character.digit(b, 16);
+                        if (digit == -1) throw new SCGIBadRequestException("Malformed escape in form body");
+                        escaped = (escaped << 4) | digit;
+                        if (++escape < 2) continue;
+                        escape = -1;
+                        b = escaped;
+                    }
+                    else if (b == '&')
+                    {
+                        add(parameter, used, nameEnd, parameters);
+                        used = 0;
+                        nameEnd = -1;
+                        continue;
+                    }
+                    else if (b == '=' && nameEnd == -1)
+                    {
+                        nameEnd = used;
+                        continue;
+                    }
+                    else if (b == '%')
+                    {
+                        escape = 0;
+                        escaped = 0;
+                        continue;
+                    }
+                    else if (b == '+')
+                    {
+                        b = ' ';
+                    }
+                    // append the decoded byte
+                    if (used == parameter.length)
+                    {
+                        if (used >= maxParameterSize) throw new SCGIBadRequestException(HTTPStatus.RequestEntityTooLarge, "Form parameter exceeds the limit of " + maxParameterSize + " bytes");
+                        byte[] grown = new byte[(int) Math.min((long) parameter.length * 2, maxParameterSize)];
+                        System.arraycopy(parameter, 0, grown, 0, used);
+                        if (pooled) pool.release(parameter);
+                        parameter = grown;
+                        pooled = false;
+                    }
+                    else if (used == maxParameterSize)
+                    {
+                        throw new SCGIBadRequestException(HTTPStatus.RequestEntityTooLarge, "Form parameter exceeds the limit of " + maxParameterSize + " bytes");
+                    }
+                    parameter[used++] = (byte) b;
+                }
+            }
+            if (escape != -1) throw new SCGIBadRequestException("Incomplete escape at the end of the form body");
+            add(parameter, used, nameEnd, parameters);
+        }
+        finally
+        {
+            pool.release(chunk);
+            if (pooled) pool.release(parameter);
+        }
+    }
+
+    /**
+     * Add a decoded parameter, parameters without a value are ignored, as
+     * they are by QueryStringParser
+     */
+    private static void add(byte[] parameter, int used, int nameEnd, ParameterSet parameters)
+    {
+        if (nameEnd == -1) return;
+        String name = new String(parameter, 0, nameEnd, UTF8);
+        String value = new String(parameter, nameEnd, used - nameEnd, UTF8);
+        QueryStringParser.addParameter(name, value, parameters);
+    }
+}
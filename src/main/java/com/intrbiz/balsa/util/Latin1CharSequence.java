@@ -0,0 +1,82 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.util;
+
+/**
+ * A CharSequence view of a region of a byte array, decoding the bytes as
+ * ISO-8859-1 as they are accessed rather than copying them into a String.
+ *
+ * The view is only valid for as long as the underlying array is unchanged.
+ */
+public final class Latin1CharSequence implements CharSequence
+{
+    private final byte[] bytes;
+
+    private final int offset;
+
+    private final int length;
+
+    public Latin1CharSequence(byte[] bytes, int offset, int length)
+    {
+        super();
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length()
+    {
+        return this.length;
+    }
+
+    @Override
+    public char charAt(int index)
+    {
+        if (index < 0 || index >= this.length) throw new IndexOutOfBoundsException("Index: " + index + ", length: " + this.length);
+        return (char) (this.bytes[this.offset + index] & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+        if (start < 0 || end > this.length || start > end) throw new IndexOutOfBoundsException("Start: " + start + ", end: " + end + ", length: " + this.length);
+        return new Latin1CharSequence(this.bytes, this.offset + start, end - start);
+    }
+
+    @Override
+    public String toString()
+    {
+        char[] chars = new char[this.length];
+        for (int i = 0; i < this.length; i++)
+        {
+            chars[i] = (char) (this.bytes[this.offset + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+}
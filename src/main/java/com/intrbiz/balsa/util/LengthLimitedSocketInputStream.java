@@ -23,7 +23,7 @@ public final class LengthLimitedSocketInputStream extends InputStream
     {
         if (this.read >= this.length) return -1;
         int b = this.input.read();
-        this.read++;
+        if (b != -1) this.read++;
         return b;
     }
 
@@ -37,8 +37,8 @@ public final class LengthLimitedSocketInputStream extends InputStream
     public int read(byte[] b, int off, int len) throws IOException
     {
         if (this.read >= this.length) return -1;
-        int read = this.input.read(b, off, len);
-        this.read += read;
+        int read = this.input.read(b, off, Math.min(len, this.length - this.read));
+        if (read > 0) this.read += read;
         return read;
     }
 
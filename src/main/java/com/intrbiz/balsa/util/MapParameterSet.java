@@ -0,0 +1,94 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+
+package com.intrbiz.balsa.util;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.intrbiz.balsa.parameter.Parameter;
+
+/**
+ * A simple ParameterSet backed by a map, in the order the parameters were added
+ */
+public class MapParameterSet implements ParameterSet
+{
+    private final Map<String, Parameter> parameters = new LinkedHashMap<String, Parameter>();
+
+    public MapParameterSet()
+    {
+        super();
+    }
+
+    public Map<String, Parameter> getParameters()
+    {
+        return this.parameters;
+    }
+
+    public Parameter getParameter(String name)
+    {
+        return this.parameters.get(name);
+    }
+
+    public void addParameter(Parameter parameter)
+    {
+        this.parameters.put(parameter.getName(), parameter);
+    }
+
+    public void removeParameter(String name)
+    {
+        this.parameters.remove(name);
+    }
+
+    public Set<String> getParameterNames()
+    {
+        return this.parameters.keySet();
+    }
+
+    public Collection<Parameter> getParameterValues()
+    {
+        return this.parameters.values();
+    }
+
+    public boolean containsParameter(String name)
+    {
+        return this.parameters.containsKey(name);
+    }
+
+    public int size()
+    {
+        return this.parameters.size();
+    }
+
+    public void clear()
+    {
+        this.parameters.clear();
+    }
+}
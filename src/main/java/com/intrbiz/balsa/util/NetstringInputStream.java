@@ -0,0 +1,280 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.intrbiz.balsa.SCGIBadRequestException;
+import com.intrbiz.balsa.http.HTTP.HTTPStatus;
+
+/**
+ * A reusable buffered input stream which can read a netstring in place.
+ *
+ * The netstring is read into the buffer of this stream, ideally with a
+ * single read from the underlying stream, and can then be parsed directly
+ * from the buffer without copying.  Any bytes after the netstring which
+ * have already been read are served by subsequent reads of this stream.
+ *
+ * The buffer is sized from the netstrings which have been read, it grows
+ * when a netstring does not fit and shrinks back once netstrings are
+ * consistently smaller.
+ *
+ * A stream is opened for each request and released afterwards, it must
+ * only be used by one thread at a time.
+ */
+public final class NetstringInputStream extends InputStream
+{
+    public static final int MIN_BUFFER_SIZE = 512;
+
+    public static final int DEFAULT_BUFFER_SIZE = 2048;
+
+    /**
+     * The largest netstring length we can represent
+     */
+    private static final int MAX_LENGTH_DIGITS = 9;
+
+    private InputStream input;
+
+    private byte[] buffer;
+
+    private int position = 0;
+
+    private int limit = 0;
+
+    private int start = 0;
+
+    /**
+     * The end of the last netstring read, the buffer is refilled after this
+     * so that the netstring remains valid
+     */
+    private int end = 0;
+
+    /**
+     * A moving average of the size of the netstrings read
+     */
+    private int averageSize;
+
+    public NetstringInputStream()
+    {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public NetstringInputStream(int initialSize)
+    {
+        super();
+        this.buffer = new byte[Math.max(initialSize, MIN_BUFFER_SIZE)];
+        this.averageSize = this.buffer.length / 2;
+    }
+
+    /**
+     * Start reading from the given stream
+     */
+    public void open(InputStream input)
+    {
+        this.input = input;
+        this.position = 0;
+        this.limit = 0;
+        this.start = 0;
+        this.end = 0;
+    }
+
+    /**
+     * Stop reading from the current stream, resizing our buffer should
+     * it be much larger than we need
+     */
+    public void release()
+    {
+        this.input = null;
+        this.position = 0;
+        this.limit = 0;
+        this.start = 0;
+        this.end = 0;
+        int target = Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(this.averageSize) << 2);
+        if (this.buffer.length > target * 2) this.buffer = new byte[target];
+    }
+
+    /**
+     * The buffer holding the last netstring read
+     */
+    public byte[] getBuffer()
+    {
+        return this.buffer;
+    }
+
+    /**
+     * The offset of the content of the last netstring read within the buffer
+     */
+    public int getStart()
+    {
+        return this.start;
+    }
+
+    public int getBufferSize()
+    {
+        return this.buffer.length;
+    }
+
+    /**
+     * Read a netstring into the buffer, the content of the netstring is then
+     * available in the buffer from getStart() for the returned length
+     * @return the length of the netstring content
+     * @throws IOException should the netstring be malformed or the stream end
+     */
+    public int readNetstring() throws IOException
+    {
+        return this.readNetstring(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read a netstring of at most the given length into the buffer, the 
+     * netstring is rejected before its content is read should it be too long
+     * @param maxLength the maximum length of the netstring content
+     * @return the length of the netstring content
+     * @throws SCGIBadRequestException should the netstring be malformed or too long
+     * @throws IOException should the stream end
+     */
+    public int readNetstring(int maxLength) throws IOException
+    {
+        int offset = this.position;
+        // length
+        int length = 0;
+        int i = offset;
+        for (;;)
+        {
+            if (i == this.limit) this.fill(i + 1, "reading netstring length");
+            int b = this.buffer[i];
+            if (b == ':') break;
+            if (b < '0' || b > '9') throw new SCGIBadRequestException("Unexpected character #" + b + " in netstring length");
+            if (i - offset >= MAX_LENGTH_DIGITS) throw new SCGIBadRequestException(HTTPStatus.RequestEntityTooLarge, "Netstring length is too long");
+            length = length * 10 + (b - '0');
+            i++;
+        }
+        if (i == offset) throw new SCGIBadRequestException("Empty netstring length");
+        if (length > maxLength) throw new SCGIBadRequestException(HTTPStatus.RequestEntityTooLarge, "Netstring length " + length + " exceeds the limit of " + maxLength);
+        // content and the trailing ','
+        int start = i + 1;
+        int end = start + length;
+        this.fill(end + 1, "reading netstring");
+        if (this.buffer[end] != ',') throw new SCGIBadRequestException("Netstring separator not found where it should be, got #" + this.buffer[end] + " instead");
+        this.start = start;
+        this.position = end + 1;
+        this.end = end + 1;
+        // track the netstring size
+        this.averageSize += ((end + 1 - offset) - this.averageSize) >> 3;
+        return length;
+    }
+
+    /**
+     * Ensure that the buffer contains at least up to the given offset
+     */
+    private void fill(int required, String reading) throws IOException
+    {
+        if (required > this.buffer.length)
+        {
+            int size = Integer.highestOneBit(required - 1) << 1;
+            byte[] grown = new byte[size < required ? required : size];
+            System.arraycopy(this.buffer, 0, grown, 0, this.limit);
+            this.buffer = grown;
+        }
+        while (this.limit < required)
+        {
+            int r = this.input.read(this.buffer, this.limit, this.buffer.length - this.limit);
+            if (r == -1) throw new IOException("Unexpected EOF while " + reading);
+            this.limit += r;
+        }
+    }
+
+    /**
+     * Refill the buffer after the last netstring
+     * @return false if there is no space to refill
+     */
+    private boolean refill() throws IOException
+    {
+        if (this.buffer.length - this.end < MIN_BUFFER_SIZE) return false;
+        this.position = this.end;
+        this.limit = this.end;
+        int r = this.input.read(this.buffer, this.end, this.buffer.length - this.end);
+        if (r > 0) this.limit += r;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (this.position == this.limit)
+        {
+            if (! this.refill()) return this.input.read();
+            if (this.position == this.limit) return -1;
+        }
+        return this.buffer[this.position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0) return 0;
+        if (this.position == this.limit)
+        {
+            // large reads bypass the buffer
+            if (len >= this.buffer.length - this.end || ! this.refill()) return this.input.read(b, off, len);
+            if (this.position == this.limit) return -1;
+        }
+        int n = Math.min(this.limit - this.position, len);
+        System.arraycopy(this.buffer, this.position, b, off, n);
+        this.position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        if (n <= 0) return 0;
+        int buffered = this.limit - this.position;
+        if (buffered > 0)
+        {
+            int skipped = (int) Math.min(buffered, n);
+            this.position += skipped;
+            return skipped;
+        }
+        return this.input.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        int buffered = this.limit - this.position;
+        return buffered > 0 ? buffered : this.input.available();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        // the underlying stream is closed with the connection
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.intrbiz.balsa.util;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to features of newer Java platforms, which we 
+ * look up at runtime so that we can still run on older JVMs
+ */
+public final class Platform
+{
+    /**
+     * Thread.isVirtual(), null before Java 21
+     */
+    private static final Method IS_VIRTUAL = lookupIsVirtual();
+
+    private Platform()
+    {
+    }
+
+    /**
+     * Does this JVM support virtual threads (Java 21+)
+     * returns boolean
+     */
+    public static boolean isVirtualThreadsSupported()
+    {
+        try
+        {
+            newVirtualThreadFactory("probe-");
+            return true;
+        }
+        catch (UnsupportedOperationException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Create a ThreadFactory which creates virtual threads
+     * @param namePrefix the prefix of the thread names
+     * @return the thread factory
+     * @throws UnsupportedOperationException should this JVM not support virtual threads
+     */
+    public static ThreadFactory newVirtualThreadFactory(String namePrefix)
+    {
+        try
+        {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            Method factory = builderType.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        }
+        catch (Exception e)
+        {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM, Java 21 or later is required", e);
+        }
+    }
+
+    /**
+     * Is the given thread a virtual thread
+     * returns boolean
+     */
+    public static boolean isVirtualThread(Thread thread)
+    {
+        if (IS_VIRTUAL == null) return false;
+        try
+        {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
+    }
+
+    private static Method lookupIsVirtual()
+    {
+        try
+        {
+            return Thread.class.getMethod("isVirtual");
+        }
+        catch (Exception e)
+        {
+            // no virtual threads before Java 21
+            return null;
+        }
+    }
+
+    /**
+     * Enable SO_REUSEPORT on the given, unbound, server socket
+     * @throws IOException should this JVM or OS not support SO_REUSEPORT
+     */
+    public static void setReusePort(ServerSocket server) throws IOException
+    {
+        SocketOption<Boolean> reusePort = reusePortOption();
+        try
+        {
+            ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class).invoke(server, reusePort, Boolean.TRUE);
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Failed to set SO_REUSEPORT, Java 9 or later is required", e);
+        }
+    }
+
+    /**
+     * Enable SO_REUSEPORT on the given, unbound, channel
+     * @throws IOException should this JVM or OS not support SO_REUSEPORT
+     */
+    public static void setReusePort(NetworkChannel channel) throws IOException
+    {
+        try
+        {
+            channel.setOption(reusePortOption(), Boolean.TRUE);
+        }
+        catch (UnsupportedOperationException e)
+        {
+            throw new IOException("SO_REUSEPORT is not supported on this platform", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() throws IOException
+    {
+        try
+        {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        }
+        catch (Exception e)
+        {
+            throw new IOException("SO_REUSEPORT is not supported by this JVM, Java 9 or later is required", e);
+        }
+    }
+
+    /**
+     * Does this JVM support UNIX domain socket channels (Java 16+)
+     * returns boolean
+     */
+    public static boolean isUnixDomainSocketsSupported()
+    {
+        try
+        {
+            unixProtocolFamily();
+            unixDomainSocketAddress("probe");
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Open an unbound UNIX domain server socket channel
+     * @throws IOException should this JVM not support UNIX domain sockets
+     */
+    public static ServerSocketChannel openUnixDomainServerSocketChannel() throws IOException
+    {
+        ProtocolFamily unix = unixProtocolFamily();
+        try
+        {
+            return (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        }
+        catch (InvocationTargetException e)
+        {
+            throw unwrap(e);
+        }
+        catch (Exception e)
+        {
+            throw new IOException("UNIX domain sockets are not supported by this JVM, Java 16 or later is required", e);
+        }
+    }
+
+    /**
+     * Open an unconnected UNIX domain socket channel
+     * @throws IOException should this JVM not support UNIX domain sockets
+     */
+    public static SocketChannel openUnixDomainSocketChannel() throws IOException
+    {
+        ProtocolFamily unix = unixProtocolFamily();
+        try
+        {
+            return (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        }
+        catch (InvocationTargetException e)
+        {
+            throw unwrap(e);
+        }
+        catch (Exception e)
+        {
+            throw new IOException("UNIX domain sockets are not supported by this JVM, Java 16 or later is required", e);
+        }
+    }
+
+    /**
+     * Create the address of the UNIX domain socket at the given path
+     * @throws IOException should this JVM not support UNIX domain sockets
+     */
+    public static SocketAddress unixDomainSocketAddress(String path) throws IOException
+    {
+        try
+        {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+        }
+        catch (InvocationTargetException e)
+        {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException("Failed to create UNIX domain socket address", e.getCause());
+        }
+        catch (Exception e)
+        {
+            throw new IOException("UNIX domain sockets are not supported by this JVM, Java 16 or later is required", e);
+        }
+    }
+
+    private static ProtocolFamily unixProtocolFamily() throws IOException
+    {
+        try
+        {
+            return StandardProtocolFamily.valueOf("UNIX");
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException("UNIX domain sockets are not supported by this JVM, Java 16 or later is required", e);
+        }
+    }
+
+    private static IOException unwrap(InvocationTargetException e)
+    {
+        if (e.getCause() instanceof IOException) return (IOException) e.getCause();
+        if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+        return new IOException(e.getCause());
+    }
+}
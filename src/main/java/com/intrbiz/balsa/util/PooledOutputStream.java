@@ -0,0 +1,145 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A reusable buffered output stream, which takes its buffer from a 
+ * BufferPool when it is opened and returns it when it is released.
+ * 
+ * Closing this stream only flushes it, the underlying stream is closed 
+ * with the connection.
+ */
+public final class PooledOutputStream extends OutputStream
+{
+    private final BufferPool<byte[]> pool;
+
+    private OutputStream output;
+
+    private byte[] buffer;
+
+    private int count = 0;
+
+    public PooledOutputStream()
+    {
+        this(BufferPool.bytes());
+    }
+
+    public PooledOutputStream(BufferPool<byte[]> pool)
+    {
+        super();
+        this.pool = pool;
+    }
+
+    /**
+     * Start writing to the given stream
+     */
+    public void open(OutputStream output)
+    {
+        this.output = output;
+        this.count = 0;
+        if (this.buffer == null) this.buffer = this.pool.acquire();
+    }
+
+    /**
+     * Stop writing to the current stream, returning the buffer to the pool, 
+     * anything which has not been flushed is discarded
+     */
+    public void release()
+    {
+        this.output = null;
+        this.count = 0;
+        this.pool.release(this.buffer);
+        this.buffer = null;
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        if (this.count > 0)
+        {
+            this.output.write(this.buffer, 0, this.count);
+            this.count = 0;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if (this.count == this.buffer.length) this.flushBuffer();
+        this.buffer[this.count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (len >= this.buffer.length)
+        {
+            // large writes bypass the buffer
+            this.flushBuffer();
+            this.output.write(b, off, len);
+            return;
+        }
+        if (len > this.buffer.length - this.count) this.flushBuffer();
+        System.arraycopy(b, off, this.buffer, this.count, len);
+        this.count += len;
+    }
+
+    /**
+     * Write the given string as ISO-8859-1 without encoding it via a Writer, 
+     * characters which cannot be represented are written as '?'
+     */
+    public void writeLatin1(String s) throws IOException
+    {
+        int length = s.length();
+        for (int i = 0; i < length;)
+        {
+            if (this.count == this.buffer.length) this.flushBuffer();
+            int n = Math.min(length - i, this.buffer.length - this.count);
+            for (int end = i + n; i < end; i++)
+            {
+                char c = s.charAt(i);
+                this.buffer[this.count++] = (byte) (c > 0xFF ? '?' : c);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        this.flushBuffer();
+        this.output.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.flush();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A reusable buffered writer, which takes its char and byte buffers from 
+ * the BufferPools when it is opened and returns them when it is released.
+ * 
+ * This replaces a BufferedWriter wrapping an OutputStreamWriter, which 
+ * allocates both a char buffer and a byte buffer each time it is created.  
+ * The encoder is kept between uses for as long as the charset is the same.
+ * 
+ * Closing this writer ends the input, so that a trailing unpaired surrogate 
+ * is written as a replacement rather than dropped, and flushes it, the 
+ * underlying stream is not closed.
+ */
+public final class PooledWriter extends Writer
+{
+    private final BufferPool<char[]> charPool;
+
+    private final BufferPool<byte[]> bytePool;
+
+    private OutputStream output;
+
+    private CharsetEncoder encoder;
+
+    private char[] chars;
+
+    private CharBuffer charBuffer;
+
+    private byte[] bytes;
+
+    private ByteBuffer byteBuffer;
+
+    private int count = 0;
+
+    public PooledWriter()
+    {
+        this(BufferPool.chars(), BufferPool.bytes());
+    }
+
+    public PooledWriter(BufferPool<char[]> charPool, BufferPool<byte[]> bytePool)
+    {
+        super();
+        this.charPool = charPool;
+        this.bytePool = bytePool;
+    }
+
+    /**
+     * Start writing to the given stream with the given charset
+     */
+    public void open(OutputStream output, Charset charset)
+    {
+        this.output = output;
+        this.count = 0;
+        if (this.encoder == null || ! this.encoder.charset().equals(charset))
+        {
+            this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        else
+        {
+            this.encoder.reset();
+        }
+        this.chars = this.charPool.acquire();
+        this.charBuffer = CharBuffer.wrap(this.chars);
+        this.bytes = this.bytePool.acquire();
+        this.byteBuffer = ByteBuffer.wrap(this.bytes);
+    }
+
+    /**
+     * Stop writing to the current stream, returning the buffers to the pools, 
+     * anything which has not been flushed is discarded
+     */
+    public void release()
+    {
+        if (this.output == null) return;
+        this.output = null;
+        this.count = 0;
+        this.charPool.release(this.chars);
+        this.bytePool.release(this.bytes);
+        // the buffers now belong to someone else
+        this.chars = null;
+        this.charBuffer = null;
+        this.bytes = null;
+        this.byteBuffer = null;
+    }
+
+    /**
+     * Encode the buffered chars to the stream
+     * @param endOfInput is this the end of the input, in which case the encoder is flushed and reset
+     */
+    private void flushBuffer(boolean endOfInput) throws IOException
+    {
+        if (this.count == 0 && ! endOfInput) return;
+        // through Buffer, the covariant overrides do not exist before Java 9
+        CharBuffer in = this.charBuffer;
+        ((Buffer) in).clear();
+        ((Buffer) in).limit(this.count);
+        ByteBuffer out = this.byteBuffer;
+        for (;;)
+        {
+            ((Buffer) out).clear();
+            CoderResult result = this.encoder.encode(in, out, endOfInput);
+            if (out.position() > 0) this.output.write(this.bytes, 0, out.position());
+            if (result.isUnderflow()) break;
+        }
+        if (endOfInput)
+        {
+            for (;;)
+            {
+                ((Buffer) out).clear();
+                CoderResult result = this.encoder.flush(out);
+                if (out.position() > 0) this.output.write(this.bytes, 0, out.position());
+                if (result.isUnderflow()) break;
+            }
+            this.encoder.reset();
+            this.count = 0;
+            return;
+        }
+        // keep any trailing high surrogate for the next flush
+        int remaining = in.remaining();
+        if (remaining > 0) System.arraycopy(this.chars, in.position(), this.chars, 0, remaining);
+        this.count = remaining;
+    }
+
+    @Override
+    public void write(int c) throws IOException
+    {
+        if (this.count == this.chars.length) this.flushBuffer(false);
+        this.chars[this.count++] = (char) c;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            if (this.count == this.chars.length) this.flushBuffer(false);
+            int n = Math.min(len, this.chars.length - this.count);
+            System.arraycopy(cbuf, off, this.chars, this.count, n);
+            this.count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            if (this.count == this.chars.length) this.flushBuffer(false);
+            int n = Math.min(len, this.chars.length - this.count);
+            str.getChars(off, off + n, this.chars, this.count);
+            this.count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        this.flushBuffer(false);
+        this.output.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.flushBuffer(true);
+        this.output.flush();
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.intrbiz.balsa.parameter.ListParameter;
+import com.intrbiz.balsa.parameter.Parameter;
+import com.intrbiz.gerald.source.IntelligenceSource;
+import com.intrbiz.gerald.witchcraft.Witchcraft;
+
+/**
+ * A bounded, least recently used, cache of parsed query strings.
+ *
+ * Many requests carry the same query string, IE: pagination, fixed filters
+ * or polling, so rather than parsing the query string of every request the
+ * parameters are parsed once into an immutable snapshot which is shared by
+ * every request with that query string.  List parameters in a snapshot are
+ * frozen, a request copies a snapshot before handing out a list parameter
+ * or the parameter names or values, so callers never see a frozen list.
+ *
+ * The cache is split into segments, each of which is a LinkedHashMap in
+ * access order, to limit contention.  Long query strings are not cached.
+ *
+ * The hits, misses, evictions and hit ratio are published as metrics.
+ */
+public final class QueryStringCache
+{
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    public static final int DEFAULT_MAX_QUERY_LENGTH = 512;
+
+    private static final int SEGMENTS = 8;
+
+    private static final Map<String, Parameter> EMPTY = Collections.emptyMap();
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final int maxQueryLength;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final Counter evictions;
+
+    public QueryStringCache()
+    {
+        this("query-strings", DEFAULT_CAPACITY, DEFAULT_MAX_QUERY_LENGTH);
+    }
+
+    /**
+     * Create a cache, publishing its metrics under the given name
+     * @param name the name of the cache
+     * @param capacity the number of query strings to cache
+     * @param maxQueryLength the length of the longest query string to cache
+     */
+    public QueryStringCache(String name, int capacity, int maxQueryLength)
+    {
+        super();
+        this.maxQueryLength = maxQueryLength;
+        int segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++)
+        {
+            this.segments[i] = new Segment(segmentCapacity);
+        }
+        // metrics
+        IntelligenceSource source = Witchcraft.get().source("com.intrbiz.balsa");
+        MetricRegistry registry = source.getRegistry();
+        this.hits      = registry.counter(Witchcraft.name(QueryStringCache.class, name, "hits"));
+        this.misses    = registry.counter(Witchcraft.name(QueryStringCache.class, name, "misses"));
+        this.evictions = registry.counter(Witchcraft.name(QueryStringCache.class, name, "evictions"));
+        String ratioName = Witchcraft.name(QueryStringCache.class, name, "hit-ratio");
+        registry.remove(ratioName);
+        registry.register(ratioName, new Gauge<Double>() {
+            public Double getValue()
+            {
+                return getHitRatio();
+            }
+        });
+    }
+
+    private Segment segment(String query)
+    {
+        int h = query.hashCode();
+        return this.segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Get the parsed parameters of the given query string, parsing and caching them on a miss
+     * @return an immutable snapshot of the parameters, or null should the query string be too long to cache
+     * @throws IllegalArgumentException should the query string be malformed
+     */
+    public Map<String, Parameter> get(String query)
+    {
+        if (Util.isEmpty(query)) return EMPTY;
+        if (query.length() > this.maxQueryLength) return null;
+        Segment segment = this.segment(query);
+        Map<String, Parameter> parameters;
+        synchronized (segment)
+        {
+            parameters = segment.get(query);
+        }
+        if (parameters != null)
+        {
+            this.hits.inc();
+            return parameters;
+        }
+        this.misses.inc();
+        // parse outside of the lock
+        parameters = snapshot(query);
+        synchronized (segment)
+        {
+            Map<String, Parameter> existing = segment.get(query);
+            if (existing != null) return existing;
+            segment.put(query, parameters);
+        }
+        return parameters;
+    }
+
+    /**
+     * Parse the given query string into an immutable snapshot
+     */
+    private static Map<String, Parameter> snapshot(String query)
+    {
+        MapParameterSet snapshot = new MapParameterSet();
+        QueryStringParser.parseQueryString(query, snapshot);
+        for (Parameter parameter : snapshot.getParameterValues())
+        {
+            if (parameter instanceof ListParameter) ((ListParameter) parameter).freeze();
+        }
+        return Collections.unmodifiableMap(snapshot.getParameters());
+    }
+
+    /**
+     * The number of query strings cached
+     */
+    public int size()
+    {
+        int size = 0;
+        for (Segment segment : this.segments)
+        {
+            synchronized (segment)
+            {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public void clear()
+    {
+        for (Segment segment : this.segments)
+        {
+            synchronized (segment)
+            {
+                segment.clear();
+            }
+        }
+    }
+
+    public long getHitCount()
+    {
+        return this.hits.getCount();
+    }
+
+    public long getMissCount()
+    {
+        return this.misses.getCount();
+    }
+
+    public long getEvictionCount()
+    {
+        return this.evictions.getCount();
+    }
+
+    public double getHitRatio()
+    {
+        long hits = this.hits.getCount();
+        long total = hits + this.misses.getCount();
+        return total == 0 ? 0D : hits / (double) total;
+    }
+
+    /**
+     * A segment of the cache, which must be locked to be used
+     */
+    private final class Segment extends LinkedHashMap<String, Map<String, Parameter>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        public Segment(int capacity)
+        {
+            super(16, 0.75F, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, Parameter>> eldest)
+        {
+            if (this.size() > this.capacity)
+            {
+                evictions.inc();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -1,36 +1,90 @@
 package com.intrbiz.balsa.util;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import org.apache.log4j.Logger;
 
+import com.intrbiz.balsa.parameter.IndexedListParameter;
 import com.intrbiz.balsa.parameter.ListParameter;
 import com.intrbiz.balsa.parameter.Parameter;
 import com.intrbiz.balsa.parameter.StringParameter;
 
 /**
  * Parse HTTP query strings
+ * 
+ * A query string is decoded in a single pass, each character is copied 
+ * into a reusable buffer, decoding '+' and UTF-8 percent escapes as it 
+ * goes, with the only allocations being the resulting name and value.  The 
+ * name[index] array syntax is recognised as the name is decoded.
  */
 public class QueryStringParser
 {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The per thread decoding state
+     */
+    private static final ThreadLocal<Decoder> DECODER = new ThreadLocal<Decoder>() {
+        @Override
+        protected Decoder initialValue()
+        {
+            return new Decoder(false);
+        }
+    };
+
+    /**
+     * Decoders shared by virtual threads, which are created per request and 
+     * so would never reuse a thread local decoder
+     */
+    private static final ArrayBlockingQueue<Decoder> SHARED = new ArrayBlockingQueue<Decoder>(Runtime.getRuntime().availableProcessors() * 4);
+
+    /**
+     * Get a decoder for the current thread, which must be released once done
+     */
+    private static Decoder decoder()
+    {
+        if (Platform.isVirtualThread(Thread.currentThread()))
+        {
+            Decoder decoder = SHARED.poll();
+            return decoder == null ? new Decoder(true) : decoder;
+        }
+        return DECODER.get();
+    }
+
     /**
      * Parse the given query string
      * @param query
      * @param request
      * returns void
+     * @throws IllegalArgumentException should the query string contain a malformed escape
      */
     public final static void parseQueryString(String query, ParameterSet request)
     {
         if (!Util.isEmpty(query))
         {
-            int spos = 0, pos = 0;
-            while ((pos = query.indexOf("&", spos)) != -1)
+            Decoder decoder = decoder();
+            try
             {
-                parseParameter(query.substring(spos, pos), request);
-                spos = pos + 1;
+                int length = query.length();
+                int start = 0;
+                while (start <= length)
+                {
+                    start = decoder.parse(query, start, length, true, request) + 1;
+                }
+            }
+            finally
+            {
+                decoder.release();
             }
-            parseParameter(query.substring(spos), request);
         }
     }
 
@@ -39,78 +93,345 @@ public class QueryStringParser
      * @param parameter
      * @param request
      * returns void
+     * @throws IllegalArgumentException should the parameter contain a malformed escape
      */
     public final static void parseParameter(String parameter, ParameterSet request)
     {
-        int pos = parameter.indexOf("=");
-        if (pos != -1)
+        Decoder decoder = decoder();
+        try
         {
-            try
+            decoder.parse(parameter, 0, parameter.length(), false, request);
+        }
+        finally
+        {
+            decoder.release();
+        }
+    }
+
+    /**
+     * Add a decoded parameter to the given set, parameters named in the 
+     * form name[index] or name[] are collected into a list, as are repeated 
+     * parameters
+     * @param name the decoded parameter name
+     * @param value the decoded parameter value
+     * @param request the set to add the parameter to
+     * returns void
+     */
+    public final static void addParameter(String name, String value, ParameterSet request)
+    {
+        int index = -1;
+        boolean forceList = false;
+        boolean indexedList = false;
+        // handle array parameters in the form of name[index]
+        // parameters ending in []
+        if (name.endsWith("]"))
+        {
+            int sepIdx = name.lastIndexOf('[');
+            if (sepIdx > 0)
             {
-                // TODO: Charset
-                String name = URLDecoder.decode(parameter.substring(0, pos), "UTF-8");
-                String value = URLDecoder.decode(parameter.substring(pos + 1), "UTF-8");
-                int index = -1;
-                boolean forceList = false;
-                boolean indexedList = false;
-                // handle array parameters in the form of name[index]
-                // parameters ending in []
-                if (name.endsWith("]"))
+                try
                 {
-                    int sepIdx = name.lastIndexOf('[');
-                    if (sepIdx > 0)
+                    String strIndex = name.substring(sepIdx + 1, name.length() - 1);
+                    if (! Util.isEmpty(strIndex))
                     {
-                        try
-                        {
-                            String strIndex = name.substring(sepIdx + 1, name.length() - 1);
-                            if (! Util.isEmpty(strIndex))
-                            {
-                                index = Integer.parseInt(strIndex);
-                                indexedList = true;
-                            }
-                            name = name.substring(0, sepIdx);
-                            forceList = true;
-                        }
-                        catch (NumberFormatException e)
-                        {
-                            Logger.getLogger(QueryStringParser.class).debug("Failed to decode array parameter index, of '" + name + "'");
-                        }
+                        index = Integer.parseInt(strIndex);
+                        indexedList = true;
                     }
+                    name = name.substring(0, sepIdx);
+                    forceList = true;
                 }
-                // create the parameter
-                Parameter jparam = new StringParameter(name, index, value);
-                // add
-                if (request.containsParameter(name))
+                catch (NumberFormatException e)
                 {
-                    Parameter fparam = request.getParameter(name);
-                    if (fparam instanceof ListParameter)
-                    {
-                        ((ListParameter) fparam).addValue(jparam);
-                        if (indexedList) ((ListParameter) fparam).sort();
-                    }
-                    else
+                    Logger.getLogger(QueryStringParser.class).debug("Failed to decode array parameter index, of '" + name + "'");
+                }
+            }
+        }
+        add(name, index, forceList, indexedList, value, request);
+    }
+
+    /**
+     * Add a parameter, the name having been stripped of any [index] suffix
+     */
+    private static void add(String name, int index, boolean forceList, boolean indexedList, String value, ParameterSet request)
+    {
+        if (request instanceof CompactParameterSet)
+        {
+            ((CompactParameterSet) request).add(name, value, index, forceList, indexedList);
+            return;
+        }
+        // create the parameter
+        Parameter jparam = new StringParameter(name, index, value);
+        // add
+        if (request.containsParameter(name))
+        {
+            Parameter fparam = request.getParameter(name);
+            if (fparam instanceof ListParameter)
+            {
+                ListParameter lparam = (ListParameter) fparam;
+                if (indexedList && ! (lparam instanceof IndexedListParameter))
+                {
+                    // a list which gains an index is looked up by index
+                    List<Parameter> values = lparam.getListValue();
+                    lparam = new IndexedListParameter(name, values.toArray(new Parameter[values.size()]));
+                    request.addParameter(lparam);
+                }
+                else if (lparam.isFrozen())
+                {
+                    // shared lists are copied before they are changed
+                    lparam = lparam.copy();
+                    request.addParameter(lparam);
+                }
+                lparam.addValue(jparam);
+                // an indexed list defers the sort until it is read
+                if (indexedList) lparam.sort();
+            }
+            else
+            {
+                ListParameter lparam = indexedList ? new IndexedListParameter(name, fparam, jparam) : new ListParameter(name, fparam, jparam);
+                if (indexedList) lparam.sort();
+                request.addParameter(lparam);
+            }
+        }
+        else
+        {
+            if (forceList)
+            {
+                // force a list, only indexed lists need to be looked up by index
+                request.addParameter(indexedList ? new IndexedListParameter(name, jparam) : new ListParameter(name, jparam));
+            }
+            else
+            {
+                request.addParameter(jparam);
+            }
+        }
+    }
+
+    /**
+     * Decodes parameters into a reusable buffer, one per platform thread or
+     * shared between virtual threads
+     */
+    private static final class Decoder
+    {
+        private static final int INITIAL_SIZE = 256;
+
+        /**
+         * Buffers larger than this are not retained once a query string has been parsed
+         */
+        private static final int MAX_RETAINED_SIZE = 16 * 1024;
+
+        private char[] chars = new char[INITIAL_SIZE];
+
+        private CharBuffer charView = CharBuffer.wrap(this.chars);
+
+        /**
+         * A run of escaped bytes, which are decoded together
+         */
+        private byte[] bytes = new byte[64];
+
+        private ByteBuffer byteView = ByteBuffer.wrap(this.bytes);
+
+        private final CharsetDecoder utf8 = UTF8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        /**
+         * Is this decoder returned to the shared decoders once released
+         */
+        private final boolean shared;
+
+        /**
+         * The number of chars decoded
+         */
+        private int used;
+
+        public Decoder(boolean shared)
+        {
+            this.shared = shared;
+        }
+
+        /**
+         * Decode and add the parameter starting at the given offset
+         * @param split should the parameter end at a '&'
+         * @return the offset of the '&' which ended the parameter, or end
+         */
+        public int parse(String query, int start, int end, boolean split, ParameterSet request)
+        {
+            this.used = 0;
+            int nameEnd = -1;
+            // the last '[' of the name
+            int open = -1;
+            int i = start;
+            while (i < end)
+            {
+                char c = query.charAt(i);
+                if (c == '&' && split)
+                {
+                    break;
+                }
+                else if (c == '=' && nameEnd == -1)
+                {
+                    nameEnd = this.used;
+                    i++;
+                }
+                else if (c == '%')
+                {
+                    int from = this.used;
+                    i = this.decodeEscapes(query, i, end);
+                    if (nameEnd == -1)
                     {
-                        ListParameter lparam = new ListParameter(name, fparam, jparam);
-                        if (indexedList) lparam.sort();
-                        request.addParameter(lparam);
+                        for (int j = from; j < this.used; j++)
+                        {
+                            if (this.chars[j] == '[') open = j;
+                        }
                     }
                 }
                 else
                 {
-                    if (forceList)
+                    if (c == '+') c = ' ';
+                    else if (c == '[' && nameEnd == -1) open = this.used;
+                    if (this.used == this.chars.length) this.grow(this.used + 1);
+                    this.chars[this.used++] = c;
+                    i++;
+                }
+            }
+            // parameters without a value are ignored
+            if (nameEnd != -1) this.add(nameEnd, open, request);
+            return i;
+        }
+
+        /**
+         * Decode a run of percent escapes as UTF-8
+         * @return the offset after the run
+         */
+        private int decodeEscapes(String query, int i, int end)
+        {
+            int count = 0;
+            boolean ascii = true;
+            while (i < end && query.charAt(i) == '%')
+            {
+                if (i + 2 >= end) throw new IllegalArgumentException("Incomplete trailing escape (%) pattern");
+                int high = Character.digit(query.charAt(i + 1), 16);
+                int low = Character.digit(query.charAt(i + 2), 16);
+                if (high == -1 || low == -1) throw new IllegalArgumentException("Illegal hex characters in escape (%) pattern");
+                if (count == this.bytes.length)
+                {
+                    this.bytes = Arrays.copyOf(this.bytes, count * 2);
+                    this.byteView = ByteBuffer.wrap(this.bytes);
+                }
+                byte b = (byte) ((high << 4) | low);
+                ascii &= b >= 0;
+                this.bytes[count++] = b;
+                i += 3;
+            }
+            // at most one char per byte
+            if (this.used + count > this.chars.length) this.grow(this.used + count);
+            if (ascii)
+            {
+                for (int j = 0; j < count; j++)
+                {
+                    this.chars[this.used++] = (char) this.bytes[j];
+                }
+            }
+            else
+            {
+                // through Buffer, the covariant overrides do not exist before Java 9
+                ((Buffer) this.byteView).clear();
+                ((Buffer) this.byteView).limit(count);
+                ((Buffer) this.charView).clear();
+                ((Buffer) this.charView).position(this.used);
+                this.utf8.reset();
+                CoderResult result = this.utf8.decode(this.byteView, this.charView, true);
+                if (result.isUnderflow()) result = this.utf8.flush(this.charView);
+                this.used = this.charView.position();
+            }
+            return i;
+        }
+
+        private void grow(int required)
+        {
+            this.chars = Arrays.copyOf(this.chars, Math.max(required, this.chars.length * 2));
+            this.charView = CharBuffer.wrap(this.chars);
+        }
+
+        /**
+         * Create the name and value, stripping any [index] suffix from the name, 
+         * a CompactParameterSet takes the decoded chars directly
+         */
+        private void add(int nameEnd, int open, ParameterSet request)
+        {
+            char[] chars = this.chars;
+            int nameLength = nameEnd;
+            int index = -1;
+            boolean list = false;
+            boolean indexed = false;
+            if (open > 0 && chars[nameEnd - 1] == ']')
+            {
+                if (open + 1 == nameEnd - 1)
+                {
+                    // name[]
+                    nameLength = open;
+                    list = true;
+                }
+                else
+                {
+                    long parsed = parseIndex(chars, open + 1, nameEnd - 1);
+                    if (parsed != Long.MIN_VALUE)
                     {
-                        // force a list
-                        request.addParameter(new ListParameter(name, jparam));
+                        nameLength = open;
+                        index = (int) parsed;
+                        list = true;
+                        indexed = true;
                     }
                     else
                     {
-                        request.addParameter(jparam);
+                        Logger.getLogger(QueryStringParser.class).debug("Failed to decode array parameter index, of '" + new String(chars, 0, nameEnd) + "'");
                     }
                 }
             }
-            catch (UnsupportedEncodingException e)
+            if (request instanceof CompactParameterSet)
+            {
+                ((CompactParameterSet) request).add(chars, 0, nameLength, nameEnd, this.used - nameEnd, index, list, indexed);
+            }
+            else
+            {
+                QueryStringParser.add(new String(chars, 0, nameLength), index, list, indexed, new String(chars, nameEnd, this.used - nameEnd), request);
+            }
+        }
+
+        /**
+         * Parse an array index as Integer.parseInt would
+         * @return the index or Long.MIN_VALUE if it is not an integer
+         */
+        private static long parseIndex(char[] chars, int start, int end)
+        {
+            boolean negative = false;
+            if (chars[start] == '-' || chars[start] == '+')
+            {
+                negative = chars[start] == '-';
+                start++;
+                if (start == end) return Long.MIN_VALUE;
+            }
+            long value = 0;
+            for (int i = start; i < end; i++)
+            {
+                int digit = Character.digit(chars[i], 10);
+                if (digit == -1) return Long.MIN_VALUE;
+                value = value * 10 + digit;
+                if (value > (long) Integer.MAX_VALUE + 1) return Long.MIN_VALUE;
+            }
+            if (negative) value = -value;
+            return value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+        }
+
+        /**
+         * Drop an oversized buffer
+         */
+        public void release()
+        {
+            if (this.chars.length > MAX_RETAINED_SIZE)
             {
+                this.chars = new char[INITIAL_SIZE];
+                this.charView = CharBuffer.wrap(this.chars);
             }
+            if (this.shared) SHARED.offer(this);
         }
     }
 }
@@ -0,0 +1,207 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * A region of direct memory owned by a worker, in which the data of the 
+ * current request is held.
+ * 
+ * Space is allocated by bumping a pointer and is never freed individually, 
+ * the whole arena is reset in one operation once the request is finished.  
+ * Data in the arena is accessed through ByteBuffer and InputStream 
+ * views, which are only valid until the arena is reset.
+ * 
+ * An arena must only be used by one thread at a time.
+ */
+public final class RequestArena
+{
+    private final ByteBuffer memory;
+
+    /**
+     * A view of the memory used for bulk reads and writes, so that we 
+     * do not need to duplicate the buffer for each access
+     */
+    private final ByteBuffer cursor;
+
+    private int used = 0;
+
+    public RequestArena(int capacity)
+    {
+        super();
+        this.memory = ByteBuffer.allocateDirect(capacity);
+        this.cursor = this.memory.duplicate();
+    }
+
+    public int getCapacity()
+    {
+        return this.memory.capacity();
+    }
+
+    public int getUsed()
+    {
+        return this.used;
+    }
+
+    public int getRemaining()
+    {
+        return this.memory.capacity() - this.used;
+    }
+
+    /**
+     * Allocate space in this arena
+     * @param length the number of bytes
+     * @return the offset of the allocated space, or -1 if there is not enough space
+     */
+    public int allocate(int length)
+    {
+        if (length < 0 || length > this.getRemaining()) return -1;
+        int offset = this.used;
+        this.used += length;
+        return offset;
+    }
+
+    /**
+     * Read exactly the given number of bytes from the given stream into this arena
+     * @return the offset of the bytes read, or -1 if there is not enough space, in which case nothing is read
+     * @throws EOFException should the stream end early
+     */
+    public int read(InputStream input, int length) throws IOException
+    {
+        int offset = this.allocate(length);
+        if (offset == -1) return -1;
+        BufferPool<byte[]> pool = BufferPool.bytes();
+        byte[] transfer = pool.acquire();
+        try
+        {
+            int at = offset;
+            int end = offset + length;
+            while (at < end)
+            {
+                int read = input.read(transfer, 0, Math.min(transfer.length, end - at));
+                if (read == -1) throw new EOFException("Unexpected EOF, expected " + (end - at) + " more bytes");
+                cursor(this.cursor, at, at + read);
+                this.cursor.put(transfer, 0, read);
+                at += read;
+            }
+        }
+        finally
+        {
+            pool.release(transfer);
+        }
+        return offset;
+    }
+
+    /**
+     * A read only ByteBuffer view of the given region
+     */
+    public ByteBuffer slice(int offset, int length)
+    {
+        ByteBuffer view = this.memory.asReadOnlyBuffer();
+        cursor(view, offset, offset + length);
+        return view.slice();
+    }
+
+    /**
+     * An InputStream which reads the given region
+     */
+    public InputStream input(int offset, int length)
+    {
+        return new Input(offset, length);
+    }
+
+    /**
+     * Point the given view at the given region, through Buffer as the 
+     * covariant overrides do not exist before Java 9
+     */
+    private static void cursor(ByteBuffer view, int start, int end)
+    {
+        Buffer buffer = view;
+        buffer.limit(end);
+        buffer.position(start);
+    }
+
+    /**
+     * Free everything allocated in this arena
+     */
+    public void reset()
+    {
+        this.used = 0;
+    }
+
+    private final class Input extends InputStream
+    {
+        private int position;
+
+        private final int end;
+
+        public Input(int offset, int length)
+        {
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (this.position >= this.end) return -1;
+            return memory.get(this.position++) & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0) return 0;
+            if (this.position >= this.end) return -1;
+            int n = Math.min(len, this.end - this.position);
+            cursor(cursor, this.position, this.position + n);
+            cursor.get(b, off, n);
+            this.position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            int skipped = (int) Math.max(0, Math.min(n, this.end - this.position));
+            this.position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return this.end - this.position;
+        }
+    }
+}
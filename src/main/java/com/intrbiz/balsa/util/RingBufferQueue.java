@@ -0,0 +1,455 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.util;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, lock free, multi producer multi consumer queue backed by a 
+ * preallocated ring buffer.
+ * 
+ * Unlike a LinkedBlockingQueue, no node is allocated per element and 
+ * producers and consumers do not contend on a lock.  Each slot carries a 
+ * sequence number, producers and consumers claim slots by advancing the 
+ * tail and head counters with a CAS.
+ * 
+ * How a consumer waits for an element is given by the WaitStrategy, trading 
+ * CPU usage for hand off latency.
+ * 
+ * Iteration is weakly consistent and only intended for monitoring.
+ * 
+ * Elements can only be removed from the head of the queue, removing an 
+ * arbitrary element, via remove(Object), removeAll(), retainAll() or the 
+ * iterator, is not supported and throws UnsupportedOperationException.
+ *
+ * @param <E> the element type
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>
+{
+    /**
+     * How a thread waits for the queue to change
+     */
+    public static enum WaitStrategy
+    {
+        /**
+         * Spin, lowest latency, burns a CPU per waiting thread
+         */
+        BUSY_SPIN,
+        /**
+         * Yield the CPU between checks
+         */
+        YIELD,
+        /**
+         * Park briefly between checks
+         */
+        PARK,
+        /**
+         * Block until signalled, lowest CPU usage, highest latency
+         */
+        BLOCKING
+    }
+
+    /**
+     * How long the PARK strategy parks for
+     */
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final int mask;
+
+    private final AtomicReferenceArray<E> slots;
+
+    private final AtomicLongArray sequences;
+
+    private final PaddedAtomicLong head = new PaddedAtomicLong();
+
+    private final PaddedAtomicLong tail = new PaddedAtomicLong();
+
+    private final WaitStrategy waitStrategy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = this.lock.newCondition();
+
+    private final Condition notFull = this.lock.newCondition();
+
+    private volatile int waiters = 0;
+
+    /**
+     * A ring buffer queue
+     * @param capacity the minimum capacity, rounded up to a power of two
+     * @param waitStrategy how to wait for the queue to change
+     */
+    public RingBufferQueue(int capacity, WaitStrategy waitStrategy)
+    {
+        super();
+        if (capacity < 1) throw new IllegalArgumentException("The capacity must be greater than zero");
+        if (capacity > (1 << 30)) throw new IllegalArgumentException("The capacity is too large");
+        if (waitStrategy == null) throw new NullPointerException("The wait strategy must be given");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            this.sequences.set(i, i);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    public RingBufferQueue(int capacity)
+    {
+        this(capacity, WaitStrategy.BLOCKING);
+    }
+
+    public WaitStrategy getWaitStrategy()
+    {
+        return this.waitStrategy;
+    }
+
+    public int capacity()
+    {
+        return this.mask + 1;
+    }
+
+    @Override
+    public boolean offer(E e)
+    {
+        if (e == null) throw new NullPointerException();
+        long position = this.tail.get();
+        for (;;)
+        {
+            int index = (int) (position & this.mask);
+            long difference = this.sequences.get(index) - position;
+            if (difference == 0)
+            {
+                if (this.tail.compareAndSet(position, position + 1))
+                {
+                    this.slots.set(index, e);
+                    this.sequences.set(index, position + 1);
+                    this.signal(this.notEmpty);
+                    return true;
+                }
+                position = this.tail.get();
+            }
+            else if (difference < 0)
+            {
+                // full
+                return false;
+            }
+            else
+            {
+                position = this.tail.get();
+            }
+        }
+    }
+
+    @Override
+    public E poll()
+    {
+        long position = this.head.get();
+        for (;;)
+        {
+            int index = (int) (position & this.mask);
+            long difference = this.sequences.get(index) - (position + 1);
+            if (difference == 0)
+            {
+                if (this.head.compareAndSet(position, position + 1))
+                {
+                    E e = this.slots.get(index);
+                    this.slots.set(index, null);
+                    this.sequences.set(index, position + this.mask + 1);
+                    this.signal(this.notFull);
+                    return e;
+                }
+                position = this.head.get();
+            }
+            else if (difference < 0)
+            {
+                // empty
+                return null;
+            }
+            else
+            {
+                position = this.head.get();
+            }
+        }
+    }
+
+    @Override
+    public E peek()
+    {
+        long position = this.head.get();
+        int index = (int) (position & this.mask);
+        if (this.sequences.get(index) != position + 1) return null;
+        return this.slots.get(index);
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int attempt = 0; ; attempt++)
+        {
+            E e = this.poll();
+            if (e != null) return e;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return null;
+            this.await(this.notEmpty, remaining, attempt);
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException
+    {
+        for (int attempt = 0; ; attempt++)
+        {
+            E e = this.poll();
+            if (e != null) return e;
+            this.await(this.notEmpty, Long.MAX_VALUE, attempt);
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int attempt = 0; ; attempt++)
+        {
+            if (this.offer(e)) return true;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return false;
+            this.await(this.notFull, remaining, attempt);
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException
+    {
+        for (int attempt = 0; ; attempt++)
+        {
+            if (this.offer(e)) return;
+            this.await(this.notFull, Long.MAX_VALUE, attempt);
+        }
+    }
+
+    /**
+     * Wait, according to our wait strategy, for the queue to change
+     */
+    private void await(Condition condition, long nanos, int attempt) throws InterruptedException
+    {
+        if (Thread.interrupted()) throw new InterruptedException();
+        switch (this.waitStrategy)
+        {
+            case BUSY_SPIN:
+                // yield occasionally so that an oversubscribed machine still makes progress
+                if ((attempt & 1023) == 1023) Thread.yield();
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                LockSupport.parkNanos(this, Math.min(nanos, PARK_NANOS));
+                break;
+            case BLOCKING:
+                // spin briefly before blocking, to catch a hand off already in flight
+                if (attempt < 16) break;
+                this.lock.lockInterruptibly();
+                try
+                {
+                    this.waiters++;
+                    try
+                    {
+                        // the queue may have changed since we last looked, signals 
+                        // are sent under the lock so they cannot be lost after this
+                        if (condition == this.notEmpty ? this.isEmpty() : this.remainingCapacity() == 0) condition.awaitNanos(nanos);
+                    }
+                    finally
+                    {
+                        this.waiters--;
+                    }
+                }
+                finally
+                {
+                    this.lock.unlock();
+                }
+                break;
+        }
+    }
+
+    /**
+     * Wake a thread blocked waiting on the queue
+     */
+    private void signal(Condition condition)
+    {
+        if (this.waitStrategy == WaitStrategy.BLOCKING && this.waiters > 0)
+        {
+            this.lock.lock();
+            try
+            {
+                condition.signal();
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        for (;;)
+        {
+            long head = this.head.get();
+            long tail = this.tail.get();
+            if (head == this.head.get())
+            {
+                long size = tail - head;
+                return size < 0 ? 0 : (int) Math.min(size, this.capacity());
+            }
+        }
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return this.peek() == null && this.size() == 0;
+    }
+
+    @Override
+    public int remainingCapacity()
+    {
+        return this.capacity() - this.size();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c)
+    {
+        return this.drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements)
+    {
+        if (c == this) throw new IllegalArgumentException();
+        int drained = 0;
+        E e;
+        while (drained < maxElements && (e = this.poll()) != null)
+        {
+            c.add(e);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * Not supported, elements can only be removed from the head of the queue
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public boolean remove(Object o)
+    {
+        throw new UnsupportedOperationException("Removing an arbitrary element is not supported");
+    }
+
+    /**
+     * Not supported, elements can only be removed from the head of the queue
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public boolean removeAll(Collection<?> c)
+    {
+        throw new UnsupportedOperationException("Removing an arbitrary element is not supported");
+    }
+
+    /**
+     * Not supported, elements can only be removed from the head of the queue
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public boolean retainAll(Collection<?> c)
+    {
+        throw new UnsupportedOperationException("Removing an arbitrary element is not supported");
+    }
+
+    @Override
+    public Iterator<E> iterator()
+    {
+        // a weakly consistent snapshot of the elements
+        List<E> snapshot = new ArrayList<E>();
+        long tail = this.tail.get();
+        for (long position = this.head.get(); position < tail; position++)
+        {
+            int index = (int) (position & this.mask);
+            E e = this.slots.get(index);
+            if (e != null && this.sequences.get(index) == position + 1) snapshot.add(e);
+        }
+        final Iterator<E> it = snapshot.iterator();
+        return new Iterator<E>()
+        {
+            public boolean hasNext()
+            {
+                return it.hasNext();
+            }
+
+            public E next()
+            {
+                return it.next();
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * An AtomicLong padded to its own cache line, to avoid false sharing 
+     * between the head and tail counters
+     */
+    @SuppressWarnings("serial")
+    private static final class PaddedAtomicLong extends AtomicLong
+    {
+        @SuppressWarnings("unused")
+        public long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
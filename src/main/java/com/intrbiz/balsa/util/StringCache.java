@@ -0,0 +1,238 @@
+/*
+ * Balsa SCGI
+ * Copyright (c) 2012, Chris Ellis
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ */
+
+package com.intrbiz.balsa.util;
+
+import java.nio.charset.Charset;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.intrbiz.gerald.source.IntelligenceSource;
+import com.intrbiz.gerald.witchcraft.Witchcraft;
+
+/**
+ * A bounded cache of the Strings decoded from ISO-8859-1 bytes, used so
+ * that values which are the same for most requests, IE: the User-Agent
+ * header or the DOCUMENT_ROOT variable, are decoded once and then shared.
+ *
+ * Strings are found by a hash of the raw bytes and verified by comparing
+ * the bytes, so a lookup does not allocate.  The cache is a fixed size
+ * table, each hash maps to a pair of slots, the most recently added String
+ * displacing the older of the pair.  Only short values are cached, so the
+ * memory used is bounded by the capacity and the maximum length.
+ *
+ * Entries are immutable and published without locking, a racing lookup
+ * may miss an entry which is being added, in which case the value is just
+ * decoded again.
+ *
+ * The hits and misses are published as metrics, callers on a hot path may
+ * count them locally and record them in batches.
+ */
+public final class StringCache
+{
+    private static final Charset SCGI_CHARSET = Charset.forName("ISO-8859-1");
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    public static final int DEFAULT_MAX_LENGTH = 256;
+
+    private static final StringCache VALUES = new StringCache("values", DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+
+    /**
+     * The shared cache of request variable names and values
+     */
+    public static StringCache values()
+    {
+        return VALUES;
+    }
+
+    private final Entry[] table;
+
+    private final int mask;
+
+    private final int maxLength;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    /**
+     * Create a cache, publishing its metrics under the given name
+     * @param name the name of the cache
+     * @param capacity the number of Strings to cache, rounded up to a power of two
+     * @param maxLength the length of the longest value to cache
+     */
+    public StringCache(String name, int capacity, int maxLength)
+    {
+        super();
+        int size = Math.max(Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1, 2);
+        this.table = new Entry[size];
+        this.mask = size - 1;
+        this.maxLength = maxLength;
+        // metrics
+        IntelligenceSource source = Witchcraft.get().source("com.intrbiz.balsa");
+        MetricRegistry registry = source.getRegistry();
+        this.hits   = registry.counter(Witchcraft.name(StringCache.class, name, "hits"));
+        this.misses = registry.counter(Witchcraft.name(StringCache.class, name, "misses"));
+    }
+
+    private static int hash(byte[] bytes, int offset, int length)
+    {
+        int h = length;
+        for (int i = offset, end = offset + length; i < end; i++)
+        {
+            h = 31 * h + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    public int getCapacity()
+    {
+        return this.table.length;
+    }
+
+    public int getMaxLength()
+    {
+        return this.maxLength;
+    }
+
+    /**
+     * Can a value of the given length be cached
+     */
+    public boolean accepts(int length)
+    {
+        return length <= this.maxLength;
+    }
+
+    /**
+     * Get the cached String of the given bytes, decoding and caching it should
+     * it not be cached already
+     */
+    public String get(byte[] bytes, int offset, int length)
+    {
+        String value = this.lookup(bytes, offset, length);
+        if (value != null)
+        {
+            this.hits.inc();
+            return value;
+        }
+        this.misses.inc();
+        return this.add(bytes, offset, length);
+    }
+
+    /**
+     * Find the cached String of the given bytes, without counting the lookup
+     * @return the String or null if it is not cached
+     */
+    public String lookup(byte[] bytes, int offset, int length)
+    {
+        if (length > this.maxLength) return null;
+        int hash = hash(bytes, offset, length);
+        int slot = hash & this.mask;
+        Entry entry = this.table[slot];
+        if (entry != null && entry.matches(hash, bytes, offset, length)) return entry.value;
+        entry = this.table[slot ^ 1];
+        if (entry != null && entry.matches(hash, bytes, offset, length)) return entry.value;
+        return null;
+    }
+
+    /**
+     * Decode the given bytes and cache the String, without counting
+     * @return the decoded String
+     */
+    public String add(byte[] bytes, int offset, int length)
+    {
+        String value = new String(bytes, offset, length, SCGI_CHARSET);
+        if (length > this.maxLength) return value;
+        int hash = hash(bytes, offset, length);
+        int slot = hash & this.mask;
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, offset, copy, 0, length);
+        // the previous occupant moves to the other slot of the pair
+        Entry previous = this.table[slot];
+        if (previous != null && (previous.hash & this.mask) == slot) this.table[slot ^ 1] = previous;
+        this.table[slot] = new Entry(hash, copy, value);
+        return value;
+    }
+
+    /**
+     * Record lookups which were counted by the caller
+     */
+    public void record(int hits, int misses)
+    {
+        if (hits > 0) this.hits.inc(hits);
+        if (misses > 0) this.misses.inc(misses);
+    }
+
+    public long getHitCount()
+    {
+        return this.hits.getCount();
+    }
+
+    public long getMissCount()
+    {
+        return this.misses.getCount();
+    }
+
+    /**
+     * Remove all cached Strings
+     */
+    public void clear()
+    {
+        for (int i = 0; i < this.table.length; i++)
+        {
+            this.table[i] = null;
+        }
+    }
+
+    private static final class Entry
+    {
+        private final int hash;
+
+        private final byte[] bytes;
+
+        private final String value;
+
+        public Entry(int hash, byte[] bytes, String value)
+        {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.value = value;
+        }
+
+        public boolean matches(int hash, byte[] bytes, int offset, int length)
+        {
+            if (this.hash != hash || this.bytes.length != length) return false;
+            byte[] ours = this.bytes;
+            for (int i = 0; i < length; i++)
+            {
+                if (ours[i] != bytes[offset + i]) return false;
+            }
+            return true;
+        }
+    }
+}
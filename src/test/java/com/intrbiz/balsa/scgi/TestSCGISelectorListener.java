@@ -0,0 +1,208 @@
+package com.intrbiz.balsa.scgi;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static com.intrbiz.balsa.scgi.util.SCGITestHelper.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.SCGIBadRequestException;
+import com.intrbiz.balsa.http.HTTP.HTTPStatus;
+import com.intrbiz.balsa.scgi.SCGIClient.SCGIClientResponse;
+import com.intrbiz.balsa.scgi.SCGISelectorListener.Frame;
+
+public class TestSCGISelectorListener
+{
+    private static final int MAX_BUFFERED_BODY = 64;
+
+    private static final int MAX_HEADER_BYTES = 8192;
+
+    /**
+     * A netstring of the given header block followed by the given body
+     */
+    private static byte[] request(byte[] block, String body)
+    {
+        byte[] length = bytes(block.length + ":");
+        byte[] content = bytes(body);
+        byte[] request = new byte[length.length + block.length + 1 + content.length];
+        System.arraycopy(length, 0, request, 0, length.length);
+        System.arraycopy(block, 0, request, length.length, block.length);
+        request[length.length + block.length] = ',';
+        System.arraycopy(content, 0, request, length.length + block.length + 1, content.length);
+        return request;
+    }
+
+    private static boolean parse(Frame frame, byte[] data, int offset, int length) throws IOException
+    {
+        frame.buffer.put(data, offset, length);
+        return frame.parse(MAX_BUFFERED_BODY, MAX_HEADER_BYTES);
+    }
+
+    private static HTTPStatus rejected(byte[] data)
+    {
+        try
+        {
+            parse(new Frame(), data, 0, data.length);
+            return null;
+        }
+        catch (SCGIBadRequestException e)
+        {
+            return e.getStatus();
+        }
+        catch (IOException e)
+        {
+            return HTTPStatus.InternalServerError;
+        }
+    }
+
+    @Test
+    public void testFramedInOneRead() throws IOException
+    {
+        byte[] data = request(block("CONTENT_LENGTH", "5", "SCGI", "1"), "hello");
+        Frame frame = new Frame();
+        assertThat(parse(frame, data, 0, data.length), is(true));
+        assertThat(frame.requestLength, is(equalTo((long) data.length)));
+    }
+
+    @Test
+    public void testFramedOverSplitReads() throws IOException
+    {
+        byte[] data = request(block("CONTENT_LENGTH", "40", "SCGI", "1", "REQUEST_URI", "/split"), "0123456789012345678901234567890123456789");
+        // every split of the request, down to a byte at a time
+        for (int chunk = 1; chunk <= data.length; chunk++)
+        {
+            Frame frame = new Frame();
+            for (int offset = 0; offset < data.length; offset += chunk)
+            {
+                int length = Math.min(chunk, data.length - offset);
+                assertThat("chunk " + chunk + " at " + offset, parse(frame, data, offset, length), is(equalTo(offset + length == data.length)));
+            }
+            assertThat(frame.requestLength, is(equalTo((long) data.length)));
+            assertThat(frame.buffer.position(), is(equalTo(data.length)));
+        }
+    }
+
+    @Test
+    public void testHeadersLargerThanTheBuffer() throws IOException
+    {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 3000; i++)
+        {
+            value.append('v');
+        }
+        byte[] data = request(block("CONTENT_LENGTH", "2", "HTTP_X_LARGE", value.toString(), "HTTP_X_OTHER", value.toString()), "ok");
+        Frame frame = new Frame();
+        int offset = 0;
+        while (offset < data.length)
+        {
+            // as a read would, never more than the buffer has room for
+            int length = Math.min(frame.buffer.remaining(), data.length - offset);
+            boolean framed = parse(frame, data, offset, length);
+            offset += length;
+            assertThat(framed, is(equalTo(offset == data.length)));
+        }
+        assertThat(frame.buffer.position(), is(equalTo(data.length)));
+    }
+
+    @Test
+    public void testLargeBodyIsStreamed() throws IOException
+    {
+        byte[] data = request(block("CONTENT_LENGTH", String.valueOf(MAX_BUFFERED_BODY + 1), "SCGI", "1"), "");
+        Frame frame = new Frame();
+        // dispatched once the headers are framed, without the body
+        assertThat(parse(frame, data, 0, data.length), is(true));
+        assertThat(frame.requestLength, is(equalTo((long) data.length + MAX_BUFFERED_BODY + 1)));
+    }
+
+    @Test
+    public void testOversizeHeaderLength()
+    {
+        assertThat(rejected(bytes(String.valueOf(MAX_HEADER_BYTES + 1) + ":")), is(equalTo(HTTPStatus.RequestEntityTooLarge)));
+        assertThat(rejected(bytes("1234567890:")), is(equalTo(HTTPStatus.RequestEntityTooLarge)));
+        assertThat(rejected(bytes("12a:")), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(rejected(bytes(":")), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(rejected(bytes("3:abc;")), is(equalTo(HTTPStatus.BadRequest)));
+        // the length has not been terminated yet
+        assertThat(rejected(bytes("123456789")), is(nullValue()));
+    }
+
+    @Test
+    public void testMaximumContentLength() throws IOException
+    {
+        byte[] data = request(block("CONTENT_LENGTH", String.valueOf(Integer.MAX_VALUE)), "");
+        Frame frame = new Frame();
+        assertThat(parse(frame, data, 0, data.length), is(true));
+        // the total length no longer fits an int
+        assertThat(frame.requestLength, is(equalTo((long) data.length + Integer.MAX_VALUE)));
+        assertThat(frame.requestLength > frame.buffer.position(), is(true));
+    }
+
+    @Test
+    public void testOverflowingContentLength()
+    {
+        assertThat(rejected(request(block("CONTENT_LENGTH", "2147483648"), "")), is(equalTo(HTTPStatus.RequestEntityTooLarge)));
+        assertThat(rejected(request(block("CONTENT_LENGTH", "9999999999"), "")), is(equalTo(HTTPStatus.RequestEntityTooLarge)));
+        assertThat(rejected(request(block("CONTENT_LENGTH", "99999999999"), "")), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(rejected(request(block("CONTENT_LENGTH", "-1"), "")), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(rejected(request(block("CONTENT_LENGTH", "1x"), "")), is(equalTo(HTTPStatus.BadRequest)));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        int port = freePort();
+        SCGISelectorListener listener = new SCGISelectorListener(port, 2, new SCGIProcessor()
+        {
+            @Override
+            public void process(SCGIRequest request, SCGIResponse response) throws IOException
+            {
+                int length = request.getContentLength();
+                byte[] body = new byte[length];
+                int read = 0;
+                while (read < length)
+                {
+                    int r = request.getInput().read(body, read, length - read);
+                    if (r == -1) break;
+                    read += r;
+                }
+                response.ok();
+                response.plain();
+                response.getWriter().write(request.getRequestUri() + " " + read);
+                response.flush();
+            }
+        });
+        listener.setMaxBufferedBody(MAX_BUFFERED_BODY);
+        listener.start();
+        try
+        {
+            // a buffered body and one which is streamed to the worker
+            for (int length : new int[] { 0, MAX_BUFFERED_BODY, 20000 })
+            {
+                StringBuilder value = new StringBuilder();
+                for (int i = 0; i < length; i++)
+                {
+                    value.append('z');
+                }
+                SCGIClient client = new SCGIClient("localhost", port);
+                client.post("/round/trip").param("v", value.toString());
+                int expected = client.getContent().getLength();
+                SCGIClientResponse response = client.executeRequest();
+                try
+                {
+                    assertThat(response.getStatus(), is(equalTo(HTTPStatus.OK)));
+                    assertThat(response.getContentAsString(), is(equalTo("/round/trip " + expected)));
+                }
+                finally
+                {
+                    response.close();
+                }
+            }
+        }
+        finally
+        {
+            listener.shutdown();
+        }
+    }
+}
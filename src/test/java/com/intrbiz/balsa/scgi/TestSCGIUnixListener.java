@@ -0,0 +1,162 @@
+package com.intrbiz.balsa.scgi;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.intrbiz.balsa.SCGIException;
+import com.intrbiz.balsa.http.HTTP.HTTPStatus;
+import com.intrbiz.balsa.scgi.SCGIClient.SCGIClientResponse;
+import com.intrbiz.balsa.util.Platform;
+
+public class TestSCGIUnixListener
+{
+    private Path directory;
+
+    private Path socket;
+
+    @Before
+    public void createDirectory() throws IOException
+    {
+        assumeTrue(Platform.isUnixDomainSocketsSupported());
+        this.directory = Files.createTempDirectory("balsa-scgi");
+        this.socket = this.directory.resolve("scgi.sock");
+    }
+
+    @After
+    public void removeDirectory() throws IOException
+    {
+        if (this.directory == null) return;
+        Files.deleteIfExists(this.socket);
+        Files.deleteIfExists(this.directory);
+    }
+
+    private SCGIUnixListener listener()
+    {
+        return new SCGIUnixListener(this.socket.toString(), 2, new SCGIProcessor()
+        {
+            @Override
+            public void process(SCGIRequest request, SCGIResponse response) throws IOException
+            {
+                response.ok();
+                response.plain();
+                response.getWriter().write("Hello " + request.getRequestUri());
+                response.flush();
+            }
+        });
+    }
+
+    private void assertRoundTrip() throws IOException
+    {
+        SCGIClientResponse response = new SCGIClient(this.socket).get("/unix").executeRequest();
+        try
+        {
+            assertThat(response.getStatus(), is(equalTo(HTTPStatus.OK)));
+            assertThat(response.getContentAsString(), is(equalTo("Hello /unix")));
+        }
+        finally
+        {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        SCGIUnixListener listener = this.listener();
+        listener.start();
+        try
+        {
+            for (int i = 0; i < 3; i++)
+            {
+                this.assertRoundTrip();
+            }
+        }
+        finally
+        {
+            listener.shutdown();
+        }
+        // the socket file we created is removed
+        assertThat(Files.exists(this.socket), is(false));
+    }
+
+    @Test
+    public void testStaleSocketIsReplaced() throws Exception
+    {
+        // closing the channel leaves the socket file behind
+        ServerSocketChannel stale = Platform.openUnixDomainServerSocketChannel();
+        stale.bind(Platform.unixDomainSocketAddress(this.socket.toString()));
+        stale.close();
+        assertThat(Files.exists(this.socket), is(true));
+        SCGIUnixListener listener = this.listener();
+        listener.start();
+        try
+        {
+            this.assertRoundTrip();
+        }
+        finally
+        {
+            listener.shutdown();
+        }
+    }
+
+    @Test
+    public void testLiveSocketIsNotRemoved() throws Exception
+    {
+        ServerSocketChannel live = Platform.openUnixDomainServerSocketChannel();
+        try
+        {
+            live.bind(Platform.unixDomainSocketAddress(this.socket.toString()));
+            try
+            {
+                this.listener().start();
+                fail("Expected the listener to fail to bind");
+            }
+            catch (SCGIException e)
+            {
+            }
+            // the other socket is still there and still accepting
+            assertThat(Files.exists(this.socket), is(true));
+            SocketChannel client = Platform.openUnixDomainSocketChannel();
+            try
+            {
+                client.connect(Platform.unixDomainSocketAddress(this.socket.toString()));
+                assertThat(client.isConnected(), is(true));
+            }
+            finally
+            {
+                client.close();
+            }
+        }
+        finally
+        {
+            live.close();
+        }
+    }
+
+    @Test
+    public void testFileIsNotReplaced() throws Exception
+    {
+        Files.write(this.socket, new byte[] { 1 });
+        try
+        {
+            this.listener().start();
+            fail("Expected the listener to fail to bind");
+        }
+        catch (SCGIException e)
+        {
+        }
+        assertThat(Files.isRegularFile(this.socket), is(true));
+    }
+}
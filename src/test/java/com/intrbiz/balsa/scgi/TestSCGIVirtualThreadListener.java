@@ -0,0 +1,182 @@
+package com.intrbiz.balsa.scgi;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static com.intrbiz.balsa.scgi.util.SCGITestHelper.*;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.http.HTTP.HTTPStatus;
+import com.intrbiz.balsa.scgi.SCGIClient.SCGIClientResponse;
+
+/**
+ * The virtual thread listener, run on platform threads so that it can be
+ * tested before Java 21
+ */
+public class TestSCGIVirtualThreadListener
+{
+    /**
+     * Creates platform threads, the first few of which fail to start
+     */
+    private static final class PlatformListener extends SCGIVirtualThreadListener
+    {
+        private final AtomicInteger failures;
+
+        public PlatformListener(int port, SCGIProcessor processor, int failures)
+        {
+            super(port, 2, processor);
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        protected ThreadFactory threadFactory()
+        {
+            return new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    if (failures.getAndDecrement() > 0)
+                    {
+                        return new Thread(runnable)
+                        {
+                            @Override
+                            public synchronized void start()
+                            {
+                                throw new IllegalThreadStateException("Failed to start");
+                            }
+                        };
+                    }
+                    return new Thread(runnable);
+                }
+            };
+        }
+    }
+
+    private static SCGIProcessor hello()
+    {
+        return new SCGIProcessor()
+        {
+            @Override
+            public void process(SCGIRequest request, SCGIResponse response) throws IOException
+            {
+                response.ok();
+                response.plain();
+                response.getWriter().write("Hello " + request.getRequestUri());
+                response.flush();
+            }
+        };
+    }
+
+    private static HTTPStatus get(int port, String uri) throws IOException
+    {
+        SCGIClientResponse response = new SCGIClient("localhost", port).get(uri).executeRequest();
+        try
+        {
+            if (response.getStatus() == HTTPStatus.OK) assertThat(response.getContentAsString(), is(equalTo("Hello " + uri)));
+            return response.getStatus();
+        }
+        finally
+        {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        int port = freePort();
+        SCGIVirtualThreadListener listener = new PlatformListener(port, hello(), 0);
+        listener.start();
+        try
+        {
+            for (int i = 0; i < 3; i++)
+            {
+                assertThat(get(port, "/vt/" + i), is(equalTo(HTTPStatus.OK)));
+            }
+        }
+        finally
+        {
+            listener.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedStartIsRejected() throws Exception
+    {
+        int port = freePort();
+        SCGIVirtualThreadListener listener = new PlatformListener(port, hello(), 2);
+        listener.start();
+        try
+        {
+            assertThat(get(port, "/first"), is(equalTo(HTTPStatus.ServiceUnavailable)));
+            assertThat(get(port, "/second"), is(equalTo(HTTPStatus.ServiceUnavailable)));
+            // the listener is still accepting
+            assertThat(get(port, "/third"), is(equalTo(HTTPStatus.OK)));
+            assertThat(listener.getRejectedCount(), is(equalTo(2L)));
+        }
+        finally
+        {
+            listener.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdownWaitsForRequests() throws Exception
+    {
+        final int port = freePort();
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean finished = new AtomicBoolean();
+        SCGIVirtualThreadListener listener = new PlatformListener(port, new SCGIProcessor()
+        {
+            @Override
+            public void process(SCGIRequest request, SCGIResponse response) throws IOException
+            {
+                started.countDown();
+                try
+                {
+                    Thread.sleep(300);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                response.ok();
+                response.plain();
+                response.getWriter().write("Hello " + request.getRequestUri());
+                response.flush();
+                finished.set(true);
+            }
+        }, 0);
+        listener.start();
+        final int[] status = new int[1];
+        Thread client = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    status[0] = get(port, "/slow").getCode();
+                }
+                catch (IOException e)
+                {
+                    status[0] = -1;
+                }
+            }
+        };
+        client.start();
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+        listener.shutdown();
+        assertThat(finished.get(), is(true));
+        client.join();
+        assertThat(status[0], is(equalTo(200)));
+    }
+}
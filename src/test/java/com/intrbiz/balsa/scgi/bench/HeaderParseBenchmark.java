@@ -0,0 +1,103 @@
+package com.intrbiz.balsa.scgi.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import com.intrbiz.balsa.scgi.SCGIListener;
+import com.intrbiz.balsa.scgi.SCGIVariableIndex;
+import com.intrbiz.balsa.util.NetstringInputStream;
+
+/**
+ * Compare reading and indexing the headers of a typical request with and 
+ * without the listener's default header limits, to show that enforcing the 
+ * limits costs nothing on well formed requests.
+ * 
+ * Usage: HeaderParseBenchmark [iterations]
+ */
+public class HeaderParseBenchmark
+{
+    private static final Charset SCGI_CHARSET = Charset.forName("ISO-8859-1");
+
+    private static final String[] NGINX_VARIABLES = {
+        "CONTENT_LENGTH", "0",
+        "SCGI", "1",
+        "REQUEST_METHOD", "GET",
+        "REQUEST_URI", "/app/dashboard?view=summary&page=2",
+        "QUERY_STRING", "view=summary&page=2",
+        "CONTENT_TYPE", "",
+        "DOCUMENT_URI", "/app/dashboard",
+        "DOCUMENT_ROOT", "/usr/share/nginx/html",
+        "SERVER_PROTOCOL", "HTTP/1.1",
+        "REQUEST_SCHEME", "https",
+        "HTTPS", "on",
+        "REMOTE_ADDR", "192.168.1.23",
+        "REMOTE_PORT", "51724",
+        "SERVER_PORT", "443",
+        "SERVER_NAME", "app.example.com",
+        "HTTP_HOST", "app.example.com",
+        "HTTP_CONNECTION", "keep-alive",
+        "HTTP_USER_AGENT", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/118.0.0.0 Safari/537.36",
+        "HTTP_ACCEPT", "text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8",
+        "HTTP_REFERER", "https://app.example.com/app/login",
+        "HTTP_ACCEPT_ENCODING", "gzip, deflate, br",
+        "HTTP_ACCEPT_LANGUAGE", "en-GB,en-US;q=0.9,en;q=0.8",
+        "HTTP_COOKIE", "session=7f3c9a1e2b4d6f8091a2b3c4d5e6f708; theme=dark"
+    };
+
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        byte[] request = request();
+        System.out.println(String.format("%-24s %14s %12s", "parser", "requests/sec", "ns/request"));
+        for (int round = 0; round < 3; round++)
+        {
+            report("unlimited", iterations, run(request, iterations, false));
+            report("default limits", iterations, run(request, iterations, true));
+        }
+    }
+
+    private static void report(String name, int iterations, long elapsed)
+    {
+        System.out.println(String.format("%-24s %14.0f %12.1f", name, iterations / (elapsed / 1000000000D), elapsed / (double) iterations));
+    }
+
+    private static byte[] request()
+    {
+        StringBuilder block = new StringBuilder();
+        for (String variable : NGINX_VARIABLES)
+        {
+            block.append(variable).append('\0');
+        }
+        return (block.length() + ":" + block + ",").getBytes(SCGI_CHARSET);
+    }
+
+    private static long run(byte[] request, int iterations, boolean limited) throws IOException
+    {
+        NetstringInputStream input = new NetstringInputStream();
+        SCGIVariableIndex index = new SCGIVariableIndex();
+        ByteArrayInputStream stream = new ByteArrayInputStream(request);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            stream.reset();
+            input.open(stream);
+            if (limited)
+            {
+                int length = input.readNetstring(SCGIListener.DEFAULT_MAX_HEADER_BYTES);
+                index.index(input.getBuffer(), input.getStart(), length, SCGIListener.DEFAULT_MAX_VARIABLES, SCGIListener.DEFAULT_MAX_NAME_LENGTH, SCGIListener.DEFAULT_MAX_VALUE_LENGTH);
+            }
+            else
+            {
+                int length = input.readNetstring();
+                index.index(input.getBuffer(), input.getStart(), length);
+            }
+            sink = index.size();
+            index.clear();
+            input.release();
+        }
+        return System.nanoTime() - start;
+    }
+}
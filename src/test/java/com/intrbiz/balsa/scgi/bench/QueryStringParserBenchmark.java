@@ -0,0 +1,92 @@
+package com.intrbiz.balsa.scgi.bench;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+import com.intrbiz.balsa.util.MapParameterSet;
+import com.intrbiz.balsa.util.ParameterSet;
+import com.intrbiz.balsa.util.QueryStringParser;
+
+/**
+ * Compare parsing query strings by splitting them into substrings and 
+ * decoding them with URLDecoder, as QueryStringParser used to, against 
+ * the single pass decoder.
+ * 
+ * Usage: QueryStringParserBenchmark [iterations]
+ */
+public class QueryStringParserBenchmark
+{
+    private static final String[] QUERIES = {
+        // plain
+        "view=summary&page=2&sort=name&order=asc&limit=50",
+        // escaped
+        "q=balsa+scgi+server&redirect=%2Fapp%2Fdashboard%3Fview%3Dsummary&name=J%C3%BCrgen+M%C3%BCller",
+        // lists
+        "ids[]=12&ids[]=34&ids[]=56&tags[0]=red&tags[1]=green&tags[2]=blue&check=1&check=2"
+    };
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        System.out.println(String.format("%-24s %14s %12s", "parser", "queries/sec", "ns/query"));
+        for (int round = 0; round < 3; round++)
+        {
+            report("URLDecoder", iterations, urlDecoder(iterations));
+            report("single pass", iterations, singlePass(iterations));
+        }
+    }
+
+    private static void report(String name, int iterations, long elapsed)
+    {
+        System.out.println(String.format("%-24s %14.0f %12.1f", name, iterations / (elapsed / 1000000000D), elapsed / (double) iterations));
+    }
+
+    private static long urlDecoder(int iterations) throws UnsupportedEncodingException
+    {
+        MapParameterSet parameters = new MapParameterSet();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            String query = QUERIES[i % QUERIES.length];
+            int spos = 0, pos = 0;
+            while ((pos = query.indexOf("&", spos)) != -1)
+            {
+                parseParameter(query.substring(spos, pos), parameters);
+                spos = pos + 1;
+            }
+            parseParameter(query.substring(spos), parameters);
+            sink = parameters.getParameter("page");
+            parameters.clear();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * How QueryStringParser used to parse a parameter
+     */
+    private static void parseParameter(String parameter, ParameterSet parameters) throws UnsupportedEncodingException
+    {
+        int pos = parameter.indexOf("=");
+        if (pos != -1)
+        {
+            String name = URLDecoder.decode(parameter.substring(0, pos), "UTF-8");
+            String value = URLDecoder.decode(parameter.substring(pos + 1), "UTF-8");
+            QueryStringParser.addParameter(name, value, parameters);
+        }
+    }
+
+    private static long singlePass(int iterations)
+    {
+        MapParameterSet parameters = new MapParameterSet();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            QueryStringParser.parseQueryString(QUERIES[i % QUERIES.length], parameters);
+            sink = parameters.getParameter("page");
+            parameters.clear();
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,123 @@
+package com.intrbiz.balsa.scgi.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.intrbiz.balsa.util.RingBufferQueue;
+import com.intrbiz.balsa.util.RingBufferQueue.WaitStrategy;
+
+/**
+ * Compare the hand off from the listener to the workers using a 
+ * LinkedBlockingQueue and a RingBufferQueue with each wait strategy.
+ * 
+ * A single producer (the listener) hands requests to N consumers 
+ * (the workers), the run queue is sized as the listener sizes it.
+ * 
+ * Usage: RunQueueBenchmark [requests] [worker counts...]
+ */
+public class RunQueueBenchmark
+{
+    private static final class Request
+    {
+        public long queued;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int[] workerCounts = { 1, 2, 4, 8, 16 };
+        if (args.length > 1)
+        {
+            workerCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+            {
+                workerCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println(String.format("%-24s %8s %14s %12s %12s", "queue", "workers", "requests/sec", "p50 (us)", "p99 (us)"));
+        for (int workers : workerCounts)
+        {
+            // warm up, then measure
+            run(new LinkedBlockingQueue<Request>(workers * 2), workers, requests / 10);
+            report("LinkedBlockingQueue", workers, requests, run(new LinkedBlockingQueue<Request>(workers * 2), workers, requests));
+            for (WaitStrategy strategy : WaitStrategy.values())
+            {
+                run(new RingBufferQueue<Request>(workers * 2, strategy), workers, requests / 10);
+                report("RingBuffer " + strategy, workers, requests, run(new RingBufferQueue<Request>(workers * 2, strategy), workers, requests));
+            }
+        }
+    }
+
+    private static void report(String name, int workers, int requests, Result result)
+    {
+        Arrays.sort(result.latencies);
+        System.out.println(String.format(
+                "%-24s %8d %14.0f %12.2f %12.2f", 
+                name, 
+                workers, 
+                requests / (result.elapsed / 1000000000D), 
+                result.latencies[result.latencies.length / 2] / 1000D, 
+                result.latencies[(int) (result.latencies.length * 0.99)] / 1000D
+        ));
+    }
+
+    private static final class Result
+    {
+        public long elapsed;
+
+        public long[] latencies;
+    }
+
+    private static Result run(final BlockingQueue<Request> queue, int workers, final int requests) throws InterruptedException
+    {
+        // preallocate the requests, so the queue is the only source of allocation
+        final Request[] pool = new Request[queue.remainingCapacity() + workers + 1];
+        for (int i = 0; i < pool.length; i++)
+        {
+            pool[i] = new Request();
+        }
+        final long[] latencies = new long[requests];
+        final CountDownLatch done = new CountDownLatch(workers);
+        final int perWorker = requests / workers;
+        Thread[] threads = new Thread[workers];
+        for (int w = 0; w < workers; w++)
+        {
+            final int offset = w * perWorker;
+            final int count = w == workers - 1 ? requests - offset : perWorker;
+            threads[w] = new Thread("Worker-" + w) {
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = 0; i < count; i++)
+                        {
+                            Request request = queue.poll(60, TimeUnit.SECONDS);
+                            if (request == null) throw new IllegalStateException("Timed out waiting for request");
+                            latencies[offset + i] = System.nanoTime() - request.queued;
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                    }
+                    done.countDown();
+                }
+            };
+            threads[w].start();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++)
+        {
+            Request request = pool[i % pool.length];
+            request.queued = System.nanoTime();
+            queue.put(request);
+        }
+        done.await();
+        Result result = new Result();
+        result.elapsed = System.nanoTime() - start;
+        result.latencies = latencies;
+        return result;
+    }
+}
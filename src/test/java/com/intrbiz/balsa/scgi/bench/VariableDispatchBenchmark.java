@@ -0,0 +1,201 @@
+package com.intrbiz.balsa.scgi.bench;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.intrbiz.balsa.http.HTTP.SCGI;
+import com.intrbiz.balsa.scgi.SCGIVariableIndex;
+
+/**
+ * Compare dispatching the SCGI variables of a request using the chain of 
+ * String comparisons which SCGIRequest used to use, against indexing the 
+ * raw header block with SCGIVariableIndex.
+ * 
+ * The header block is the set of variables which nginx sends with its 
+ * default scgi_params and a typical browser request.
+ * 
+ * Usage: VariableDispatchBenchmark [iterations]
+ */
+public class VariableDispatchBenchmark
+{
+    private static final Charset SCGI_CHARSET = Charset.forName("ISO-8859-1");
+
+    private static final String[] NGINX_VARIABLES = {
+        "CONTENT_LENGTH", "0",
+        "SCGI", "1",
+        "REQUEST_METHOD", "GET",
+        "REQUEST_URI", "/app/dashboard?view=summary&page=2",
+        "QUERY_STRING", "view=summary&page=2",
+        "CONTENT_TYPE", "",
+        "DOCUMENT_URI", "/app/dashboard",
+        "DOCUMENT_ROOT", "/usr/share/nginx/html",
+        "SCGI", "1",
+        "SERVER_PROTOCOL", "HTTP/1.1",
+        "REQUEST_SCHEME", "https",
+        "HTTPS", "on",
+        "REMOTE_ADDR", "192.168.1.23",
+        "REMOTE_PORT", "51724",
+        "SERVER_PORT", "443",
+        "SERVER_NAME", "app.example.com",
+        "HTTP_HOST", "app.example.com",
+        "HTTP_CONNECTION", "keep-alive",
+        "HTTP_CACHE_CONTROL", "max-age=0",
+        "HTTP_UPGRADE_INSECURE_REQUESTS", "1",
+        "HTTP_USER_AGENT", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/118.0.0.0 Safari/537.36",
+        "HTTP_ACCEPT", "text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8",
+        "HTTP_SEC_FETCH_SITE", "same-origin",
+        "HTTP_SEC_FETCH_MODE", "navigate",
+        "HTTP_SEC_FETCH_USER", "?1",
+        "HTTP_SEC_FETCH_DEST", "document",
+        "HTTP_REFERER", "https://app.example.com/app/login",
+        "HTTP_ACCEPT_ENCODING", "gzip, deflate, br",
+        "HTTP_ACCEPT_LANGUAGE", "en-GB,en-US;q=0.9,en;q=0.8",
+        "HTTP_COOKIE", "session=7f3c9a1e2b4d6f8091a2b3c4d5e6f708; theme=dark"
+    };
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        byte[] block = block();
+        System.out.println(String.format("%-24s %14s %12s", "dispatch", "requests/sec", "ns/request"));
+        for (int round = 0; round < 3; round++)
+        {
+            report("equals chain", iterations, chain(block, iterations));
+            report("perfect hash index", iterations, indexed(block, iterations));
+        }
+    }
+
+    private static void report(String name, int iterations, long elapsed)
+    {
+        System.out.println(String.format("%-24s %14.0f %12.1f", name, iterations / (elapsed / 1000000000D), elapsed / (double) iterations));
+    }
+
+    private static byte[] block()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String variable : NGINX_VARIABLES)
+        {
+            sb.append(variable).append('\0');
+        }
+        return sb.toString().getBytes(SCGI_CHARSET);
+    }
+
+    /**
+     * Decode every variable and dispatch it with the equals chain
+     */
+    private static long chain(byte[] block, int iterations)
+    {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            Chain request = new Chain();
+            int position = 0;
+            while (position < block.length)
+            {
+                int nameEnd = position;
+                while (block[nameEnd] != 0) nameEnd++;
+                int valueEnd = nameEnd + 1;
+                while (block[valueEnd] != 0) valueEnd++;
+                request.variable(new String(block, position, nameEnd - position, SCGI_CHARSET), new String(block, nameEnd + 1, valueEnd - nameEnd - 1, SCGI_CHARSET));
+                position = valueEnd + 1;
+            }
+            sink = request;
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Index the block and read the variables a typical request uses
+     */
+    private static long indexed(byte[] block, int iterations)
+    {
+        SCGIVariableIndex index = new SCGIVariableIndex();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            index.index(block, 0, block.length);
+            int contentLength = index.intValue(index.find(SCGIVariableIndex.CONTENT_LENGTH), 0);
+            String method = index.value(index.find(SCGIVariableIndex.REQUEST_METHOD));
+            String uri = index.value(index.find(SCGIVariableIndex.REQUEST_URI));
+            String query = index.value(index.find(SCGIVariableIndex.QUERY_STRING));
+            String host = index.value(index.findHeader("HOST"));
+            String cookie = index.value(index.findHeader("COOKIE"));
+            sink = method.length() + uri.length() + query.length() + host.length() + cookie.length() + contentLength;
+            index.clear();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * The variable dispatch SCGIRequest used before the index
+     */
+    private static final class Chain
+    {
+        public final Map<String, String> headers = new HashMap<String, String>();
+
+        public final Map<String, String> variables = new HashMap<String, String>();
+
+        public int contentLength;
+
+        public String contentType;
+
+        public String version;
+
+        public String serverSoftware;
+
+        public String serverName;
+
+        public String serverAddress;
+
+        public int serverPort;
+
+        public String serverProtocol;
+
+        public String remoteAddress;
+
+        public int remotePort;
+
+        public String requestMethod;
+
+        public String requestScheme;
+
+        public String requestUri;
+
+        public String pathInfo;
+
+        public String queryString;
+
+        public String scriptName;
+
+        public String scriptFileName;
+
+        public String documentRoot;
+
+        public void variable(String name, String value)
+        {
+            if (name.startsWith("HTTP_")) this.headers.put(name.substring(5), value);
+            else if (SCGI.CONTENT_LENGTH.equals(name)) this.contentLength = Integer.parseInt(value);
+            else if (SCGI.CONTENT_TYPE.equals(name)) this.contentType = value;
+            else if (SCGI.SCGI.equals(name)) this.version = value;
+            else if (SCGI.SERVER_SOFTWARE.equals(name)) this.serverSoftware = value;
+            else if (SCGI.SERVER_NAME.equals(name)) this.serverName = value;
+            else if (SCGI.SERVER_ADDR.equals(name)) this.serverAddress = value;
+            else if (SCGI.SERVER_PORT.equals(name)) this.serverPort = Integer.parseInt(value);
+            else if (SCGI.SERVER_PROTOCOL.equals(name)) this.serverProtocol = value;
+            else if (SCGI.REMOTE_ADDR.equals(name)) this.remoteAddress = value;
+            else if (SCGI.REMOTE_PORT.equals(name)) this.remotePort = Integer.parseInt(value);
+            else if (SCGI.REQUEST_METHOD.equals(name)) this.requestMethod = value;
+            else if (SCGI.REQUEST_SCHEME.equals(name)) this.requestScheme = value;
+            else if (SCGI.REQUEST_URI.equals(name)) this.requestUri = value;
+            else if (SCGI.PATH_INFO.equals(name)) this.pathInfo = value;
+            else if (SCGI.QUERY_STRING.equals(name)) this.queryString = value;
+            else if (SCGI.SCRIPT_NAME.equals(name)) this.scriptName = value;
+            else if (SCGI.SCRIPT_FILENAME.equals(name)) this.scriptFileName = value;
+            else if (SCGI.DOCUMENT_ROOT.equals(name)) this.documentRoot = value;
+            else this.variables.put(name, value);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.intrbiz.balsa.scgi.util;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.Charset;
+
+import com.intrbiz.balsa.scgi.SCGIRequest;
+
+/**
+ * Builds SCGI header blocks and requests for tests
+ */
+public final class SCGITestHelper
+{
+    public static final Charset SCGI_CHARSET = Charset.forName("ISO-8859-1");
+
+    private SCGITestHelper()
+    {
+    }
+
+    public static byte[] bytes(String s)
+    {
+        return s.getBytes(SCGI_CHARSET);
+    }
+
+    /**
+     * A header block of the given names and values, each NUL terminated
+     */
+    public static byte[] block(String... variables)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String variable : variables)
+        {
+            sb.append(variable).append('\0');
+        }
+        return bytes(sb.toString());
+    }
+
+    /**
+     * An active request with the given names and values, the header block is 
+     * surrounded by junk so that its offset is respected
+     */
+    public static SCGIRequest request(String... variables)
+    {
+        byte[] block = block(variables);
+        byte[] buffer = new byte[block.length + 8];
+        System.arraycopy(bytes("junk"), 0, buffer, 0, 4);
+        System.arraycopy(block, 0, buffer, 4, block.length);
+        System.arraycopy(bytes("junk"), 0, buffer, 4 + block.length, 4);
+        SCGIRequest request = new SCGIRequest();
+        request.activate();
+        request.variables(buffer, 4, block.length);
+        return request;
+    }
+
+    /**
+     * A port which was free, to start a listener on
+     */
+    public static int freePort() throws IOException
+    {
+        ServerSocket socket = new ServerSocket(0);
+        try
+        {
+            return socket.getLocalPort();
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+}
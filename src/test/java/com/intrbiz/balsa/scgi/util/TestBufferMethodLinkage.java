@@ -0,0 +1,178 @@
+package com.intrbiz.balsa.scgi.util;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.util.PooledWriter;
+
+/**
+ * We target Java 7, but are built by newer JDKs without the Java 7 class
+ * library.  Calls such as ByteBuffer.clear() then link against the covariant
+ * overrides added in Java 9, which throw NoSuchMethodError on Java 7 and 8,
+ * these must be called through java.nio.Buffer instead.
+ */
+public class TestBufferMethodLinkage
+{
+    private static final Set<String> BUFFERS = new HashSet<String>(Arrays.asList(
+            "java/nio/ByteBuffer",
+            "java/nio/CharBuffer",
+            "java/nio/ShortBuffer",
+            "java/nio/IntBuffer",
+            "java/nio/LongBuffer",
+            "java/nio/FloatBuffer",
+            "java/nio/DoubleBuffer",
+            "java/nio/MappedByteBuffer"
+    ));
+
+    private static final Set<String> COVARIANT = new HashSet<String>(Arrays.asList(
+            "clear", "flip", "limit", "position", "mark", "reset", "rewind"
+    ));
+
+    @Test
+    public void testNoCovariantBufferMethods() throws Exception
+    {
+        List<String> found = new ArrayList<String>();
+        File classes = new File(PooledWriter.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        if (classes.isDirectory())
+        {
+            scanDirectory(classes.toPath(), found);
+        }
+        else
+        {
+            scanJar(classes, found);
+        }
+        assertThat("Call these through java.nio.Buffer: " + found, found.isEmpty(), is(true));
+    }
+
+    private static void scanDirectory(final Path directory, final List<String> found) throws IOException
+    {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+            {
+                if (file.toString().endsWith(".class")) scan(directory.relativize(file).toString(), Files.readAllBytes(file), found);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void scanJar(File jar, List<String> found) throws IOException
+    {
+        JarFile file = new JarFile(jar);
+        try
+        {
+            for (Enumeration<JarEntry> entries = file.entries(); entries.hasMoreElements();)
+            {
+                JarEntry entry = entries.nextElement();
+                if (! entry.getName().endsWith(".class")) continue;
+                InputStream in = file.getInputStream(entry);
+                try
+                {
+                    scan(entry.getName(), new DataInputStream(in), found);
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    private static void scan(String name, byte[] data, List<String> found) throws IOException
+    {
+        scan(name, new DataInputStream(new ByteArrayInputStream(data)), found);
+    }
+
+    /**
+     * Look for method references in the constant pool of the given class
+     */
+    private static void scan(String name, DataInputStream in, List<String> found) throws IOException
+    {
+        in.readInt(); // magic
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classNames = new int[count];
+        int[] methodClasses = new int[count];
+        int[] methodNameAndTypes = new int[count];
+        int[] names = new int[count];
+        int[] descriptors = new int[count];
+        List<Integer> methods = new ArrayList<Integer>();
+        for (int i = 1; i < count; i++)
+        {
+            int tag = in.readUnsignedByte();
+            switch (tag)
+            {
+                case 1:
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7:
+                    classNames[i] = in.readUnsignedShort();
+                    break;
+                case 10:
+                    methodClasses[i] = in.readUnsignedShort();
+                    methodNameAndTypes[i] = in.readUnsignedShort();
+                    methods.add(i);
+                    break;
+                case 12:
+                    names[i] = in.readUnsignedShort();
+                    descriptors[i] = in.readUnsignedShort();
+                    break;
+                case 8: case 16: case 19: case 20:
+                    in.readUnsignedShort();
+                    break;
+                case 15:
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case 3: case 4: case 9: case 11: case 17: case 18:
+                    in.readInt();
+                    break;
+                case 5: case 6:
+                    in.readLong();
+                    // takes two entries
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag + " in " + name);
+            }
+        }
+        for (int method : methods)
+        {
+            String owner = utf8[classNames[methodClasses[method]]];
+            String methodName = utf8[names[methodNameAndTypes[method]]];
+            String descriptor = utf8[descriptors[methodNameAndTypes[method]]];
+            if (BUFFERS.contains(owner) && COVARIANT.contains(methodName) && descriptor.endsWith(")L" + owner + ";"))
+            {
+                found.add(name + ": " + owner + "." + methodName + descriptor);
+            }
+        }
+    }
+}
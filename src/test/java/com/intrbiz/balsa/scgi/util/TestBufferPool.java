@@ -0,0 +1,138 @@
+package com.intrbiz.balsa.scgi.util;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.util.BufferPool;
+import com.intrbiz.balsa.util.PooledOutputStream;
+import com.intrbiz.balsa.util.PooledWriter;
+
+public class TestBufferPool
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    @Test
+    public void testThreadReuse()
+    {
+        BufferPool<byte[]> pool = new BufferPool.Bytes("test-reuse", 128, 2, 4);
+        byte[] a = pool.acquire();
+        assertThat(a.length, is(equalTo(128)));
+        assertThat(pool.getMissCount(), is(equalTo(1L)));
+        assertThat(pool.getOutstanding(), is(equalTo(1)));
+        pool.release(a);
+        assertThat(pool.getOutstanding(), is(equalTo(0)));
+        assertThat(pool.acquire(), is(sameInstance(a)));
+        assertThat(pool.getHitCount(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void testSharedOverflow() throws Exception
+    {
+        final BufferPool<byte[]> pool = new BufferPool.Bytes("test-shared", 64, 1, 2);
+        final byte[][] buffers = new byte[4][];
+        for (int i = 0; i < buffers.length; i++)
+        {
+            buffers[i] = pool.acquire();
+        }
+        // one is kept by this thread, two by the shared pool, one dropped
+        for (byte[] buffer : buffers)
+        {
+            pool.release(buffer);
+        }
+        assertThat(pool.getOutstanding(), is(equalTo(0)));
+        // another thread can take the shared buffers
+        final byte[][] taken = new byte[3][];
+        Thread t = new Thread() {
+            public void run()
+            {
+                for (int i = 0; i < taken.length; i++)
+                {
+                    taken[i] = pool.acquire();
+                }
+            }
+        };
+        t.start();
+        t.join();
+        assertThat(taken[0], is(sameInstance(buffers[1])));
+        assertThat(taken[1], is(sameInstance(buffers[2])));
+        assertThat(taken[2], is(not(sameInstance(buffers[3]))));
+        assertThat(pool.getHitCount(), is(equalTo(2L)));
+        assertThat(pool.getMissCount(), is(equalTo(5L)));
+    }
+
+    @Test
+    public void testForeignBuffersAreNotPooled()
+    {
+        BufferPool<byte[]> pool = new BufferPool.Bytes("test-foreign", 64, 2, 2);
+        pool.release(new byte[32]);
+        assertThat(pool.acquire().length, is(equalTo(64)));
+    }
+
+    @Test
+    public void testPooledOutputStream() throws IOException
+    {
+        BufferPool<byte[]> pool = new BufferPool.Bytes("test-stream", 16, 2, 2);
+        PooledOutputStream out = new PooledOutputStream(pool);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        out.open(sink);
+        out.writeLatin1("Status: 200 OK\r\n");
+        out.write("0123456789012345678901234567890123456789".getBytes(LATIN1));
+        out.write('!');
+        out.writeLatin1("\u00E9\u20AC");
+        out.flush();
+        out.release();
+        assertThat(pool.getOutstanding(), is(equalTo(0)));
+        assertThat(new String(sink.toByteArray(), LATIN1), is(equalTo("Status: 200 OK\r\n0123456789012345678901234567890123456789!\u00E9?")));
+    }
+
+    @Test
+    public void testPooledWriter() throws IOException
+    {
+        BufferPool<char[]> chars = new BufferPool.Chars("test-writer-chars", 7, 2, 2);
+        BufferPool<byte[]> bytes = new BufferPool.Bytes("test-writer-bytes", 5, 2, 2);
+        PooledWriter writer = new PooledWriter(chars, bytes);
+        // a surrogate pair which straddles the char buffer
+        String text = "Hello \uD83D\uDE00 w\u00F6rld \u20AC, this is longer than the buffers";
+        for (int round = 0; round < 2; round++)
+        {
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            writer.open(sink, UTF8);
+            writer.write(text);
+            writer.write('!');
+            writer.write(text.toCharArray(), 0, 5);
+            writer.flush();
+            writer.release();
+            assertThat(new String(sink.toByteArray(), UTF8), is(equalTo(text + "!" + text.substring(0, 5))));
+        }
+        assertThat(chars.getOutstanding(), is(equalTo(0)));
+        assertThat(bytes.getOutstanding(), is(equalTo(0)));
+        assertThat(chars.getHitCount(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void testPooledWriterClose() throws IOException
+    {
+        BufferPool<char[]> chars = new BufferPool.Chars("test-writer-close-chars", 8, 2, 2);
+        BufferPool<byte[]> bytes = new BufferPool.Bytes("test-writer-close-bytes", 8, 2, 2);
+        PooledWriter writer = new PooledWriter(chars, bytes);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        writer.open(sink, UTF8);
+        // a trailing unpaired surrogate is replaced rather than dropped
+        writer.write("ab\uD83D");
+        writer.flush();
+        assertThat(new String(sink.toByteArray(), UTF8), is(equalTo("ab")));
+        writer.close();
+        assertThat(new String(sink.toByteArray(), UTF8), is(equalTo("ab?")));
+        writer.release();
+        assertThat(chars.getOutstanding(), is(equalTo(0)));
+        assertThat(bytes.getOutstanding(), is(equalTo(0)));
+    }
+}
@@ -0,0 +1,64 @@
+package com.intrbiz.balsa.scgi.util;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.util.CoDel;
+
+public class TestCoDel
+{
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+    
+    @Test
+    public void testBelowTargetNeverDrops()
+    {
+        CoDel codel = new CoDel(5, 100, TimeUnit.MILLISECONDS);
+        for (long now = 1; now < 10000; now++)
+        {
+            assertThat(codel.shouldDrop(4 * MS, now * MS), is(false));
+        }
+    }
+    
+    @Test
+    public void testDropsOnlyAfterAnInterval()
+    {
+        CoDel codel = new CoDel(5, 100, TimeUnit.MILLISECONDS);
+        assertThat(codel.shouldDrop(10 * MS, 1 * MS), is(false));
+        assertThat(codel.shouldDrop(10 * MS, 50 * MS), is(false));
+        assertThat(codel.shouldDrop(10 * MS, 100 * MS), is(false));
+        assertThat(codel.shouldDrop(10 * MS, 101 * MS), is(true));
+        // not again until the next drop time
+        assertThat(codel.shouldDrop(10 * MS, 102 * MS), is(false));
+        assertThat(codel.shouldDrop(10 * MS, 201 * MS), is(true));
+    }
+    
+    @Test
+    public void testDropRateIncreases()
+    {
+        CoDel codel = new CoDel(5, 100, TimeUnit.MILLISECONDS);
+        int early = 0, late = 0;
+        for (long now = 1; now <= 2000; now++)
+        {
+            if (codel.shouldDrop(10 * MS, now * MS))
+            {
+                if (now <= 1000) early++;
+                else late++;
+            }
+        }
+        assertThat(late, is(greaterThan(early)));
+    }
+    
+    @Test
+    public void testStopsDroppingBelowTarget()
+    {
+        CoDel codel = new CoDel(5, 100, TimeUnit.MILLISECONDS);
+        codel.shouldDrop(10 * MS, 1 * MS);
+        assertThat(codel.shouldDrop(10 * MS, 101 * MS), is(true));
+        assertThat(codel.shouldDrop(1 * MS, 300 * MS), is(false));
+        assertThat(codel.shouldDrop(10 * MS, 400 * MS), is(false));
+    }
+}
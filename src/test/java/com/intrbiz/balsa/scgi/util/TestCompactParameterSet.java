@@ -0,0 +1,180 @@
+package com.intrbiz.balsa.scgi.util;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.parameter.ListParameter;
+import com.intrbiz.balsa.parameter.Parameter;
+import com.intrbiz.balsa.parameter.StringParameter;
+import com.intrbiz.balsa.util.CompactParameterSet;
+import com.intrbiz.balsa.util.FormBodyParser;
+import com.intrbiz.balsa.util.MapParameterSet;
+import com.intrbiz.balsa.util.QueryStringParser;
+
+public class TestCompactParameterSet
+{
+    @Test
+    public void testParseQueryString()
+    {
+        CompactParameterSet params = new CompactParameterSet();
+        QueryStringParser.parseQueryString("a=1&b=2&b=3&c[]=4&d[1]=y&d[0]=x&e=%C3%A9+f&g[x]=5", params);
+        assertThat(params.size(), is(equalTo(6)));
+        assertThat(params.getParameterNames(), is(equalTo((Set<String>) new LinkedHashSet<String>(Arrays.asList("a", "b", "c", "d", "e", "g[x]")))));
+        assertThat(params.getParameter("a"), is(instanceOf(StringParameter.class)));
+        assertThat(params.getParameter("a").getStringValue(), is(equalTo("1")));
+        assertThat(params.getParameter("b").getStringListValue(), is(equalTo(Arrays.asList("2", "3"))));
+        assertThat(params.getParameter("c"), is(instanceOf(ListParameter.class)));
+        assertThat(params.getParameter("c").getStringListValue(), is(equalTo(Arrays.asList("4"))));
+        assertThat(params.getParameter("d").getStringListValue(), is(equalTo(Arrays.asList("x", "y"))));
+        assertThat(params.getParameter("d").getStringListValue(1), is(equalTo("y")));
+        assertThat(params.getStringValue("e"), is(equalTo("\u00e9 f")));
+        assertThat(params.getStringValue("g[x]"), is(equalTo("5")));
+        assertThat(params.containsParameter("f"), is(false));
+        assertThat(params.getParameter("f"), is(nullValue()));
+    }
+
+    /**
+     * Parsing into a compact set gives the same parameters as parsing into a map
+     */
+    @Test
+    public void testMatchesMapParameterSet() throws Exception
+    {
+        Random random = new Random(25);
+        String[] names = { "a", "b", "list[]", "row[0]", "row[1]", "row[2]", "row[-1]", "row[]", "row", "x[y]", "\u00e9" };
+        for (int run = 0; run < 1000; run++)
+        {
+            StringBuilder query = new StringBuilder();
+            int count = random.nextInt(40);
+            for (int i = 0; i < count; i++)
+            {
+                if (query.length() > 0) query.append('&');
+                query.append(names[random.nextInt(names.length)]).append('=').append("v").append(random.nextInt(5));
+            }
+            MapParameterSet expected = new MapParameterSet();
+            QueryStringParser.parseQueryString(query.toString(), expected);
+            CompactParameterSet actual = new CompactParameterSet();
+            QueryStringParser.parseQueryString(query.toString(), actual);
+            assertEquivalent(actual, expected);
+            // through the String path as a form body
+            byte[] body = query.toString().getBytes("UTF-8");
+            CompactParameterSet form = new CompactParameterSet();
+            FormBodyParser.parse(new ByteArrayInputStream(body), body.length, form, 1024 * 1024, 1024);
+            assertEquivalent(form, expected);
+        }
+    }
+
+    private static void assertEquivalent(CompactParameterSet actual, MapParameterSet expected)
+    {
+        assertThat(actual.size(), is(equalTo(expected.size())));
+        assertThat(actual.getParameterNames(), is(equalTo(expected.getParameterNames())));
+        for (Parameter parameter : expected.getParameterValues())
+        {
+            Parameter view = actual.getParameter(parameter.getName());
+            assertThat(view.getClass(), is(equalTo((Object) parameter.getClass())));
+            assertThat(view.getStringListValue(), is(equalTo(parameter.getStringListValue())));
+            for (int i = 0; i < parameter.getLength(); i++)
+            {
+                assertThat(view.getListValue().get(i).getIndex(), is(equalTo(parameter.getListValue().get(i).getIndex())));
+            }
+        }
+    }
+
+    @Test
+    public void testViewsAreKeptUntilChanged()
+    {
+        CompactParameterSet params = new CompactParameterSet();
+        QueryStringParser.parseQueryString("a=1&b=2&b=3", params);
+        Parameter a = params.getParameter("a");
+        Parameter b = params.getParameter("b");
+        assertThat(params.getParameter("a"), is(sameInstance(a)));
+        assertThat(params.getParameterValues(), hasItems(a, b));
+        // changing one name only replaces its view
+        QueryStringParser.parseQueryString("b=4", params);
+        assertThat(params.getParameter("a"), is(sameInstance(a)));
+        assertThat(params.getParameter("b"), is(not(sameInstance(b))));
+        assertThat(params.getParameter("b").getStringListValue(), is(equalTo(Arrays.asList("2", "3", "4"))));
+        params.clear();
+        QueryStringParser.parseQueryString("a=5", params);
+        assertThat(params.getStringValue("a"), is(equalTo("5")));
+        assertThat(params.getParameter("a"), is(not(sameInstance(a))));
+    }
+
+    @Test
+    public void testAddAndRemove()
+    {
+        CompactParameterSet params = new CompactParameterSet();
+        QueryStringParser.parseQueryString("a=1&a=2&b=3", params);
+        // replace a list with a single value
+        params.addParameter(new StringParameter("a", "replaced"));
+        assertThat(params.getParameter("a"), is(instanceOf(StringParameter.class)));
+        assertThat(params.getStringValue("a"), is(equalTo("replaced")));
+        // add to a list view by copying it
+        QueryStringParser.parseQueryString("c=1&c=2", params);
+        ListParameter list = ((ListParameter) params.getParameter("c")).copy();
+        list.addValue(new StringParameter("c", "3"));
+        params.addParameter(list);
+        assertThat(params.getParameter("c").getStringListValue(), is(equalTo(Arrays.asList("1", "2", "3"))));
+        // remove
+        params.removeParameter("b");
+        assertThat(params.containsParameter("b"), is(false));
+        assertThat(params.size(), is(equalTo(2)));
+        QueryStringParser.parseQueryString("b=4", params);
+        assertThat(params.getStringValue("b"), is(equalTo("4")));
+        assertThat(params.getParameters().keySet(), is(equalTo((Set<String>) new LinkedHashSet<String>(Arrays.asList("a", "b", "c")))));
+        // reuse
+        params.clear();
+        assertThat(params.size(), is(equalTo(0)));
+        assertThat(params.containsParameter("a"), is(false));
+        QueryStringParser.parseQueryString("z=26", params);
+        assertThat(params.getParameterValues().size(), is(equalTo(1)));
+        assertThat(params.getStringValue("z"), is(equalTo("26")));
+    }
+
+    @Test
+    public void testOtherParameters()
+    {
+        CompactParameterSet params = new CompactParameterSet();
+        // an empty list cannot be held compactly
+        ListParameter empty = new ListParameter("list");
+        params.addParameter(empty);
+        assertThat(params.getParameter("list"), is(sameInstance((Parameter) empty)));
+        QueryStringParser.parseQueryString("list=1&list=2&other=3", params);
+        assertThat(params.getParameter("list").getStringListValue(), is(equalTo(Arrays.asList("1", "2"))));
+        assertThat(params.size(), is(equalTo(2)));
+        // replacing it with a string moves it back
+        params.addParameter(new StringParameter("list", "compact"));
+        assertThat(params.getParameter("list"), is(instanceOf(StringParameter.class)));
+        assertThat(params.size(), is(equalTo(2)));
+    }
+
+    @Test
+    public void testManyParameters()
+    {
+        StringBuilder query = new StringBuilder();
+        int count = 5000;
+        for (int i = 0; i < count; i++)
+        {
+            if (query.length() > 0) query.append('&');
+            query.append("p").append(i).append('=').append(i).append("&row[").append(count - i).append("]=").append(i);
+        }
+        CompactParameterSet params = new CompactParameterSet();
+        QueryStringParser.parseQueryString(query.toString(), params);
+        assertThat(params.size(), is(equalTo(count + 1)));
+        for (int i = 0; i < count; i++)
+        {
+            assertThat(params.getStringValue("p" + i), is(equalTo(String.valueOf(i))));
+        }
+        Parameter rows = params.getParameter("row");
+        assertThat(rows.getLength(), is(equalTo(count)));
+        assertThat(rows.getStringListValue(1), is(equalTo(String.valueOf(count - 1))));
+        assertThat(rows.getListValue().get(0).getIndex(), is(equalTo(1)));
+    }
+}
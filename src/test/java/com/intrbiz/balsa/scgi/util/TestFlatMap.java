@@ -0,0 +1,133 @@
+package com.intrbiz.balsa.scgi.util;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.util.FlatMap;
+
+public class TestFlatMap
+{
+    @Test
+    public void testPutGetRemove()
+    {
+        FlatMap<String> map = new FlatMap<String>();
+        assertThat(map.put("HOST", "a"), is(nullValue()));
+        assertThat(map.put("COOKIE", "b"), is(nullValue()));
+        assertThat(map.put("HOST", "c"), is(equalTo("a")));
+        assertThat(map.size(), is(equalTo(2)));
+        assertThat(map.get("HOST"), is(equalTo("c")));
+        assertThat(map.get("host"), is(nullValue()));
+        assertThat(map.containsKey("COOKIE"), is(true));
+        assertThat(map.remove("COOKIE"), is(equalTo("b")));
+        assertThat(map.remove("COOKIE"), is(nullValue()));
+        assertThat(map.containsKey("COOKIE"), is(false));
+        assertThat(map.size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testInsertionOrder()
+    {
+        FlatMap<String> map = new FlatMap<String>();
+        map.put("c", "1");
+        map.put("a", "2");
+        map.put("b", "3");
+        map.remove("a");
+        map.put("a", "4");
+        assertThat(new ArrayList<String>(map.keySet()), is(equalTo(Arrays.asList("c", "b", "a"))));
+        assertThat(new ArrayList<String>(map.values()), is(equalTo(Arrays.asList("1", "3", "4"))));
+    }
+
+    @Test
+    public void testClearAndReuse()
+    {
+        FlatMap<Integer> map = new FlatMap<Integer>(4);
+        for (int round = 0; round < 3; round++)
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                map.put("key" + i, i);
+            }
+            assertThat(map.size(), is(equalTo(100)));
+            assertThat(map.get("key42"), is(equalTo(42)));
+            map.clear();
+            assertThat(map.size(), is(equalTo(0)));
+            assertThat(map.get("key42"), is(nullValue()));
+            assertThat(map.isEmpty(), is(true));
+        }
+    }
+
+    @Test
+    public void testViews()
+    {
+        FlatMap<String> map = new FlatMap<String>();
+        map.put("a", "1");
+        map.put("b", "2");
+        map.put("c", "3");
+        // removal through the key set and iterator write through
+        map.keySet().remove("b");
+        Iterator<Map.Entry<String, String>> i = map.entrySet().iterator();
+        i.next().setValue("one");
+        i.next();
+        i.remove();
+        assertThat(map.size(), is(equalTo(1)));
+        assertThat(map.get("a"), is(equalTo("one")));
+        assertThat(map.containsKey("c"), is(false));
+        // equal to other maps
+        Map<String, String> other = new HashMap<String, String>();
+        other.put("a", "one");
+        assertThat(map.equals(other), is(true));
+        assertThat(other.equals(map), is(true));
+        assertThat(map.hashCode(), is(equalTo(other.hashCode())));
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void testFailFast()
+    {
+        FlatMap<String> map = new FlatMap<String>();
+        map.put("a", "1");
+        map.put("b", "2");
+        for (String key : map.keySet())
+        {
+            map.put(key + "x", "3");
+        }
+    }
+
+    @Test
+    public void testAgainstHashMap()
+    {
+        Random random = new Random(7);
+        FlatMap<Integer> map = new FlatMap<Integer>(4);
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+        for (int i = 0; i < 20000; i++)
+        {
+            String key = "k" + random.nextInt(64);
+            int op = random.nextInt(10);
+            if (op < 6)
+            {
+                assertThat(map.put(key, i), is(equalTo(expected.put(key, i))));
+            }
+            else if (op < 9)
+            {
+                assertThat(map.remove(key), is(equalTo(expected.remove(key))));
+            }
+            else if (random.nextInt(100) == 0)
+            {
+                map.clear();
+                expected.clear();
+            }
+            assertThat(map.get(key), is(equalTo(expected.get(key))));
+            assertThat(map.size(), is(equalTo(expected.size())));
+        }
+        assertThat(map, is(equalTo(expected)));
+    }
+}
@@ -0,0 +1,190 @@
+package com.intrbiz.balsa.scgi.util;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.SCGIBadRequestException;
+import com.intrbiz.balsa.http.HTTP.HTTPStatus;
+import com.intrbiz.balsa.util.BufferPool;
+import com.intrbiz.balsa.util.FormBodyParser;
+import com.intrbiz.balsa.util.MapParameterSet;
+import com.intrbiz.balsa.util.QueryStringParser;
+
+public class TestFormBodyParser
+{
+    private static final Charset SCGI_CHARSET = Charset.forName("ISO-8859-1");
+
+    private static final int MAX_BODY_SIZE = 64 * 1024;
+
+    private static final int MAX_PARAMETER_SIZE = 16 * 1024;
+
+    /**
+     * A stream which returns at most the given number of bytes per read
+     */
+    private static InputStream trickle(byte[] data, final int max)
+    {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len)
+            {
+                return super.read(b, off, Math.min(len, max));
+            }
+        };
+    }
+
+    private static MapParameterSet parse(String body, int readSize) throws IOException
+    {
+        byte[] data = body.getBytes(SCGI_CHARSET);
+        MapParameterSet params = new MapParameterSet();
+        FormBodyParser.parse(trickle(data, readSize), data.length, params, MAX_BODY_SIZE, MAX_PARAMETER_SIZE);
+        return params;
+    }
+
+    private static MapParameterSet expected(String body)
+    {
+        MapParameterSet params = new MapParameterSet();
+        QueryStringParser.parseQueryString(body, params);
+        return params;
+    }
+
+    private static HTTPStatus reject(String body)
+    {
+        try
+        {
+            parse(body, 8192);
+            return null;
+        }
+        catch (SCGIBadRequestException e)
+        {
+            return e.getStatus();
+        }
+        catch (IOException e)
+        {
+            return HTTPStatus.InternalServerError;
+        }
+    }
+
+    private static void assertSame(MapParameterSet actual, MapParameterSet expected)
+    {
+        assertThat(actual.getParameterNames(), is(equalTo(expected.getParameterNames())));
+        for (String name : expected.getParameterNames())
+        {
+            assertThat(actual.getParameter(name).getClass(), is(equalTo((Object) expected.getParameter(name).getClass())));
+            assertThat(actual.getParameter(name).getStringListValue(), is(equalTo(expected.getParameter(name).getStringListValue())));
+        }
+    }
+
+    @Test
+    public void testMatchesQueryStringParser() throws IOException
+    {
+        String[] bodies = {
+            "name=test&summary=Test&number=12345",
+            "name=test&list=1&list=2&list=3",
+            "list[]=1&list[]=2&list[]=3",
+            "list[2]=c&list[0]=a&list[1]=b",
+            "a+b=c+d&e%3Df=g%26h&empty=&noValue&&x=%E2%82%AC%20euro",
+            "utf=%C3%A9t%C3%A9&q=a%2Bb%3Dc"
+        };
+        for (String body : bodies)
+        {
+            for (int readSize : new int[] { 1, 2, 3, 7, 8192 })
+            {
+                assertSame(parse(body, readSize), expected(body));
+            }
+        }
+    }
+
+    @Test
+    public void testDecodedValues() throws IOException
+    {
+        MapParameterSet params = parse("a+b=c+d&e%3Df=g%26h&x=%E2%82%ac", 1);
+        assertThat(params.getParameter("a b").getStringValue(), is(equalTo("c d")));
+        assertThat(params.getParameter("e=f").getStringValue(), is(equalTo("g&h")));
+        assertThat(params.getParameter("x").getStringValue(), is(equalTo("\u20ac")));
+    }
+
+    @Test
+    public void testLargeParameter() throws IOException
+    {
+        char[] value = new char[MAX_PARAMETER_SIZE - 2];
+        Arrays.fill(value, 'v');
+        int outstanding = BufferPool.bytes().getOutstanding();
+        MapParameterSet params = parse("a=1&b=" + new String(value) + "&c=3", 1000);
+        assertThat(params.getParameter("b").getStringValue().length(), is(equalTo(value.length)));
+        assertThat(params.getParameter("c").getStringValue(), is(equalTo("3")));
+        assertThat(BufferPool.bytes().getOutstanding(), is(equalTo(outstanding)));
+    }
+
+    @Test
+    public void testLimits()
+    {
+        char[] value = new char[MAX_PARAMETER_SIZE];
+        Arrays.fill(value, 'v');
+        int outstanding = BufferPool.bytes().getOutstanding();
+        assertThat(reject("b=" + new String(value)), is(equalTo(HTTPStatus.RequestEntityTooLarge)));
+        assertThat(reject("b=" + new String(value, 0, value.length - 2)), is(nullValue()));
+        assertThat(BufferPool.bytes().getOutstanding(), is(equalTo(outstanding)));
+        // the body length is checked before reading
+        try
+        {
+            FormBodyParser.parse(new ByteArrayInputStream(new byte[0]), MAX_BODY_SIZE + 1, new MapParameterSet(), MAX_BODY_SIZE, MAX_PARAMETER_SIZE);
+            fail("Expected the body to be rejected");
+        }
+        catch (SCGIBadRequestException e)
+        {
+            assertThat(e.getStatus(), is(equalTo(HTTPStatus.RequestEntityTooLarge)));
+        }
+        catch (IOException e)
+        {
+            fail("Expected the body to be rejected");
+        }
+    }
+
+    @Test
+    public void testMalformed()
+    {
+        assertThat(reject("a=%zz"), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(reject("a=%4"), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(reject("a=%"), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(reject("a=%41"), is(nullValue()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedBody() throws IOException
+    {
+        FormBodyParser.parse(new ByteArrayInputStream("a=1".getBytes(SCGI_CHARSET)), 10, new MapParameterSet(), MAX_BODY_SIZE, MAX_PARAMETER_SIZE);
+    }
+
+    /**
+     * Random well formed bodies parse the same as the query string parser, whatever the read size
+     */
+    @Test
+    public void testRandomBodies() throws IOException
+    {
+        Random random = new Random(20);
+        String alphabet = "abcAB01+%=&[]";
+        for (int run = 0; run < 500; run++)
+        {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(200);
+            for (int i = 0; i < length; i++)
+            {
+                char c = alphabet.charAt(random.nextInt(alphabet.length()));
+                if (c == '%') sb.append('%').append(Integer.toHexString(0x10 + random.nextInt(0x70)));
+                else sb.append(c);
+            }
+            String body = sb.toString();
+            assertSame(parse(body, 1 + random.nextInt(16)), expected(body));
+        }
+    }
+}
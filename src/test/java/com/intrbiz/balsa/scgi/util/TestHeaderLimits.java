@@ -0,0 +1,252 @@
+package com.intrbiz.balsa.scgi.util;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+import static com.intrbiz.balsa.scgi.util.SCGITestHelper.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.SCGIBadRequestException;
+import com.intrbiz.balsa.http.HTTP.HTTPStatus;
+import com.intrbiz.balsa.scgi.SCGIVariableIndex;
+import com.intrbiz.balsa.util.NetstringInputStream;
+
+public class TestHeaderLimits
+{
+    private static final int MAX_HEADER_BYTES = 4096;
+
+    private static final int MAX_VARIABLES = 32;
+
+    private static final int MAX_NAME_LENGTH = 64;
+
+    private static final int MAX_VALUE_LENGTH = 512;
+
+    private static byte[] request(byte[] block)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] length = String.valueOf(block.length).getBytes(SCGI_CHARSET);
+        out.write(length, 0, length.length);
+        out.write(':');
+        out.write(block, 0, block.length);
+        out.write(',');
+        return out.toByteArray();
+    }
+
+    private static HTTPStatus index(byte[] block)
+    {
+        try
+        {
+            new SCGIVariableIndex().index(block, 0, block.length, MAX_VARIABLES, MAX_NAME_LENGTH, MAX_VALUE_LENGTH);
+            return null;
+        }
+        catch (SCGIBadRequestException e)
+        {
+            return e.getStatus();
+        }
+    }
+
+    private static HTTPStatus netstring(String data)
+    {
+        try
+        {
+            NetstringInputStream in = new NetstringInputStream();
+            in.open(new ByteArrayInputStream(data.getBytes(SCGI_CHARSET)));
+            in.readNetstring(MAX_HEADER_BYTES);
+            return null;
+        }
+        catch (SCGIBadRequestException e)
+        {
+            return e.getStatus();
+        }
+        catch (IOException e)
+        {
+            return HTTPStatus.InternalServerError;
+        }
+    }
+
+    private static String repeat(char c, int count)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++)
+        {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testHeaderLengthRejectedBeforeReading() throws IOException
+    {
+        NetstringInputStream in = new NetstringInputStream(512);
+        // the stream ends after the length, we must not try to read the content
+        in.open(new ByteArrayInputStream("999999999:".getBytes(SCGI_CHARSET)));
+        try
+        {
+            in.readNetstring(MAX_HEADER_BYTES);
+            fail("Expected the netstring to be rejected");
+        }
+        catch (SCGIBadRequestException e)
+        {
+            assertThat(e.getStatus(), is(equalTo(HTTPStatus.RequestEntityTooLarge)));
+        }
+        assertThat(in.getBufferSize(), is(equalTo(512)));
+    }
+
+    @Test
+    public void testMalformedHeaderLength()
+    {
+        assertThat(netstring("12a:"), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(netstring("/1:a,"), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(netstring(":a,"), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(netstring("1:ab"), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(netstring("1234567890:"), is(equalTo(HTTPStatus.RequestEntityTooLarge)));
+        assertThat(netstring("4097:"), is(equalTo(HTTPStatus.RequestEntityTooLarge)));
+        assertThat(netstring("1:a,"), is(nullValue()));
+    }
+
+    @Test
+    public void testVariableLimits()
+    {
+        assertThat(index(block("A", "1", "B", "2")), is(nullValue()));
+        // at the limits
+        assertThat(index(block(repeat('N', MAX_NAME_LENGTH), repeat('v', MAX_VALUE_LENGTH))), is(nullValue()));
+        // over the limits
+        assertThat(index(block(repeat('N', MAX_NAME_LENGTH + 1), "v")), is(equalTo(HTTPStatus.RequestEntityTooLarge)));
+        assertThat(index(block("N", repeat('v', MAX_VALUE_LENGTH + 1))), is(equalTo(HTTPStatus.RequestEntityTooLarge)));
+        String[] variables = new String[(MAX_VARIABLES + 1) * 2];
+        for (int i = 0; i < variables.length; i++)
+        {
+            variables[i] = "V" + i;
+        }
+        assertThat(index(block(variables)), is(equalTo(HTTPStatus.RequestEntityTooLarge)));
+        String[] atLimit = new String[MAX_VARIABLES * 2];
+        System.arraycopy(variables, 0, atLimit, 0, atLimit.length);
+        assertThat(index(block(atLimit)), is(nullValue()));
+    }
+
+    @Test
+    public void testMalformedBlock()
+    {
+        assertThat(index(block("NAME")), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(index("NAME\0VALUE".getBytes(SCGI_CHARSET)), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(index("NAME\0VALUE\0TRAILING".getBytes(SCGI_CHARSET)), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(index(new byte[0]), is(nullValue()));
+    }
+
+    @Test
+    public void testInvalidContentLength()
+    {
+        assertThat(index(block("CONTENT_LENGTH", "12a")), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(index(block("CONTENT_LENGTH", "-1")), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(index(block("CONTENT_LENGTH", "2147483648")), is(equalTo(HTTPStatus.BadRequest)));
+        assertThat(index(block("CONTENT_LENGTH", "2147483647")), is(nullValue()));
+        assertThat(index(block("CONTENT_LENGTH", "")), is(nullValue()));
+        assertThat(index(block("CONTENT_LENGTH", "12")), is(nullValue()));
+    }
+
+    /**
+     * Well formed blocks within the limits are always accepted and index every variable
+     */
+    @Test
+    public void testWellFormedBlocksAreAccepted()
+    {
+        Random random = new Random(16);
+        for (int run = 0; run < 2000; run++)
+        {
+            int count = random.nextInt(MAX_VARIABLES + 1);
+            String[] variables = new String[count * 2];
+            for (int i = 0; i < variables.length; i++)
+            {
+                StringBuilder sb = new StringBuilder();
+                int length = (i % 2 == 0) ? 1 + random.nextInt(MAX_NAME_LENGTH) : random.nextInt(MAX_VALUE_LENGTH + 1);
+                for (int j = 0; j < length; j++)
+                {
+                    sb.append((char) (1 + random.nextInt(255)));
+                }
+                variables[i] = sb.toString();
+            }
+            byte[] block = block(variables);
+            SCGIVariableIndex index = new SCGIVariableIndex();
+            try
+            {
+                index.index(block, 0, block.length, MAX_VARIABLES, MAX_NAME_LENGTH, MAX_VALUE_LENGTH);
+            }
+            catch (SCGIBadRequestException e)
+            {
+                fail("Rejected a well formed block: " + e.getMessage());
+            }
+            assertThat(index.size(), is(equalTo(count)));
+            for (int entry = 0; entry < count; entry++)
+            {
+                assertThat(index.name(entry), is(equalTo(variables[entry * 2])));
+                assertThat(index.value(entry), is(equalTo(variables[entry * 2 + 1])));
+            }
+        }
+    }
+
+    /**
+     * Corrupt requests must only ever be rejected, never crash the parser or
+     * make it buffer more than the limit
+     */
+    @Test
+    public void testFuzzedRequests()
+    {
+        Random random = new Random(42);
+        byte[] valid = request(block(
+                "CONTENT_LENGTH", "0",
+                "SCGI", "1",
+                "REQUEST_METHOD", "GET",
+                "REQUEST_URI", "/test?a=b",
+                "HTTP_HOST", "localhost",
+                "HTTP_USER_AGENT", "fuzz"
+        ));
+        for (int run = 0; run < 20000; run++)
+        {
+            byte[] request = valid.clone();
+            int mutations = 1 + random.nextInt(4);
+            for (int m = 0; m < mutations; m++)
+            {
+                switch (random.nextInt(4))
+                {
+                    case 0:
+                        // corrupt a byte
+                        request[random.nextInt(request.length)] = (byte) random.nextInt(256);
+                        break;
+                    case 1:
+                        // truncate
+                        request = Arrays.copyOf(request, random.nextInt(request.length));
+                        break;
+                    case 2:
+                        // a random digit in the length
+                        request[random.nextInt(Math.min(request.length, 4))] = (byte) ('0' + random.nextInt(10));
+                        break;
+                    default:
+                        // random garbage
+                        request = new byte[random.nextInt(64)];
+                        random.nextBytes(request);
+                }
+                if (request.length == 0) break;
+            }
+            NetstringInputStream in = new NetstringInputStream(512);
+            in.open(new ByteArrayInputStream(request));
+            try
+            {
+                int length = in.readNetstring(MAX_HEADER_BYTES);
+                assertThat(length, is(lessThanOrEqualTo(MAX_HEADER_BYTES)));
+                new SCGIVariableIndex().index(in.getBuffer(), in.getStart(), length, MAX_VARIABLES, MAX_NAME_LENGTH, MAX_VALUE_LENGTH);
+            }
+            catch (IOException e)
+            {
+                // rejected, or the request ended early
+            }
+            assertThat(in.getBufferSize(), is(lessThanOrEqualTo(MAX_HEADER_BYTES * 2)));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.intrbiz.balsa.scgi.util;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.parameter.IndexedListParameter;
+import com.intrbiz.balsa.parameter.ListParameter;
+import com.intrbiz.balsa.parameter.Parameter;
+import com.intrbiz.balsa.parameter.StringParameter;
+import com.intrbiz.balsa.util.MapParameterSet;
+import com.intrbiz.balsa.util.QueryStringParser;
+
+public class TestIndexedListParameter
+{
+    @Test
+    public void testLookupByIndex()
+    {
+        IndexedListParameter list = new IndexedListParameter("list");
+        list.addValue(new StringParameter("list", 2, "c"));
+        list.addValue(new StringParameter("list", 0, "a"));
+        list.addValue(new StringParameter("list", 1000000, "sparse"));
+        list.addValue(new StringParameter("list", 0, "duplicate"));
+        list.addValue(new StringParameter("list", -1, "unindexed"));
+        list.sort();
+        assertThat(list.getStringListValue(0), is(equalTo("a")));
+        assertThat(list.getStringListValue(2), is(equalTo("c")));
+        assertThat(list.getStringListValue(1000000), is(equalTo("sparse")));
+        assertThat(list.getStringListValue(-1), is(equalTo("unindexed")));
+        assertThat(list.getListValue(1), is(nullValue()));
+        assertThat(list.getListValue(999999), is(nullValue()));
+        assertThat(list.getLength(), is(equalTo(5)));
+        assertThat(list.getStringListValue().toString(), is(equalTo("[unindexed, a, duplicate, c, sparse]")));
+    }
+
+    /**
+     * Any sequence of adds and sorts gives the same list as a ListParameter
+     */
+    @Test
+    public void testMatchesListParameter()
+    {
+        Random random = new Random(23);
+        for (int run = 0; run < 2000; run++)
+        {
+            ListParameter expected = new ListParameter("list");
+            IndexedListParameter actual = new IndexedListParameter("list");
+            int count = random.nextInt(50);
+            int range = 1 + random.nextInt(random.nextBoolean() ? 20 : 5000);
+            for (int i = 0; i < count; i++)
+            {
+                Parameter value = new StringParameter("list", random.nextInt(range + 1) - 1, "v" + i);
+                expected.addValue(value);
+                actual.addValue(value);
+                if (random.nextInt(3) != 0)
+                {
+                    expected.sort();
+                    actual.sort();
+                }
+                if (random.nextInt(10) == 0)
+                {
+                    // reading part way through
+                    assertThat(actual.getStringListValue(), is(equalTo(expected.getStringListValue())));
+                }
+            }
+            assertThat(actual.getStringListValue(), is(equalTo(expected.getStringListValue())));
+            for (int index = -1; index <= range; index++)
+            {
+                assertThat(actual.getListValue(index), is(sameInstance(expected.getListValue(index))));
+            }
+        }
+    }
+
+    @Test
+    public void testLargeIndexedForm()
+    {
+        StringBuilder query = new StringBuilder();
+        int rows = 20000;
+        for (int i = rows - 1; i >= 0; i--)
+        {
+            if (query.length() > 0) query.append('&');
+            query.append("row[").append(i).append("]=").append(i);
+        }
+        MapParameterSet params = new MapParameterSet();
+        QueryStringParser.parseQueryString(query.toString(), params);
+        Parameter list = params.getParameter("row");
+        assertThat(list, is(instanceOf(IndexedListParameter.class)));
+        assertThat(list.getLength(), is(equalTo(rows)));
+        assertThat(list.getStringListValue(12345), is(equalTo("12345")));
+        assertThat(list.getListValue().get(0).getIndex(), is(equalTo(0)));
+        assertThat(list.getListValue().get(rows - 1).getIndex(), is(equalTo(rows - 1)));
+    }
+
+    @Test
+    public void testOnlyIndexedListsAreIndexed()
+    {
+        MapParameterSet params = new MapParameterSet();
+        QueryStringParser.parseQueryString("a=1&a=2&b[]=3&c[]=4&c[2]=5&c[]=6&c[0]=7", params);
+        assertThat(params.getParameter("a").getClass(), is(equalTo((Object) ListParameter.class)));
+        assertThat(params.getParameter("b").getClass(), is(equalTo((Object) ListParameter.class)));
+        // a list which gains an index becomes indexed, in the same order a ListParameter would give
+        Parameter c = params.getParameter("c");
+        assertThat(c, is(instanceOf(IndexedListParameter.class)));
+        ListParameter expected = new ListParameter("c");
+        expected.addValue(new StringParameter("c", -1, "4"));
+        expected.addValue(new StringParameter("c", 2, "5"));
+        expected.sort();
+        expected.addValue(new StringParameter("c", -1, "6"));
+        expected.addValue(new StringParameter("c", 0, "7"));
+        expected.sort();
+        assertThat(c.getStringListValue(), is(equalTo(expected.getStringListValue())));
+        assertThat(c.getStringListValue(2), is(equalTo("5")));
+        assertThat(c.getStringListValue(0), is(equalTo("7")));
+    }
+}
@@ -0,0 +1,196 @@
+package com.intrbiz.balsa.scgi.util;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.util.NetstringInputStream;
+
+public class TestNetstringInputStream
+{
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    
+    private static InputStream stream(String data)
+    {
+        return new ByteArrayInputStream(data.getBytes(ASCII));
+    }
+    
+    /**
+     * A stream which only returns one byte per read
+     */
+    private static InputStream trickle(String data)
+    {
+        final InputStream in = stream(data);
+        return new InputStream() {
+            public int read() throws IOException
+            {
+                return in.read();
+            }
+            
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                return in.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+    
+    private static String netstring(NetstringInputStream in) throws IOException
+    {
+        int length = in.readNetstring();
+        return new String(in.getBuffer(), in.getStart(), length, ASCII);
+    }
+    
+    private static String rest(InputStream in) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1)
+        {
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+    
+    @Test
+    public void testReadNetstring() throws IOException
+    {
+        NetstringInputStream in = new NetstringInputStream();
+        in.open(stream("12:hello world!,body"));
+        assertThat(netstring(in), is(equalTo("hello world!")));
+        assertThat(rest(in), is(equalTo("body")));
+    }
+    
+    @Test
+    public void testReadNetstringTrickle() throws IOException
+    {
+        NetstringInputStream in = new NetstringInputStream();
+        in.open(trickle("12:hello world!,body"));
+        assertThat(netstring(in), is(equalTo("hello world!")));
+        assertThat(rest(in), is(equalTo("body")));
+    }
+    
+    @Test
+    public void testEmptyNetstring() throws IOException
+    {
+        NetstringInputStream in = new NetstringInputStream();
+        in.open(stream("0:,"));
+        assertThat(netstring(in), is(equalTo("")));
+        assertThat(in.read(), is(equalTo(-1)));
+    }
+    
+    @Test
+    public void testBufferGrows() throws IOException
+    {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+        {
+            large.append((char) ('a' + (i % 26)));
+        }
+        NetstringInputStream in = new NetstringInputStream(NetstringInputStream.MIN_BUFFER_SIZE);
+        in.open(trickle("10000:" + large + ",x"));
+        assertThat(netstring(in), is(equalTo(large.toString())));
+        assertThat(in.getBufferSize(), is(greaterThanOrEqualTo(10008)));
+        assertThat(rest(in), is(equalTo("x")));
+    }
+    
+    @Test
+    public void testBufferShrinks() throws IOException
+    {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100000; i++)
+        {
+            large.append('z');
+        }
+        NetstringInputStream in = new NetstringInputStream();
+        in.open(stream("100000:" + large + ","));
+        netstring(in);
+        in.release();
+        int grown = in.getBufferSize();
+        for (int i = 0; i < 100; i++)
+        {
+            in.open(stream("5:small,"));
+            assertThat(netstring(in), is(equalTo("small")));
+            in.release();
+        }
+        assertThat(in.getBufferSize(), is(lessThan(grown)));
+    }
+    
+    @Test
+    public void testReusable() throws IOException
+    {
+        NetstringInputStream in = new NetstringInputStream();
+        for (int i = 0; i < 10; i++)
+        {
+            in.open(stream("3:" + i + "ab,body" + i));
+            assertThat(netstring(in), is(equalTo(i + "ab")));
+            assertThat(rest(in), is(equalTo("body" + i)));
+            in.release();
+        }
+    }
+    
+    @Test
+    public void testLargeBodyRead() throws IOException
+    {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 50000; i++)
+        {
+            body.append((char) ('0' + (i % 10)));
+        }
+        NetstringInputStream in = new NetstringInputStream();
+        in.open(stream("1:a," + body));
+        netstring(in);
+        byte[] read = new byte[body.length()];
+        int total = 0, r;
+        while ((r = in.read(read, total, read.length - total)) > 0)
+        {
+            total += r;
+        }
+        assertThat(new String(read, 0, total, ASCII), is(equalTo(body.toString())));
+    }
+    
+    @Test(expected = IOException.class)
+    public void testInvalidLength() throws IOException
+    {
+        NetstringInputStream in = new NetstringInputStream();
+        in.open(stream("1a:hello,"));
+        in.readNetstring();
+    }
+    
+    @Test(expected = IOException.class)
+    public void testEmptyLength() throws IOException
+    {
+        NetstringInputStream in = new NetstringInputStream();
+        in.open(stream(":hello,"));
+        in.readNetstring();
+    }
+    
+    @Test(expected = IOException.class)
+    public void testLengthTooLong() throws IOException
+    {
+        NetstringInputStream in = new NetstringInputStream();
+        in.open(stream("12345678901:hello,"));
+        in.readNetstring();
+    }
+    
+    @Test(expected = IOException.class)
+    public void testMissingSeparator() throws IOException
+    {
+        NetstringInputStream in = new NetstringInputStream();
+        in.open(stream("5:hello;"));
+        in.readNetstring();
+    }
+    
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException
+    {
+        NetstringInputStream in = new NetstringInputStream();
+        in.open(stream("10:hello"));
+        in.readNetstring();
+    }
+}
@@ -0,0 +1,160 @@
+package com.intrbiz.balsa.scgi.util;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+import static com.intrbiz.balsa.scgi.util.SCGITestHelper.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.parameter.ListParameter;
+import com.intrbiz.balsa.parameter.Parameter;
+import com.intrbiz.balsa.parameter.StringParameter;
+import com.intrbiz.balsa.scgi.SCGIRequest;
+import com.intrbiz.balsa.scgi.middleware.QueryStringMiddleware;
+import com.intrbiz.balsa.util.QueryStringCache;
+import com.intrbiz.balsa.util.QueryStringParser;
+
+public class TestQueryStringCache
+{
+    @Test
+    public void testSnapshotsAreShared()
+    {
+        QueryStringCache cache = new QueryStringCache("test-shared", 16, 64);
+        Map<String, Parameter> first = cache.get("page=2&ids[]=1&ids[]=2");
+        Map<String, Parameter> second = cache.get("page=2&ids[]=1&ids[]=2");
+        assertThat(second, is(sameInstance(first)));
+        assertThat(first.get("page").getStringValue(), is(equalTo("2")));
+        assertThat(first.get("ids").getStringListValue(), is(equalTo(Arrays.asList("1", "2"))));
+        assertThat(cache.getHitCount(), is(equalTo(1L)));
+        assertThat(cache.getMissCount(), is(equalTo(1L)));
+        assertThat(cache.getHitRatio(), is(equalTo(0.5D)));
+        // empty and long query strings are not cached
+        assertThat(cache.get(null).isEmpty(), is(true));
+        assertThat(cache.get("a=0123456789012345678901234567890123456789012345678901234567890123456789"), is(nullValue()));
+        assertThat(cache.size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testSnapshotsAreImmutable()
+    {
+        Map<String, Parameter> snapshot = new QueryStringCache("test-immutable", 16, 64).get("list[1]=b&list[0]=a&x=1");
+        ListParameter list = (ListParameter) snapshot.get("list");
+        assertThat(list.isFrozen(), is(true));
+        assertThat(list.getStringListValue(), is(equalTo(Arrays.asList("a", "b"))));
+        try
+        {
+            list.addValue(new StringParameter("list", 2, "c"));
+            fail("Expected a frozen list to reject changes");
+        }
+        catch (UnsupportedOperationException e)
+        {
+        }
+        try
+        {
+            list.getListValue().clear();
+            fail("Expected a frozen list to reject changes");
+        }
+        catch (UnsupportedOperationException e)
+        {
+        }
+        try
+        {
+            snapshot.remove("x");
+            fail("Expected a snapshot to reject changes");
+        }
+        catch (UnsupportedOperationException e)
+        {
+        }
+        assertThat(list.copy().isFrozen(), is(false));
+        assertThat(list.copy().getStringListValue(1), is(equalTo("b")));
+    }
+
+    @Test
+    public void testEviction()
+    {
+        QueryStringCache cache = new QueryStringCache("test-eviction", 8, 64);
+        for (int i = 0; i < 100; i++)
+        {
+            cache.get("page=" + i);
+        }
+        assertThat(cache.size(), is(lessThanOrEqualTo(8)));
+        assertThat(cache.getEvictionCount(), is(equalTo(100L - cache.size())));
+        // the most recently used entry survives
+        Map<String, Parameter> last = cache.get("page=99");
+        assertThat(cache.get("page=99"), is(sameInstance(last)));
+    }
+
+    @Test
+    public void testCopyOnWrite()
+    {
+        Map<String, Parameter> snapshot = new QueryStringCache("test-cow", 16, 64).get("a=1&list[]=x");
+        SCGIRequest request = request();
+        assertThat(request.shareParameters(snapshot), is(true));
+        assertThat(request.getParameter("a").getStringValue(), is(equalTo("1")));
+        assertThat(request.getParameterNames().size(), is(equalTo(2)));
+        // change the request
+        QueryStringParser.parseQueryString("list[]=y&b=2", request);
+        request.removeParameter("a");
+        assertThat(request.getParameter("list").getStringListValue(), is(equalTo(Arrays.asList("x", "y"))));
+        assertThat(request.getParameter("b").getStringValue(), is(equalTo("2")));
+        assertThat(request.containsParameter("a"), is(false));
+        // the snapshot is unchanged
+        assertThat(snapshot.size(), is(equalTo(2)));
+        assertThat(snapshot.get("list").getStringListValue(), is(equalTo(Arrays.asList("x"))));
+        // a request with parameters does not share
+        assertThat(request.shareParameters(snapshot), is(false));
+        request.deactivate();
+        assertThat(request.getParameterNames().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testSharedListsCanBeChanged()
+    {
+        Map<String, Parameter> snapshot = new QueryStringCache("test-lists", 16, 64).get("a=1&list[]=x");
+        SCGIRequest request = request();
+        request.shareParameters(snapshot);
+        // a string parameter is handed out without copying
+        assertThat(request.getParameter("a"), is(sameInstance(snapshot.get("a"))));
+        ListParameter list = (ListParameter) request.getParameter("list");
+        assertThat(list.isFrozen(), is(false));
+        list.addValue(new StringParameter("list", "y"));
+        assertThat(request.getParameter("list").getStringListValue(), is(equalTo(Arrays.asList("x", "y"))));
+        assertThat(snapshot.get("list").getStringListValue(), is(equalTo(Arrays.asList("x"))));
+        // the names and values are views of the request, as without the cache
+        SCGIRequest other = request();
+        other.shareParameters(snapshot);
+        other.getParameterNames().remove("a");
+        assertThat(other.containsParameter("a"), is(false));
+        assertThat(snapshot.containsKey("a"), is(true));
+        for (Parameter parameter : other.getParameterValues())
+        {
+            if (parameter instanceof ListParameter) assertThat(((ListParameter) parameter).isFrozen(), is(false));
+        }
+    }
+
+    @Test
+    public void testMiddlewareWithCache() throws Throwable
+    {
+        QueryStringMiddleware middleware = new QueryStringMiddleware();
+        middleware.setQueryStringCache(new QueryStringCache("test-middleware", 16, 64));
+        for (int i = 0; i < 3; i++)
+        {
+            SCGIRequest request = request(
+                    "CONTENT_LENGTH", "9",
+                    "CONTENT_TYPE", QueryStringMiddleware.WWW_FORM_URLENCODED,
+                    "QUERY_STRING", "view=list&tag=a"
+            );
+            request.stream(new ByteArrayInputStream(("tag=" + i + "&z=9").getBytes(SCGI_CHARSET)));
+            middleware.before(request, null);
+            assertThat(request.getParameter("view").getStringValue(), is(equalTo("list")));
+            assertThat(request.getParameter("tag").getStringListValue(), is(equalTo(Arrays.asList("a", String.valueOf(i)))));
+            assertThat(request.getParameter("z").getStringValue(), is(equalTo("9")));
+        }
+        assertThat(middleware.getQueryStringCache().getHitCount(), is(equalTo(2L)));
+    }
+}
@@ -2,10 +2,14 @@ package com.intrbiz.balsa.scgi.util;
 
 import static org.hamcrest.MatcherAssert.*;
 import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import org.hamcrest.Matcher;
@@ -14,6 +18,7 @@ import org.junit.Test;
 import com.intrbiz.balsa.parameter.ListParameter;
 import com.intrbiz.balsa.parameter.Parameter;
 import com.intrbiz.balsa.parameter.StringParameter;
+import com.intrbiz.balsa.util.MapParameterSet;
 import com.intrbiz.balsa.util.ParameterSet;
 import com.intrbiz.balsa.util.QueryStringParser;
 
@@ -185,6 +190,89 @@ public class TestQueryStringParser
         assertThat(params.getParameter("list").getListValue(), (Matcher) allOf(hasItem(new StringParameter("list", 0, "1")), hasItem(new StringParameter("list", 1, "2")), hasItem(new StringParameter("list", 2, "3"))));
     }
     
+    @Test
+    public void testDecoding()
+    {
+        MapParameterSet params = new MapParameterSet();
+        QueryStringParser.parseQueryString("a+b=c+d&e%3Df=g%26h&utf=%C3%A9t%C3%A9&euro=%e2%82%ac&list%5B1%5D=x&=empty&novalue&bad=%C3", params);
+        assertThat(params.getParameter("a b").getStringValue(), is(equalTo("c d")));
+        assertThat(params.getParameter("e=f").getStringValue(), is(equalTo("g&h")));
+        assertThat(params.getParameter("utf").getStringValue(), is(equalTo("\u00e9t\u00e9")));
+        assertThat(params.getParameter("euro").getStringValue(), is(equalTo("\u20ac")));
+        assertThat(params.getParameter("list"), is(ListParameter.class));
+        assertThat(params.getParameter("list").getListValue().get(0).getIndex(), is(equalTo(1)));
+        assertThat(params.getParameter("").getStringValue(), is(equalTo("empty")));
+        assertThat(params.getParameter("bad").getStringValue(), is(equalTo("\ufffd")));
+        assertThat(params.containsParameter("novalue"), is(false));
+    }
+    
+    @Test
+    public void testMalformedEscapes()
+    {
+        for (String query : new String[] { "a=%", "a=%4", "a=%zz", "a=%4&b=1", "%=1" })
+        {
+            try
+            {
+                QueryStringParser.parseQueryString(query, new MapParameterSet());
+                fail("Expected " + query + " to be rejected");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+        }
+    }
+    
+    /**
+     * Random query strings parse the same as they did using URLDecoder
+     */
+    @Test
+    public void testMatchesURLDecoder() throws Exception
+    {
+        Random random = new Random(21);
+        String alphabet = "abAB01+%=&[]-\u00e9";
+        for (int run = 0; run < 5000; run++)
+        {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(60);
+            for (int i = 0; i < length; i++)
+            {
+                char c = alphabet.charAt(random.nextInt(alphabet.length()));
+                if (c == '%') sb.append('%').append(Integer.toHexString(0x100 + random.nextInt(0x100)).substring(1));
+                else sb.append(c);
+            }
+            String query = sb.toString();
+            MapParameterSet actual = new MapParameterSet();
+            MapParameterSet expected = new MapParameterSet();
+            QueryStringParser.parseQueryString(query, actual);
+            parseWithURLDecoder(query, expected);
+            assertThat(query, actual.getParameterNames(), is(equalTo(expected.getParameterNames())));
+            for (String name : expected.getParameterNames())
+            {
+                assertThat(query, actual.getParameter(name).getClass(), is(equalTo((Object) expected.getParameter(name).getClass())));
+                assertThat(query, actual.getParameter(name).getStringListValue(), is(equalTo(expected.getParameter(name).getStringListValue())));
+            }
+        }
+    }
+    
+    /**
+     * How query strings used to be parsed
+     */
+    private static void parseWithURLDecoder(String query, ParameterSet request) throws UnsupportedEncodingException
+    {
+        if (query.isEmpty()) return;
+        for (String parameter : query.split("&", -1))
+        {
+            int pos = parameter.indexOf("=");
+            if (pos != -1)
+            {
+                String name = URLDecoder.decode(parameter.substring(0, pos), "UTF-8");
+                String value = URLDecoder.decode(parameter.substring(pos + 1), "UTF-8");
+                QueryStringParser.addParameter(name, value, request);
+            }
+        }
+    }
+    
     private static class DummyParameterSet implements ParameterSet
     {
         private Map<String, Parameter> parameters = new HashMap<String, Parameter>();
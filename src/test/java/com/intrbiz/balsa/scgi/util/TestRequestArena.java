@@ -0,0 +1,148 @@
+package com.intrbiz.balsa.scgi.util;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static com.intrbiz.balsa.scgi.util.SCGITestHelper.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.scgi.SCGIRequest;
+import com.intrbiz.balsa.util.Latin1CharSequence;
+import com.intrbiz.balsa.util.RequestArena;
+
+public class TestRequestArena
+{
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    @Test
+    public void testSlice() throws IOException
+    {
+        RequestArena arena = new RequestArena(64);
+        byte[] data = "a=1&b=caf\u00e9".getBytes(LATIN1);
+        int offset = arena.read(new ByteArrayInputStream(data), data.length);
+        assertThat(offset, is(equalTo(0)));
+        assertThat(arena.getUsed(), is(equalTo(data.length)));
+        ByteBuffer slice = arena.slice(offset, data.length);
+        assertThat(slice.isReadOnly(), is(true));
+        assertThat(slice.remaining(), is(equalTo(data.length)));
+        assertThat(slice.get(0), is(equalTo((byte) 'a')));
+        assertThat(slice.get(9), is(equalTo((byte) 0xE9)));
+    }
+
+    @Test
+    public void testReadAndInput() throws IOException
+    {
+        RequestArena arena = new RequestArena(32 * 1024);
+        byte[] body = new byte[20000];
+        for (int i = 0; i < body.length; i++)
+        {
+            body[i] = (byte) i;
+        }
+        arena.allocate(3);
+        int offset = arena.read(new ByteArrayInputStream(body), body.length);
+        assertThat(offset, is(equalTo(3)));
+        InputStream in = arena.input(offset, body.length);
+        assertThat(in.available(), is(equalTo(body.length)));
+        byte[] read = new byte[body.length];
+        int total = 0, r;
+        while ((r = in.read(read, total, Math.min(777, read.length - total))) > 0)
+        {
+            total += r;
+        }
+        assertThat(total, is(equalTo(body.length)));
+        assertThat(read, is(equalTo(body)));
+        assertThat(in.read(), is(equalTo(-1)));
+    }
+
+    @Test
+    public void testFullArena() throws IOException
+    {
+        RequestArena arena = new RequestArena(16);
+        assertThat(arena.allocate(10), is(equalTo(0)));
+        ByteArrayInputStream in = new ByteArrayInputStream(new byte[7]);
+        assertThat(arena.read(in, 7), is(equalTo(-1)));
+        // nothing was consumed
+        assertThat(in.available(), is(equalTo(7)));
+        assertThat(arena.allocate(7), is(equalTo(-1)));
+        arena.reset();
+        assertThat(arena.getRemaining(), is(equalTo(16)));
+        assertThat(arena.read(in, 7), is(equalTo(0)));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testReadEOF() throws IOException
+    {
+        new RequestArena(16).read(new ByteArrayInputStream(new byte[3]), 8);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1)
+        {
+            out.write(b);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testBodyIsOnlyReadIntoTheArenaOnDemand() throws IOException
+    {
+        RequestArena arena = new RequestArena(64);
+        SCGIRequest request = request("CONTENT_LENGTH", "5");
+        request.stream(new ByteArrayInputStream(bytes("hello")));
+        request.arena(arena);
+        assertThat(arena.getUsed(), is(equalTo(0)));
+        ByteBuffer body = request.getBodyBuffer();
+        assertThat(arena.getUsed(), is(equalTo(5)));
+        assertThat(body.remaining(), is(equalTo(5)));
+        assertThat(body.get(0), is(equalTo((byte) 'h')));
+        // the same body, not read again
+        assertThat(request.getBodyBuffer(), is(equalTo(body)));
+        assertThat(arena.getUsed(), is(equalTo(5)));
+        // the stream reads the arena
+        assertThat(readAll(request.getInput()), is(equalTo(bytes("hello"))));
+    }
+
+    @Test
+    public void testStreamedBodyIsNotCopied() throws IOException
+    {
+        RequestArena arena = new RequestArena(64);
+        SCGIRequest request = request("CONTENT_LENGTH", "5");
+        request.stream(new ByteArrayInputStream(bytes("hello")));
+        request.arena(arena);
+        assertThat(readAll(request.getInput()), is(equalTo(bytes("hello"))));
+        assertThat(request.getBodyBuffer(), is(nullValue()));
+        assertThat(arena.getUsed(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testBodyLargerThanTheArena() throws IOException
+    {
+        RequestArena arena = new RequestArena(4);
+        SCGIRequest request = request("CONTENT_LENGTH", "5");
+        request.stream(new ByteArrayInputStream(bytes("hello")));
+        request.arena(arena);
+        assertThat(request.getBodyBuffer(), is(nullValue()));
+        assertThat(readAll(request.getInput()), is(equalTo(bytes("hello"))));
+    }
+
+    @Test
+    public void testLatin1CharSequence()
+    {
+        byte[] data = "xxHello\u00ffxx".getBytes(LATIN1);
+        CharSequence chars = new Latin1CharSequence(data, 2, 6);
+        assertThat(chars.length(), is(equalTo(6)));
+        assertThat(chars.toString(), is(equalTo("Hello\u00ff")));
+        assertThat(chars.subSequence(1, 3).toString(), is(equalTo("el")));
+    }
+}
@@ -0,0 +1,204 @@
+package com.intrbiz.balsa.scgi.util;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.util.RingBufferQueue;
+import com.intrbiz.balsa.util.RingBufferQueue.WaitStrategy;
+
+public class TestRingBufferQueue
+{
+    @Test
+    public void testCapacityIsRoundedUp()
+    {
+        assertThat(new RingBufferQueue<String>(1).capacity(), is(equalTo(1)));
+        assertThat(new RingBufferQueue<String>(5).capacity(), is(equalTo(8)));
+        assertThat(new RingBufferQueue<String>(32).capacity(), is(equalTo(32)));
+    }
+    
+    @Test
+    public void testFifo()
+    {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(4);
+        for (int round = 0; round < 10; round++)
+        {
+            for (int i = 0; i < 4; i++)
+            {
+                assertThat(queue.offer(i), is(true));
+            }
+            assertThat(queue.offer(99), is(false));
+            assertThat(queue.size(), is(equalTo(4)));
+            assertThat(queue.remainingCapacity(), is(equalTo(0)));
+            assertThat(queue.peek(), is(equalTo(0)));
+            for (int i = 0; i < 4; i++)
+            {
+                assertThat(queue.poll(), is(equalTo(i)));
+            }
+            assertThat(queue.poll(), is(nullValue()));
+            assertThat(queue.isEmpty(), is(true));
+        }
+    }
+    
+    @Test
+    public void testIterator()
+    {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(8);
+        queue.offer(1);
+        queue.offer(2);
+        queue.offer(3);
+        queue.poll();
+        assertThat(new ArrayList<Integer>(queue), is(equalTo(Arrays.asList(2, 3))));
+    }
+    
+    @Test
+    public void testRemoveIsUnsupported()
+    {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(8);
+        queue.offer(1);
+        queue.offer(2);
+        try
+        {
+            queue.remove(2);
+            fail("Expected remove(Object) to be unsupported");
+        }
+        catch (UnsupportedOperationException e)
+        {
+        }
+        try
+        {
+            queue.removeAll(Arrays.asList(1));
+            fail("Expected removeAll() to be unsupported");
+        }
+        catch (UnsupportedOperationException e)
+        {
+        }
+        try
+        {
+            queue.retainAll(Arrays.asList(1));
+            fail("Expected retainAll() to be unsupported");
+        }
+        catch (UnsupportedOperationException e)
+        {
+        }
+        try
+        {
+            Iterator<Integer> it = queue.iterator();
+            it.next();
+            it.remove();
+            fail("Expected Iterator.remove() to be unsupported");
+        }
+        catch (UnsupportedOperationException e)
+        {
+        }
+        // nothing was removed
+        assertThat(new ArrayList<Integer>(queue), is(equalTo(Arrays.asList(1, 2))));
+        // removing from the head still works
+        assertThat(queue.remove(), is(equalTo(1)));
+        queue.clear();
+        assertThat(queue.isEmpty(), is(true));
+    }
+    
+    @Test
+    public void testPollTimesOut() throws Exception
+    {
+        for (WaitStrategy strategy : WaitStrategy.values())
+        {
+            RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(8, strategy);
+            long start = System.nanoTime();
+            assertThat(queue.poll(20, TimeUnit.MILLISECONDS), is(nullValue()));
+            assertThat(System.nanoTime() - start, is(greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(20))));
+        }
+    }
+    
+    @Test
+    public void testInterrupt() throws Exception
+    {
+        for (WaitStrategy strategy : WaitStrategy.values())
+        {
+            RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(8, strategy);
+            Thread.currentThread().interrupt();
+            try
+            {
+                queue.poll(10, TimeUnit.SECONDS);
+                throw new AssertionError("Expected InterruptedException");
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+    
+    @Test
+    public void testMultipleProducersAndConsumers() throws Exception
+    {
+        for (WaitStrategy strategy : WaitStrategy.values())
+        {
+            this.exchange(new RingBufferQueue<Long>(16, strategy), 4, 4, 20000);
+        }
+    }
+    
+    private void exchange(final RingBufferQueue<Long> queue, int producers, int consumers, final int perProducer) throws Exception
+    {
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        final long expected = (long) producers * perProducer;
+        final CountDownLatch done = new CountDownLatch(producers + consumers);
+        for (int p = 0; p < producers; p++)
+        {
+            new Thread() {
+                public void run()
+                {
+                    try
+                    {
+                        for (long i = 1; i <= perProducer; i++)
+                        {
+                            queue.put(i);
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        for (int c = 0; c < consumers; c++)
+        {
+            new Thread() {
+                public void run()
+                {
+                    try
+                    {
+                        while (received.get() < expected)
+                        {
+                            Long value = queue.poll(10, TimeUnit.MILLISECONDS);
+                            if (value != null)
+                            {
+                                sum.addAndGet(value);
+                                received.incrementAndGet();
+                            }
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        assertThat(done.await(30, TimeUnit.SECONDS), is(true));
+        assertThat(received.get(), is(equalTo(expected)));
+        assertThat(sum.get(), is(equalTo(producers * ((long) perProducer * (perProducer + 1) / 2))));
+        assertThat(queue.isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,372 @@
+package com.intrbiz.balsa.scgi.util;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+import static com.intrbiz.balsa.scgi.util.SCGITestHelper.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.SCGIBadRequestException;
+import com.intrbiz.balsa.http.HTTP.SCGI;
+import com.intrbiz.balsa.parameter.Parameter;
+import com.intrbiz.balsa.parameter.StringParameter;
+import com.intrbiz.balsa.scgi.SCGIHeaderKey;
+import com.intrbiz.balsa.scgi.SCGIParameterParser;
+import com.intrbiz.balsa.scgi.SCGIRequest;
+import com.intrbiz.balsa.scgi.SCGIVariableIndex;
+import com.intrbiz.balsa.scgi.middleware.QueryStringMiddleware;
+import com.intrbiz.balsa.util.CompactParameterSet;
+import com.intrbiz.balsa.util.QueryStringCache;
+
+public class TestSCGIRequest
+{
+    @Test
+    public void testWellKnownVariables()
+    {
+        SCGIRequest request = request(
+                "CONTENT_LENGTH", "27",
+                "REQUEST_METHOD", "POST",
+                "REQUEST_URI", "/test?a=b",
+                "QUERY_STRING", "a=b",
+                "SERVER_PORT", "443",
+                "REMOTE_PORT", "37184",
+                "REMOTE_ADDR", "127.0.0.1"
+        );
+        assertThat(request.getContentLength(), is(equalTo(27)));
+        assertThat(request.getRequestMethod(), is(equalTo("POST")));
+        assertThat(request.getRequestUri(), is(equalTo("/test?a=b")));
+        assertThat(request.getQueryString(), is(equalTo("a=b")));
+        assertThat(request.getServerPort(), is(equalTo(443)));
+        assertThat(request.getRemotePort(), is(equalTo(37184)));
+        assertThat(request.getRemoteAddress(), is(equalTo("127.0.0.1")));
+        assertThat(request.getPathInfo(), is(nullValue()));
+        assertThat(request.getContentType(), is(nullValue()));
+    }
+    
+    @Test
+    public void testMissingNumbersDefaultToZero()
+    {
+        SCGIRequest request = request("CONTENT_LENGTH", "");
+        assertThat(request.getContentLength(), is(equalTo(0)));
+        assertThat(request.getServerPort(), is(equalTo(0)));
+    }
+    
+    @Test(expected = NumberFormatException.class)
+    public void testInvalidNumber()
+    {
+        request("CONTENT_LENGTH", "12a").getContentLength();
+    }
+    
+    @Test
+    public void testHeaders()
+    {
+        SCGIRequest request = request(
+                "HTTP_USER_AGENT", "Test",
+                "HTTP_ACCEPT_LANGUAGE", "en-gb",
+                "HTTPS", "on",
+                "REQUEST_METHOD", "GET"
+        );
+        assertThat(request.getHeader("User-Agent"), is(equalTo("Test")));
+        assertThat(request.getHeader("accept-language"), is(equalTo("en-gb")));
+        assertThat(request.getHeader("Cookie"), is(nullValue()));
+        assertThat(request.getHeaders().size(), is(equalTo(2)));
+        assertThat(request.getHeaders().get("USER_AGENT"), is(equalTo("Test")));
+        assertThat(request.getHeader("User-Agent"), is(equalTo("Test")));
+    }
+    
+    @Test
+    public void testHeaderKeys()
+    {
+        SCGIRequest request = request(
+                "HTTP_ACCEPT_ENCODING", "gzip",
+                "HTTP_X_FORWARDED_FOR", "10.0.0.1",
+                "HTTP_ACCEPT", "*/*"
+        );
+        assertThat(request.getHeader(SCGIHeaderKey.ACCEPT_ENCODING), is(equalTo("gzip")));
+        assertThat(request.getHeader(SCGIHeaderKey.ACCEPT), is(equalTo("*/*")));
+        assertThat(request.getHeader(SCGIHeaderKey.X_FORWARDED_FOR), is(equalTo("10.0.0.1")));
+        assertThat(request.getHeader(SCGIHeaderKey.COOKIE), is(nullValue()));
+        assertThat(request.getHeader(SCGIHeaderKey.of("x-forwarded-for")), is(equalTo("10.0.0.1")));
+        assertThat(request.getHeader("ACCEPT_ENCODING"), is(equalTo("gzip")));
+        assertThat(request.getHeader("Accept-Encodinh"), is(nullValue()));
+        assertThat(request.getHeader("Accept_Encoding-"), is(nullValue()));
+        // once decoded the lookups use the headers map
+        request.getHeaders().put("COOKIE", "a=b");
+        assertThat(request.getHeader("Cookie"), is(equalTo("a=b")));
+        assertThat(request.getHeader(SCGIHeaderKey.ACCEPT_ENCODING), is(equalTo("gzip")));
+    }
+
+    @Test
+    public void testHeaderKeyNames()
+    {
+        assertThat(SCGIHeaderKey.USER_AGENT.getCgiName(), is(equalTo("USER_AGENT")));
+        assertThat(SCGIHeaderKey.of("User-Agent"), is(sameInstance(SCGIHeaderKey.USER_AGENT)));
+        assertThat(SCGIHeaderKey.of("USER_AGENT"), is(sameInstance(SCGIHeaderKey.USER_AGENT)));
+        assertThat(SCGIHeaderKey.of("X-Custom-Header").getCgiName(), is(equalTo("X_CUSTOM_HEADER")));
+        assertThat(SCGIHeaderKey.of("x-custom-header"), is(equalTo(SCGIHeaderKey.of("X-Custom-Header"))));
+    }
+    
+    @Test
+    public void testVariables()
+    {
+        SCGIRequest request = request(
+                "HTTP_HOST", "localhost",
+                "HTTPS", "on",
+                "REQUEST_METHOD", "GET",
+                "SSL_PROTOCOL", "TLSv1.3"
+        );
+        assertThat(request.getVariable("https"), is(equalTo("on")));
+        assertThat(request.getVariable("REQUEST_METHOD"), is(nullValue()));
+        assertThat(request.getVariableNames(), hasItems("HTTPS", "SSL_PROTOCOL"));
+        assertThat(request.getVariables().size(), is(equalTo(2)));
+    }
+    
+    @Test
+    public void testExplicitVariablesTakePrecedence()
+    {
+        SCGIRequest request = request(
+                "REQUEST_URI", "/a",
+                "HTTP_HOST", "a.com"
+        );
+        request.variable("REQUEST_URI", "/b");
+        request.variable("HTTP_HOST", "b.com");
+        assertThat(request.getRequestUri(), is(equalTo("/b")));
+        assertThat(request.getHeader("Host"), is(equalTo("b.com")));
+        assertThat(request.getHeaders().get("HOST"), is(equalTo("b.com")));
+    }
+    
+    @Test
+    public void testDeactivateClears()
+    {
+        SCGIRequest request = request(
+                "CONTENT_LENGTH", "10",
+                "REQUEST_URI", "/a",
+                "HTTP_HOST", "a.com"
+        );
+        assertThat(request.getRequestUri(), is(equalTo("/a")));
+        request.deactivate();
+        assertThat(request.getRequestUri(), is(nullValue()));
+        assertThat(request.getContentLength(), is(equalTo(0)));
+        assertThat(request.getHeader("Host"), is(nullValue()));
+        assertThat(request.getHeaders().isEmpty(), is(true));
+    }
+    
+    @Test
+    public void testKnownIds()
+    {
+        assertThat(SCGIVariableIndex.knownId(SCGI.CONTENT_LENGTH), is(equalTo(SCGIVariableIndex.CONTENT_LENGTH)));
+        assertThat(SCGIVariableIndex.knownId(SCGI.SCGI), is(equalTo(SCGIVariableIndex.SCGI_VERSION)));
+        assertThat(SCGIVariableIndex.knownId(SCGI.SERVER_ADDR), is(equalTo(SCGIVariableIndex.SERVER_ADDR)));
+        assertThat(SCGIVariableIndex.knownId(SCGI.REMOTE_ADDR), is(equalTo(SCGIVariableIndex.REMOTE_ADDR)));
+        assertThat(SCGIVariableIndex.knownId(SCGI.SCRIPT_FILENAME), is(equalTo(SCGIVariableIndex.SCRIPT_FILENAME)));
+        assertThat(SCGIVariableIndex.knownId(SCGI.DOCUMENT_ROOT), is(equalTo(SCGIVariableIndex.DOCUMENT_ROOT)));
+        // near misses must not match
+        assertThat(SCGIVariableIndex.knownId(""), is(equalTo(-1)));
+        assertThat(SCGIVariableIndex.knownId("SERVER_ADDX"), is(equalTo(-1)));
+        assertThat(SCGIVariableIndex.knownId("XEMOTE_ADDR"), is(equalTo(-1)));
+        assertThat(SCGIVariableIndex.knownId("HTTP_HOST"), is(equalTo(-1)));
+    }
+    
+    @Test
+    public void testUnknownVariablesAreNotKnown()
+    {
+        SCGIRequest request = request(
+                "REQUEST_URX", "/nope",
+                "SERVER_PORTS", "1",
+                "REQUEST_URI", "/yes"
+        );
+        assertThat(request.getRequestUri(), is(equalTo("/yes")));
+        assertThat(request.getVariable("REQUEST_URX"), is(equalTo("/nope")));
+        assertThat(request.getVariable("SERVER_PORTS"), is(equalTo("1")));
+        assertThat(request.getServerPort(), is(equalTo(0)));
+    }
+    
+    @Test
+    public void testCharViews()
+    {
+        SCGIRequest request = request(
+                "HTTP_ACCEPT", "text/html",
+                "SSL_PROTOCOL", "TLSv1.3",
+                "REQUEST_URI", "/a"
+        );
+        assertThat(request.getHeaderChars(SCGIHeaderKey.ACCEPT).toString(), is(equalTo("text/html")));
+        assertThat(request.getHeaderChars(SCGIHeaderKey.COOKIE), is(nullValue()));
+        assertThat(request.getVariableChars("SSL_PROTOCOL").toString(), is(equalTo("TLSv1.3")));
+        assertThat(request.getVariableChars("REQUEST_URI").length(), is(equalTo(2)));
+        assertThat(request.getVariableChars("NOPE"), is(nullValue()));
+    }
+    
+    @Test
+    public void testLazyParameters() throws Throwable
+    {
+        SCGIRequest request = request(
+                "CONTENT_LENGTH", "7",
+                "CONTENT_TYPE", QueryStringMiddleware.WWW_FORM_URLENCODED,
+                "QUERY_STRING", "a=1&b=2"
+        );
+        final int[] parsed = new int[1];
+        final QueryStringMiddleware middleware = new QueryStringMiddleware(true);
+        request.stream(new ByteArrayInputStream("c=3&a=4".getBytes(SCGI_CHARSET)));
+        request.parseParametersLazily(new SCGIParameterParser() {
+            public void parseParameters(SCGIRequest request) throws IOException
+            {
+                parsed[0]++;
+                middleware.parseParameters(request);
+            }
+        });
+        assertThat(request.isParametersPending(), is(true));
+        assertThat(parsed[0], is(equalTo(0)));
+        assertThat(request.getParameter("b").getStringValue(), is(equalTo("2")));
+        assertThat(request.getParameter("c").getStringValue(), is(equalTo("3")));
+        assertThat(request.getParameter("a").getStringListValue(), hasItems("1", "4"));
+        assertThat(request.getParameterNames().size(), is(equalTo(3)));
+        assertThat(parsed[0], is(equalTo(1)));
+        assertThat(request.isParametersPending(), is(false));
+        // recycled
+        request.deactivate();
+        assertThat(request.isParametersPending(), is(false));
+        assertThat(request.getParameterNames().isEmpty(), is(true));
+    }
+    
+    @Test
+    public void testLazyMiddlewareDefers() throws Throwable
+    {
+        SCGIRequest request = request("QUERY_STRING", "a=1");
+        new QueryStringMiddleware(true).before(request, null);
+        assertThat(request.isParametersPending(), is(true));
+        assertThat(request.containsParameter("a"), is(true));
+        request = request("QUERY_STRING", "a=1");
+        new QueryStringMiddleware().before(request, null);
+        assertThat(request.isParametersPending(), is(false));
+        assertThat(request.containsParameter("a"), is(true));
+    }
+    
+    @Test
+    public void testLazyParseFailure() throws Throwable
+    {
+        SCGIRequest request = request(
+                "CONTENT_LENGTH", "5",
+                "CONTENT_TYPE", QueryStringMiddleware.WWW_FORM_URLENCODED,
+                "QUERY_STRING", "a=1"
+        );
+        request.stream(new ByteArrayInputStream("b=%zz".getBytes(SCGI_CHARSET)));
+        new QueryStringMiddleware(true).before(request, null);
+        try
+        {
+            request.getParameter("a");
+            fail("Expected the parameters to fail to parse");
+        }
+        catch (IllegalStateException e)
+        {
+            assertThat(e.getCause(), is(instanceOf(SCGIBadRequestException.class)));
+        }
+        assertThat(request.getParameterFailure(), is(instanceOf(SCGIBadRequestException.class)));
+        assertThat(request.isParametersPending(), is(false));
+        // the failure is raised by every access, rather than a partial set of parameters
+        try
+        {
+            request.getParameterNames();
+            fail("Expected the parameters to have failed to parse");
+        }
+        catch (IllegalStateException e)
+        {
+            assertThat(e.getCause(), is(sameInstance((Throwable) request.getParameterFailure())));
+        }
+        request.deactivate();
+        assertThat(request.getParameterFailure(), is(nullValue()));
+    }
+    
+    @Test
+    public void testLazyParseAfterBodyRead() throws Throwable
+    {
+        SCGIRequest request = request(
+                "CONTENT_LENGTH", "3",
+                "CONTENT_TYPE", QueryStringMiddleware.WWW_FORM_URLENCODED,
+                "QUERY_STRING", "a=1"
+        );
+        request.stream(new ByteArrayInputStream("b=2".getBytes(SCGI_CHARSET)));
+        new QueryStringMiddleware(true).before(request, null);
+        // the processor reads the body itself
+        while (request.getInput().read() != -1);
+        assertThat(request.isInputUsed(), is(true));
+        assertThat(request.getParameter("a").getStringValue(), is(equalTo("1")));
+        assertThat(request.containsParameter("b"), is(false));
+        assertThat(request.getParameterFailure(), is(nullValue()));
+    }
+    
+    @Test
+    public void testCompactParameters() throws Throwable
+    {
+        SCGIRequest request = request(
+                "CONTENT_LENGTH", "7",
+                "CONTENT_TYPE", QueryStringMiddleware.WWW_FORM_URLENCODED,
+                "QUERY_STRING", "a=1&b[]=2&b[]=3"
+        );
+        request.stream(new ByteArrayInputStream("c=4&d=5".getBytes(SCGI_CHARSET)));
+        QueryStringMiddleware middleware = new QueryStringMiddleware();
+        middleware.setCompactParameters(true);
+        middleware.before(request, null);
+        assertThat(request.isCompactParameters(), is(true));
+        assertThat(request.getParameter("a").getStringValue(), is(equalTo("1")));
+        assertThat(request.getParameter("b").getListValue().size(), is(equalTo(2)));
+        assertThat(request.containsParameter("d"), is(true));
+        assertThat(request.getParameterNames(), hasItems("a", "b", "c", "d"));
+        assertThat(request.getParameterValues().size(), is(equalTo(4)));
+        request.addParameter(new StringParameter("e", "6"));
+        request.removeParameter("a");
+        assertThat(request.getParameter("e").getStringValue(), is(equalTo("6")));
+        assertThat(request.containsParameter("a"), is(false));
+        assertThat(request.isCompactParameters(), is(true));
+    }
+    
+    @Test
+    public void testCompactParametersInflate() throws Throwable
+    {
+        SCGIRequest request = request("QUERY_STRING", "a=1&b[]=2&b[]=3");
+        QueryStringMiddleware middleware = new QueryStringMiddleware(true);
+        middleware.setCompactParameters(true);
+        middleware.before(request, null);
+        // the live map holds the parameters from then on
+        Map<String, Parameter> parameters = request.getParameters();
+        assertThat(request.isCompactParameters(), is(false));
+        assertThat(parameters.keySet(), hasItems("a", "b"));
+        parameters.get("b").getListValue().add(new StringParameter("b", "4"));
+        parameters.remove("a");
+        assertThat(request.getParameter("b").getListValue().size(), is(equalTo(3)));
+        assertThat(request.containsParameter("a"), is(false));
+        // the set is reused by the next request
+        request.deactivate();
+        assertThat(request.getParameterNames().isEmpty(), is(true));
+        CompactParameterSet compact = request.useCompactParameters();
+        assertThat(compact.size(), is(equalTo(0)));
+        compact.add("f", "7", -1, false, false);
+        assertThat(request.getParameter("f").getStringValue(), is(equalTo("7")));
+        request.deactivate();
+        assertThat(request.isCompactParameters(), is(false));
+        assertThat(request.containsParameter("f"), is(false));
+    }
+    
+    @Test
+    public void testSharedParametersPreferredToCompact() throws Throwable
+    {
+        QueryStringMiddleware middleware = new QueryStringMiddleware();
+        middleware.setCompactParameters(true);
+        middleware.setQueryStringCache(new QueryStringCache());
+        for (int i = 0; i < 3; i++)
+        {
+            SCGIRequest request = request("QUERY_STRING", "a=1");
+            middleware.before(request, null);
+            assertThat(request.isCompactParameters(), is(false));
+            assertThat(request.getParameter("a").getStringValue(), is(equalTo("1")));
+        }
+        // a request which already has parameters is not made compact
+        SCGIRequest request = request("QUERY_STRING", "a=1");
+        request.addParameter(new StringParameter("b", "2"));
+        assertThat(request.useCompactParameters(), is(nullValue()));
+    }
+}
@@ -0,0 +1,144 @@
+package com.intrbiz.balsa.scgi.util;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static com.intrbiz.balsa.scgi.util.SCGITestHelper.*;
+
+import org.junit.Test;
+
+import com.intrbiz.balsa.scgi.SCGIVariableIndex;
+import com.intrbiz.balsa.util.StringCache;
+
+public class TestStringCache
+{
+    @Test
+    public void testRepeatedValuesAreShared()
+    {
+        StringCache cache = new StringCache("test-shared", 64, 32);
+        byte[] a = bytes("xxtext/htmlxx");
+        byte[] b = bytes("text/html");
+        String first = cache.get(a, 2, 9);
+        assertThat(first, is(equalTo("text/html")));
+        assertThat(cache.get(b, 0, b.length), is(sameInstance(first)));
+        assertThat(cache.getHitCount(), is(equalTo(1L)));
+        assertThat(cache.getMissCount(), is(equalTo(1L)));
+        // a different value of the same length is not confused
+        byte[] c = bytes("text/xml!");
+        assertThat(cache.get(c, 0, c.length), is(equalTo("text/xml!")));
+        assertThat(cache.lookup(b, 0, b.length), is(sameInstance(first)));
+    }
+
+    @Test
+    public void testLongValuesAreNotCached()
+    {
+        StringCache cache = new StringCache("test-long", 64, 4);
+        byte[] value = bytes("too long");
+        String first = cache.get(value, 0, value.length);
+        assertThat(cache.get(value, 0, value.length), is(equalTo(first)));
+        assertThat(cache.get(value, 0, value.length), is(not(sameInstance(first))));
+        assertThat(cache.lookup(value, 0, value.length), is(nullValue()));
+        assertThat(cache.accepts(4), is(true));
+        assertThat(cache.accepts(5), is(false));
+    }
+
+    @Test
+    public void testBoundedUnderChurn()
+    {
+        StringCache cache = new StringCache("test-churn", 16, 32);
+        assertThat(cache.getCapacity(), is(equalTo(16)));
+        for (int i = 0; i < 10000; i++)
+        {
+            byte[] value = bytes("value-" + i);
+            assertThat(cache.get(value, 0, value.length), is(equalTo("value-" + i)));
+        }
+        // recently added values are still found
+        byte[] last = bytes("value-9999");
+        assertThat(cache.lookup(last, 0, last.length), is(equalTo("value-9999")));
+        cache.clear();
+        assertThat(cache.lookup(last, 0, last.length), is(nullValue()));
+    }
+
+    @Test
+    public void testIndexUsesCache()
+    {
+        StringCache cache = new StringCache("test-index", 64, 64);
+        String[] values = new String[4];
+        String[] uris = new String[2];
+        String[] cookies = new String[2];
+        for (int i = 0; i < 2; i++)
+        {
+            byte[] block = block(
+                    "HTTP_USER_AGENT", "Mozilla/5.0",
+                    "DOCUMENT_ROOT", "/var/www",
+                    "HTTP_COOKIE", "session=abc",
+                    "REQUEST_URI", "/index"
+            );
+            SCGIVariableIndex index = new SCGIVariableIndex();
+            index.setCache(cache);
+            index.index(block, 0, block.length);
+            values[i * 2]     = index.value(0);
+            values[i * 2 + 1] = index.value(index.find(SCGIVariableIndex.DOCUMENT_ROOT));
+            cookies[i]        = index.value(2);
+            uris[i]           = index.value(index.find(SCGIVariableIndex.REQUEST_URI));
+            assertThat(index.headerName(0), is(equalTo("USER_AGENT")));
+            index.clear();
+        }
+        assertThat(values[2], is(sameInstance(values[0])));
+        assertThat(values[3], is(sameInstance(values[1])));
+        assertThat(cookies[1], is(equalTo(cookies[0])));
+        assertThat(cookies[1], is(not(sameInstance(cookies[0]))));
+        assertThat(uris[1], is(not(sameInstance(uris[0]))));
+        // the user agent, document root and header name, once per request
+        assertThat(cache.getMissCount(), is(equalTo(3L)));
+        assertThat(cache.getHitCount(), is(equalTo(3L)));
+    }
+
+    @Test
+    public void testOnlyRepeatingValuesAreCached()
+    {
+        StringCache cache = new StringCache("test-allow", 64, 64);
+        String[][] values = new String[2][];
+        for (int i = 0; i < 2; i++)
+        {
+            byte[] block = block(
+                    "HTTP_ACCEPT_ENCODING", "gzip",
+                    "GATEWAY_INTERFACE", "CGI/1.1",
+                    "SERVER_SOFTWARE", "nginx",
+                    "HTTP_X_FORWARDED_FOR", "10.0.0.1",
+                    "HTTP_PROXY_AUTHORIZATION", "Basic dXNlcjpwYXNz",
+                    "HTTP_X_API_KEY", "secret",
+                    "CONTENT_TYPE", "multipart/form-data; boundary=abc",
+                    "SSL_SESSION_ID", "1234"
+            );
+            SCGIVariableIndex index = new SCGIVariableIndex();
+            index.setCache(cache);
+            index.index(block, 0, block.length);
+            values[i] = new String[index.size()];
+            for (int entry = 0; entry < index.size(); entry++)
+            {
+                values[i][entry] = index.value(entry);
+            }
+            index.clear();
+        }
+        for (int entry = 0; entry < values[0].length; entry++)
+        {
+            assertThat(values[1][entry], is(equalTo(values[0][entry])));
+            // only the first three are on the allow list
+            assertThat(values[1][entry] == values[0][entry], is(equalTo(entry < 3)));
+        }
+        assertThat(cache.lookup(bytes("secret"), 0, 6), is(nullValue()));
+        assertThat(cache.getMissCount(), is(equalTo(3L)));
+        assertThat(cache.getHitCount(), is(equalTo(3L)));
+    }
+
+    @Test
+    public void testIndexWithoutCache()
+    {
+        byte[] block = block("HTTP_ACCEPT", "*/*");
+        SCGIVariableIndex index = new SCGIVariableIndex();
+        index.setCache(null);
+        index.index(block, 0, block.length);
+        assertThat(index.value(0), is(equalTo("*/*")));
+        assertThat(index.name(0), is(equalTo("HTTP_ACCEPT")));
+    }
+}